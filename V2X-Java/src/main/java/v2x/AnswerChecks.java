@@ -0,0 +1,349 @@
+package v2x;
+
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the checks of an answer as stages, each with a relative cost, cheapest first: e.g. the time of the answer, the
+ * CRL lookup of the sender, the bloom filter, and the signatures last. A stage is either a check of the sender or a
+ * check of the inner answer. The first failed sender stage rejects the answer, so a revoked or replaying sender costs
+ * no signature check. A failed inner stage only skips the other inner stages: the sender stages still run, because
+ * the sender is only put on the CRL if its own signature holds. An inner answer that is only covered by the
+ * signature of the sender is checked after all sender stages passed, so its bytes are never parsed before they are
+ * authenticated. Rejections are counted by stage.
+ * <p>
+ * With <code>-Dv2x.parallelChecks=true</code> the stages that cost {@link #CHEAP} or more run at the same time on a
+ * fork-join pool once the cheap stages passed, so a valid answer costs about one signature check instead of two.
+ * When a sender stage fails the other stages are cancelled.
+ */
+public class AnswerChecks {
+    static final boolean PARALLEL_CHECKS = Boolean.getBoolean("v2x.parallelChecks");
+    static final int OUTER_FAILED = 0;
+    static final int INNER_FAILED = 1;
+    static final int VALID = 2;
+    static final int CHEAP = 50;
+    static final int TIME_COST = 1;
+    static final int LOOKUP_COST = 5;
+    static final int MAC_COST = 10;
+    static final int SIGNATURE_COST = 100;
+
+    private static final ForkJoinPool checks = new ForkJoinPool(Math.max(2,
+            Runtime.getRuntime().availableProcessors()));
+    private static final DropCounter rejects = new DropCounter();
+
+    /**
+     * A check of an answer and how much it costs compared with the other checks.
+     */
+    public static class Stage {
+        private final String name;
+        private final int cost;
+        private final boolean sender;
+        private final boolean authenticated;
+        private final Callable<Boolean> check;
+
+        private Stage(String name, int cost, boolean sender, boolean authenticated, Callable<Boolean> check) {
+            this.name = name;
+            this.cost = cost;
+            this.sender = sender;
+            this.authenticated = authenticated;
+            this.check = check;
+        }
+
+        /**
+         * @param name  the name the rejections of the stage are counted under
+         * @param cost  the cost of the check compared with the other stages
+         * @param check checks the sender of the answer
+         * @return <code>Stage</code> a stage whose failure rejects the answer as an outer failure
+         */
+        public static Stage sender(String name, int cost, Callable<Boolean> check) {
+            return new Stage(name, cost, true, false, check);
+        }
+
+        /**
+         * @param name  the name the rejections of the stage are counted under
+         * @param cost  the cost of the check compared with the other stages
+         * @param check checks the inner answer
+         * @return <code>Stage</code> a stage whose failure rejects the answer as an inner failure
+         */
+        public static Stage inner(String name, int cost, Callable<Boolean> check) {
+            return new Stage(name, cost, false, false, check);
+        }
+
+        /**
+         * @param name  the name the rejections of the stage are counted under
+         * @param cost  the cost of the check compared with the other stages of its kind
+         * @param check checks an inner answer that is only authenticated by the sender stages
+         * @return <code>Stage</code> a stage that runs after all sender stages passed and whose failure rejects the
+         * answer as an inner failure
+         */
+        public static Stage authenticated(String name, int cost, Callable<Boolean> check) {
+            return new Stage(name, cost, false, true, check);
+        }
+    }
+
+    /**
+     * Runs the checks of an answer.
+     *
+     * @param stages the checks of the answer, in any order
+     * @return <code>int</code> {@link #VALID}, {@link #INNER_FAILED} or {@link #OUTER_FAILED}, the same as the codes of
+     * {@link ValidityCounter}
+     */
+    public static int check(Stage... stages) {
+        List<Stage> ordered = new ArrayList<>(Arrays.asList(stages));
+        ordered.sort(Comparator.comparingInt(stage -> stage.cost));
+        List<Stage> expensive = new ArrayList<>();
+        List<Stage> authenticated = new ArrayList<>();
+        Stage innerFailure = null;
+        for (Stage stage : ordered) {
+            if (stage.authenticated) {
+                authenticated.add(stage);
+                continue;
+            }
+            if (innerFailure != null && !stage.sender) {
+                continue;
+            }
+            if (PARALLEL_CHECKS && stage.cost >= CHEAP) {
+                expensive.add(stage);
+            } else if (!passes(stage.check)) {
+                if (stage.sender) {
+                    return reject(stage, OUTER_FAILED);
+                }
+                innerFailure = stage;
+            }
+        }
+        if (!expensive.isEmpty()) {
+            List<Stage> senderStages = new ArrayList<>();
+            List<Stage> innerStages = new ArrayList<>();
+            for (Stage stage : expensive) {
+                if (stage.sender) {
+                    senderStages.add(stage);
+                } else if (innerFailure == null) {
+                    innerStages.add(stage);
+                }
+            }
+            List<CompletableFuture<Boolean>> senderChecks = submit(senderStages);
+            List<CompletableFuture<Boolean>> innerChecks = submit(innerStages);
+            Stage senderFailure = firstFailure(senderStages, senderChecks);
+            if (senderFailure != null) {
+                senderChecks.forEach(future -> future.cancel(false));
+                innerChecks.forEach(future -> future.cancel(false));
+                return reject(senderFailure, OUTER_FAILED);
+            }
+            for (int index = 0; index < innerChecks.size() && innerFailure == null; index++) {
+                if (!result(innerChecks.get(index))) {
+                    innerFailure = innerStages.get(index);
+                }
+            }
+        }
+        for (int index = 0; index < authenticated.size() && innerFailure == null; index++) {
+            if (!passes(authenticated.get(index).check)) {
+                innerFailure = authenticated.get(index);
+            }
+        }
+        return innerFailure == null ? VALID : reject(innerFailure, INNER_FAILED);
+    }
+
+    /**
+     * Checks that an answer carries the time of a query sent after the receiver was started, so an answer to an
+     * earlier query is rejected before any signature is checked. The time of a {@link SignedEnvelope} is not covered
+     * by its signature, so this only drops stale answers cheaply and does not stop a replay.
+     *
+     * @param time  the time of the query as given in the answer
+     * @param since when the receiver of the answer was started
+     * @return <code>true</code> if the time is of the current query
+     * <code>false</code> if it is older, in the future or not a time
+     */
+    public static boolean isCurrent(String time, long since) {
+        try {
+            long sent = Long.parseLong(time);
+            return sent >= since && sent <= System.currentTimeMillis();
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Gives the counts of rejected answers by the stage that rejected them.
+     *
+     * @return <code>DropCounter</code> the counts by stage
+     */
+    public static DropCounter getRejects() {
+        return rejects;
+    }
+
+    private static int reject(Stage stage, int validity) {
+        rejects.addDrop(stage.name);
+        return validity;
+    }
+
+    private static List<CompletableFuture<Boolean>> submit(List<Stage> stages) {
+        List<CompletableFuture<Boolean>> futures = new ArrayList<>();
+        for (Stage stage : stages) {
+            futures.add(CompletableFuture.supplyAsync(() -> passes(stage.check), checks));
+        }
+        return futures;
+    }
+
+    /**
+     * Waits until all checks passed or one failed, whichever comes first.
+     */
+    private static Stage firstFailure(List<Stage> stages, List<CompletableFuture<Boolean>> futures) {
+        if (futures.isEmpty()) {
+            return null;
+        }
+        CompletableFuture<Stage> failure = new CompletableFuture<>();
+        AtomicInteger remaining = new AtomicInteger(futures.size());
+        for (int index = 0; index < futures.size(); index++) {
+            Stage stage = stages.get(index);
+            futures.get(index).thenAccept(passed -> {
+                if (!passed) {
+                    failure.complete(stage);
+                } else if (remaining.decrementAndGet() == 0) {
+                    failure.complete(null);
+                }
+            });
+        }
+        try {
+            return failure.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return stages.get(0);
+        } catch (ExecutionException e) {
+            return stages.get(0);
+        }
+    }
+
+    private static boolean passes(Callable<Boolean> check) {
+        try {
+            return Boolean.TRUE.equals(check.call());
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    private static boolean result(CompletableFuture<Boolean> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException | CancellationException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Checks the order of the stages and what a failed stage costs, and compares a revoked sender rejected by the CRL
+     * lookup with one rejected by its signature. With <code>-Dv2x.parallelChecks=true</code> it also checks that a
+     * failed signature cancels the other checks and compares two signature checks one after the other and at the same
+     * time.
+     */
+    public static void main(String[] args) {
+        try {
+            AtomicInteger signatureChecks = new AtomicInteger();
+            Callable<Boolean> signature = () -> {
+                signatureChecks.incrementAndGet();
+                return true;
+            };
+            System.out.println("Expected: " + OUTER_FAILED + " Actual: " + check(
+                    Stage.sender("signature", SIGNATURE_COST, signature),
+                    Stage.sender("revoked", LOOKUP_COST, () -> false)));
+            System.out.println("Expected: " + 0 + " Actual: " + signatureChecks.get());
+            System.out.println("Expected: " + INNER_FAILED + " Actual: " + check(
+                    Stage.sender("signature", SIGNATURE_COST, signature),
+                    Stage.inner("bloom filter", LOOKUP_COST, () -> false),
+                    Stage.inner("inner signature", SIGNATURE_COST, signature)));
+            System.out.println("Expected: " + 1 + " Actual: " + signatureChecks.get());
+            System.out.println("Expected: " + OUTER_FAILED + " Actual: " + check(
+                    Stage.sender("signature", SIGNATURE_COST, () -> false),
+                    Stage.inner("bloom filter", LOOKUP_COST, () -> false)));
+            System.out.println("Expected: " + VALID + " Actual: " + check(
+                    Stage.sender("signature", SIGNATURE_COST, signature),
+                    Stage.inner("inner signature", SIGNATURE_COST, signature)));
+            AtomicInteger payloadChecks = new AtomicInteger();
+            System.out.println("Expected: " + OUTER_FAILED + " Actual: " + check(
+                    Stage.sender("signature", SIGNATURE_COST, () -> false),
+                    Stage.authenticated("bloom filter", LOOKUP_COST, () -> payloadChecks.incrementAndGet() > 0)));
+            System.out.println("Expected: " + 0 + " Actual: " + payloadChecks.get());
+            System.out.println("Expected: " + 1 + " Actual: " + getRejects().getDrops("revoked"));
+
+            PrivateKey privateKey = CredentialStore.getPrivateKey(Querier.OWN_PRIVATE_KEY_LOCATION);
+            PublicKey publicKey = CredentialStore.getPublicKey(Querier.OWN_CERTIFICATE_LOCATION);
+            byte[] message = "Answer".getBytes();
+            byte[] signed = AuthenticationFunctions.sign(message, 0, message.length, privateKey);
+            Callable<Boolean> signatureCheck = () -> AuthenticationFunctions.verify(message, 0, message.length,
+                    signed, 0, signed.length, publicKey);
+            Set<String> revoked = new HashSet<>(Collections.singleton("revoked"));
+            int iterations = 500;
+            long lookupTime = 0;
+            long signatureTime = 0;
+            for (int round = 0; round < 2; round++) {
+                long start = System.nanoTime();
+                for (int i = 0; i < iterations; i++) {
+                    check(Stage.sender("signature", SIGNATURE_COST, signatureCheck),
+                            Stage.sender("revoked", LOOKUP_COST, () -> !revoked.contains("revoked")));
+                }
+                lookupTime = System.nanoTime() - start;
+                start = System.nanoTime();
+                for (int i = 0; i < iterations; i++) {
+                    check(Stage.sender("signature", SIGNATURE_COST, signatureCheck),
+                            Stage.sender("revoked", SIGNATURE_COST + 1, () -> !revoked.contains("revoked")));
+                }
+                signatureTime = System.nanoTime() - start;
+            }
+            System.out.println("revoked sender rejected by the lookup: " + lookupTime / iterations / 1000
+                    + " us, after the signature: " + signatureTime / iterations / 1000 + " us");
+
+            if (!PARALLEL_CHECKS) {
+                return;
+            }
+            Callable<Boolean> slow = () -> {
+                Thread.sleep(300);
+                return true;
+            };
+            long start = System.currentTimeMillis();
+            System.out.println("Expected: " + OUTER_FAILED + " Actual: " + check(
+                    Stage.sender("signature", SIGNATURE_COST, () -> false),
+                    Stage.sender("revoked", SIGNATURE_COST, slow),
+                    Stage.inner("inner signature", SIGNATURE_COST, slow)));
+            System.out.println("Expected: " + true + " Actual: " + (System.currentTimeMillis() - start < 200));
+
+            long sequentialTime = 0;
+            long parallelTime = 0;
+            for (int round = 0; round < 2; round++) {
+                start = System.nanoTime();
+                for (int i = 0; i < iterations; i++) {
+                    if (!signatureCheck.call() || !signatureCheck.call()) {
+                        System.out.println("signature check failed");
+                    }
+                }
+                sequentialTime = System.nanoTime() - start;
+                start = System.nanoTime();
+                for (int i = 0; i < iterations; i++) {
+                    if (check(Stage.sender("signature", SIGNATURE_COST, signatureCheck),
+                            Stage.inner("inner signature", SIGNATURE_COST, signatureCheck)) != VALID) {
+                        System.out.println("parallel check failed");
+                    }
+                }
+                parallelTime = System.nanoTime() - start;
+            }
+            System.out.println("two signature checks one after the other: " + sequentialTime / iterations / 1000
+                    + " us, at the same time: " + parallelTime / iterations / 1000 + " us");
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -45,7 +45,7 @@ public class AnswerCounter {
      *
      * @param answer a string of the answer received
      */
-    public void addAnswer(String answer) {
+    public synchronized void addAnswer(String answer) {
         int answerInt = Integer.parseInt(answer);
 
         switch (answerInt) {
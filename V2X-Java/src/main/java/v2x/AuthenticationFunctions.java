@@ -1,13 +1,13 @@
 package v2x;
 
-import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
-import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
 import javax.crypto.NoSuchPaddingException;
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
-import java.nio.file.StandardOpenOption;
 import java.security.*;
 import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
@@ -18,6 +18,25 @@ import java.util.Base64;
 import java.util.List;
 
 public class AuthenticationFunctions {
+    static final EnginePool<MessageDigest, NoSuchAlgorithmException> DIGESTS =
+            new EnginePool<>(MessageDigest::getInstance);
+    static final EnginePool<Cipher, NoSuchAlgorithmException> CIPHERS = new EnginePool<>(transformation -> {
+        try {
+            return Cipher.getInstance(transformation);
+        } catch (NoSuchPaddingException e) {
+            throw new NoSuchAlgorithmException(transformation, e);
+        }
+    });
+    static final EnginePool<Signature, NoSuchAlgorithmException> SIGNATURES =
+            new EnginePool<>(Signature::getInstance);
+    static final EnginePool<KeyFactory, NoSuchAlgorithmException> KEY_FACTORIES =
+            new EnginePool<>(KeyFactory::getInstance);
+    static final EnginePool<CertificateFactory, CertificateException> CERTIFICATE_FACTORIES =
+            new EnginePool<>(CertificateFactory::getInstance);
+    static final EnginePool<Mac, NoSuchAlgorithmException> MACS = new EnginePool<>(Mac::getInstance);
+    static final EnginePool<KeyAgreement, NoSuchAlgorithmException> KEY_AGREEMENTS =
+            new EnginePool<>(KeyAgreement::getInstance);
+
     /**
      * Takes in a location and gets the BF as a DNSBloomFilter object
      *
@@ -50,14 +69,13 @@ public class AuthenticationFunctions {
      */
     public static String getCertificate(String location) throws IOException {
         File userFile = new File(location);
-        InputStream userInputStream = new FileInputStream(userFile);
-        byte[] userCertificateByte = Base64.getEncoder().encode(userInputStream.readAllBytes());
+        byte[] userCertificateByte = Base64.getEncoder().encode(Files.readAllBytes(userFile.toPath()));
         String userCertificateString = new String(userCertificateByte);
         return userCertificateString;
     }
 
     /**
-     * Takes in a location and gets the private key.
+     * Takes in a location and gets the private key. The key may belong to any {@link SignatureScheme}.
      *
      * @param location a string of the location of the private key
      * @return <code>PrivateKey</code> a private key
@@ -70,10 +88,21 @@ public class AuthenticationFunctions {
         File keyFile = new File(location);
         byte[] keyByte = Files.readAllBytes(keyFile.toPath());
         PKCS8EncodedKeySpec keyPKCS8 = new PKCS8EncodedKeySpec(keyByte);
-        KeyFactory keyFactory = KeyFactory.getInstance("RSA");
-        PrivateKey userPrivateKey = keyFactory.generatePrivate(keyPKCS8);
-
-        return userPrivateKey;
+        InvalidKeySpecException invalidKeySpecException = null;
+        for (SignatureScheme scheme : new SignatureScheme[]{SignatureScheme.getSelected(), SignatureScheme.RSA,
+                SignatureScheme.ECDSA, SignatureScheme.ED25519}) {
+            try {
+                KeyFactory keyFactory = KEY_FACTORIES.acquire(scheme.getKeyAlgorithm());
+                PrivateKey userPrivateKey = keyFactory.generatePrivate(keyPKCS8);
+                KEY_FACTORIES.release(scheme.getKeyAlgorithm(), keyFactory);
+                return userPrivateKey;
+            } catch (InvalidKeySpecException e) {
+                invalidKeySpecException = e;
+            } catch (NoSuchAlgorithmException e) {
+                // the runtime does not know the scheme, e.g. Ed25519 before Java 15
+            }
+        }
+        throw invalidKeySpecException;
     }
 
     /**
@@ -86,8 +115,9 @@ public class AuthenticationFunctions {
     public static PublicKey getPublicKey(String certificate) throws CertificateException {
         byte[] userCertificateByteArray = Base64.getDecoder().decode(certificate);
         InputStream inputStream = new ByteArrayInputStream(userCertificateByteArray);
-        CertificateFactory certificateFactory = CertificateFactory.getInstance("X.509");
+        CertificateFactory certificateFactory = CERTIFICATE_FACTORIES.acquire("X.509");
         X509Certificate userCertificate = (X509Certificate) certificateFactory.generateCertificate(inputStream);
+        CERTIFICATE_FACTORIES.release("X.509", certificateFactory);
         PublicKey userPublicKey = userCertificate.getPublicKey();
 
         return userPublicKey;
@@ -105,12 +135,27 @@ public class AuthenticationFunctions {
      */
     public static boolean verifyCertificate(String certificate, String caLocation)
             throws CertificateException, IOException {
-        String caCertificate = getCertificate(caLocation);
-        PublicKey caPublicKey = getPublicKey(caCertificate);
         byte[] userCertificateByteArray = Base64.getDecoder().decode(certificate);
         InputStream inputStream = new ByteArrayInputStream(userCertificateByteArray);
-        CertificateFactory certificateFactory = CertificateFactory.getInstance("X.509");
+        CertificateFactory certificateFactory = CERTIFICATE_FACTORIES.acquire("X.509");
         X509Certificate userCertificate = (X509Certificate) certificateFactory.generateCertificate(inputStream);
+        CERTIFICATE_FACTORIES.release("X.509", certificateFactory);
+        return verifyCertificate(userCertificate, caLocation);
+    }
+
+    /**
+     * Verifies a parsed certificate with a CA certificate.
+     *
+     * @param userCertificate a parsed certificate
+     * @param caLocation      a string of the location of the CA certificate
+     * @return <code>true</code> if certificate is valid
+     * <code>false</code> if certificate invalid
+     * @throws CertificateException
+     * @throws IOException
+     */
+    public static boolean verifyCertificate(X509Certificate userCertificate, String caLocation)
+            throws CertificateException, IOException {
+        PublicKey caPublicKey = CredentialStore.getPublicKey(caLocation);
         try {
             userCertificate.verify(caPublicKey);
             userCertificate.checkValidity();
@@ -121,130 +166,337 @@ public class AuthenticationFunctions {
     }
 
     /**
-     * Hashes a string with sha-256 and returns it.
+     * Hashes part of a byte array with sha-256.
      *
-     * @param message a string to be hashed
-     * @return <code>String</code> the hash of the message
+     * @param message a byte array holding the bytes to be hashed
+     * @param offset  where the bytes start
+     * @param length  how many bytes to hash
+     * @return <code>byte[]</code> the raw digest
      * @throws NoSuchAlgorithmException
      */
-    public static String hashMessage(String message) throws NoSuchAlgorithmException {
-        MessageDigest digest = MessageDigest.getInstance("SHA-256");
-        byte[] hash = digest.digest(message.getBytes(StandardCharsets.UTF_8));
-        String hashMessage = new String(hash);
-        return hashMessage;
+    public static byte[] hash(byte[] message, int offset, int length) throws NoSuchAlgorithmException {
+        MessageDigest digest = DIGESTS.acquire("SHA-256");
+        digest.update(message, offset, length);
+        byte[] hash = digest.digest();
+        DIGESTS.release("SHA-256", digest);
+        return hash;
     }
 
     /**
-     * Encrypts the message with RSA using a private key.
+     * Signs part of a byte array with the {@link SignatureScheme} of the private key.
      *
-     * @param message        a string with the message to be encrypted
-     * @param userPrivateKey a private key to encrypt with
-     * @return <code>String</code> a base64 encrypted string
-     * @throws NoSuchPaddingException
-     * @throws NoSuchAlgorithmException
-     * @throws InvalidKeyException
-     * @throws BadPaddingException
-     * @throws IllegalBlockSizeException
+     * @param message    a byte array holding the bytes to be signed
+     * @param offset     where the bytes start
+     * @param length     how many bytes to sign
+     * @param privateKey a private key to sign with
+     * @return <code>byte[]</code> the raw signature
+     * @throws GeneralSecurityException
      */
-    public static String encryptMessage(String message, PrivateKey userPrivateKey)
-            throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidKeyException,
-            BadPaddingException, IllegalBlockSizeException {
-        Cipher cipher = Cipher.getInstance("RSA/ECB/PKCS1Padding");
-        cipher.init(Cipher.ENCRYPT_MODE, userPrivateKey);
-        byte[] encrypted = cipher.doFinal(message.getBytes());
-        byte[] encryptedBase64 = Base64.getEncoder().encode(encrypted);
-        String encryptedMessage = new String(encryptedBase64);
-        return encryptedMessage;
+    public static byte[] sign(byte[] message, int offset, int length, PrivateKey privateKey)
+            throws GeneralSecurityException {
+        return SignatureScheme.forKey(privateKey).sign(message, offset, length, privateKey);
     }
 
     /**
-     * Decrypts the message with RSA using a public key.
+     * Signs the remaining bytes of a buffer with the {@link SignatureScheme} of the private key. The position of the
+     * buffer is not changed.
      *
-     * @param message       a base64 encrypted string with the message
-     * @param userPublicKey a public key to decrypt with
-     * @return <code>String</code> a decoded and decrypted string
-     * @throws NoSuchPaddingException
-     * @throws NoSuchAlgorithmException
-     * @throws InvalidKeyException
-     * @throws BadPaddingException
-     * @throws IllegalBlockSizeException
+     * @param message    a buffer holding the bytes to be signed
+     * @param privateKey a private key to sign with
+     * @return <code>byte[]</code> the raw signature
+     * @throws GeneralSecurityException
+     */
+    public static byte[] sign(ByteBuffer message, PrivateKey privateKey) throws GeneralSecurityException {
+        if (message.hasArray()) {
+            return sign(message.array(), message.arrayOffset() + message.position(), message.remaining(),
+                    privateKey);
+        }
+        byte[] bytes = new byte[message.remaining()];
+        message.duplicate().get(bytes);
+        return sign(bytes, 0, bytes.length, privateKey);
+    }
+
+    /**
+     * Checks a raw signature over part of a byte array with the {@link SignatureScheme} of the public key. Digests are
+     * compared in constant time.
+     *
+     * @param message         a byte array holding the bytes that were signed
+     * @param offset          where the signed bytes start
+     * @param length          how many bytes were signed
+     * @param signature       a byte array holding the signature
+     * @param signatureOffset where the signature starts
+     * @param signatureLength how long the signature is
+     * @param publicKey       the public key of the signer
+     * @return <code>true</code> if the signature is correct
+     * <code>false</code> if it is not
+     * @throws GeneralSecurityException
+     */
+    public static boolean verify(byte[] message, int offset, int length, byte[] signature, int signatureOffset,
+                                 int signatureLength, PublicKey publicKey) throws GeneralSecurityException {
+        return SignatureScheme.forKey(publicKey).verify(message, offset, length, signature, signatureOffset,
+                signatureLength, publicKey);
+    }
+
+    /**
+     * Checks a raw signature over the remaining bytes of a buffer. The positions of the buffers are not changed.
+     *
+     * @param message   a buffer holding the bytes that were signed
+     * @param signature a buffer holding the signature
+     * @param publicKey the public key of the signer
+     * @return <code>true</code> if the signature is correct
+     * <code>false</code> if it is not
+     * @throws GeneralSecurityException
+     */
+    public static boolean verify(ByteBuffer message, ByteBuffer signature, PublicKey publicKey)
+            throws GeneralSecurityException {
+        byte[] messageBytes = message.hasArray() ? message.array() : toArray(message);
+        int offset = message.hasArray() ? message.arrayOffset() + message.position() : 0;
+        byte[] signatureBytes = signature.hasArray() ? signature.array() : toArray(signature);
+        int signatureOffset = signature.hasArray() ? signature.arrayOffset() + signature.position() : 0;
+        return verify(messageBytes, offset, message.remaining(), signatureBytes, signatureOffset,
+                signature.remaining(), publicKey);
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Decodes a base64 signature from a message field.
+     *
+     * @param signature the base64 signature
+     * @return <code>byte[]</code> the raw signature, or <code>null</code> if it is missing or not base64
+     */
+    public static byte[] decodeSignature(String signature) {
+        if (signature == null) {
+            return null;
+        }
+        try {
+            return Base64.getDecoder().decode(signature);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Signs a message with the {@link SignatureScheme} of the private key.
+     *
+     * @param message    a string with the message to be signed
+     * @param privateKey a private key to sign with
+     * @return <code>String</code> a base64 signature
+     * @throws GeneralSecurityException
+     */
+    public static String signMessage(String message, PrivateKey privateKey) throws GeneralSecurityException {
+        byte[] messageBytes = message.getBytes(StandardCharsets.UTF_8);
+        return signMessage(messageBytes, 0, messageBytes.length, privateKey);
+    }
+
+    /**
+     * Signs part of a byte array with the {@link SignatureScheme} of the private key.
+     *
+     * @param message    a byte array holding the bytes to be signed
+     * @param offset     where the bytes start
+     * @param length     how many bytes to sign
+     * @param privateKey a private key to sign with
+     * @return <code>String</code> a base64 signature
+     * @throws GeneralSecurityException
+     */
+    public static String signMessage(byte[] message, int offset, int length, PrivateKey privateKey)
+            throws GeneralSecurityException {
+        return Base64.getEncoder().encodeToString(sign(message, offset, length, privateKey));
+    }
+
+    /**
+     * Checks the signature of a message with the {@link SignatureScheme} of the public key.
+     *
+     * @param message   the message that was signed
+     * @param signature the base64 signature that is given
+     * @param publicKey the public key of the signer
+     * @return <code>true</code> if the signature is correct
+     * <code>false</code> if it is not
+     * @throws GeneralSecurityException
+     */
+    public static boolean verifyMessage(String message, String signature, PublicKey publicKey)
+            throws GeneralSecurityException {
+        byte[] messageBytes = message.getBytes(StandardCharsets.UTF_8);
+        return verifyMessage(messageBytes, 0, messageBytes.length, signature, publicKey);
+    }
+
+    /**
+     * Checks the signature of part of a byte array with the {@link SignatureScheme} of the public key.
+     *
+     * @param message   a byte array holding the bytes that were signed
+     * @param offset    where the signed bytes start
+     * @param length    how many bytes were signed
+     * @param signature the base64 signature that is given
+     * @param publicKey the public key of the signer
+     * @return <code>true</code> if the signature is correct
+     * <code>false</code> if it is not
+     * @throws GeneralSecurityException
      */
-    public static String decryptMessage(String message, PublicKey userPublicKey)
-            throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidKeyException, BadPaddingException,
-            IllegalBlockSizeException {
-        byte[] messageByte = Base64.getDecoder().decode(message);
-        Cipher cipher = Cipher.getInstance("RSA/ECB/PKCS1Padding");
-        cipher.init(Cipher.DECRYPT_MODE, userPublicKey);
-        byte[] decrypted = cipher.doFinal(messageByte);
-        String decryptedMessage = new String(decrypted);
-        return decryptedMessage;
+    public static boolean verifyMessage(byte[] message, int offset, int length, String signature,
+                                        PublicKey publicKey) throws GeneralSecurityException {
+        byte[] signatureBytes = decodeSignature(signature);
+        if (signatureBytes == null) {
+            return false;
+        }
+        return verify(message, offset, length, signatureBytes, 0, signatureBytes.length, publicKey);
     }
 
     /**
-     * Authenticates a message by checking the certificate and seeing is the encrypted hash is correct.
+     * Authenticates a message by checking the certificate and seeing is the signature is correct.
      *
      * @param message       the message to checked with
-     * @param encryptedHash the hash that is given
+     * @param encryptedHash the signature that is given
      * @param certificate   the certificate that is given
      * @param caLocation    the location of the CA certificate
      * @return <code>true</code> if the message is authenticated
      * <code>false</code> if the message is not authenticated
-     * @throws NoSuchAlgorithmException
-     * @throws CertificateException
+     * @throws GeneralSecurityException
      * @throws IOException
-     * @throws IllegalBlockSizeException
-     * @throws InvalidKeyException
-     * @throws BadPaddingException
-     * @throws NoSuchPaddingException
      */
     public static boolean authenticateMessage(String message, String encryptedHash,
                                               String certificate, String caLocation)
-            throws NoSuchAlgorithmException, CertificateException, IOException, IllegalBlockSizeException,
-            InvalidKeyException, BadPaddingException, NoSuchPaddingException {
-        String calculatedHash = hashMessage(message);
-        PublicKey publicKey = getPublicKey(certificate);
-        String decryptedHash = decryptMessage(encryptedHash, publicKey);
-        boolean certificateVerification = verifyCertificate(certificate, caLocation);
-        if (certificateVerification && calculatedHash.equals(decryptedHash)) {
-            return true;
-        } else {
+            throws GeneralSecurityException, IOException {
+        PublicKey publicKey = VerifiedKeyCache.getPublicKey(certificate, caLocation);
+        if (publicKey == null) {
+            return false;
+        }
+        return verifyMessage(message, encryptedHash, publicKey);
+    }
+
+    /**
+     * Authenticates raw bytes by checking the certificate and seeing is the signature is correct.
+     *
+     * @param message       a byte array holding the bytes that were signed
+     * @param offset        where the signed bytes start
+     * @param length        how many bytes were signed
+     * @param encryptedHash the signature that is given
+     * @param certificate   the certificate that is given
+     * @param caLocation    the location of the CA certificate
+     * @return <code>true</code> if the bytes are authenticated
+     * <code>false</code> if the bytes are not authenticated
+     * @throws GeneralSecurityException
+     * @throws IOException
+     */
+    public static boolean authenticateMessage(byte[] message, int offset, int length, String encryptedHash,
+                                              String certificate, String caLocation)
+            throws GeneralSecurityException, IOException {
+        PublicKey publicKey = VerifiedKeyCache.getPublicKey(certificate, caLocation);
+        if (publicKey == null) {
             return false;
         }
+        return verifyMessage(message, offset, length, encryptedHash, publicKey);
+    }
+
+    /**
+     * Authenticates a message with a certificate that has already been parsed.
+     *
+     * @param message       the message to checked with
+     * @param encryptedHash the signature that is given
+     * @param certificate   the parsed certificate of the sender
+     * @param caLocation    the location of the CA certificate
+     * @return <code>true</code> if the message is authenticated
+     * <code>false</code> if the message is not authenticated
+     * @throws GeneralSecurityException
+     * @throws IOException
+     */
+    public static boolean authenticateMessage(String message, String encryptedHash,
+                                              CertificateCache.CachedCertificate certificate, String caLocation)
+            throws GeneralSecurityException, IOException {
+        PublicKey publicKey = VerifiedKeyCache.getPublicKey(certificate, caLocation);
+        if (publicKey == null) {
+            return false;
+        }
+        return verifyMessage(message, encryptedHash, publicKey);
+    }
+
+    /**
+     * Authenticates raw bytes with a certificate that has already been parsed.
+     *
+     * @param message       a byte array holding the bytes that were signed
+     * @param offset        where the signed bytes start
+     * @param length        how many bytes were signed
+     * @param encryptedHash the signature that is given
+     * @param certificate   the parsed certificate of the sender
+     * @param caLocation    the location of the CA certificate
+     * @return <code>true</code> if the bytes are authenticated
+     * <code>false</code> if the bytes are not authenticated
+     * @throws GeneralSecurityException
+     * @throws IOException
+     */
+    public static boolean authenticateMessage(byte[] message, int offset, int length, String encryptedHash,
+                                              CertificateCache.CachedCertificate certificate, String caLocation)
+            throws GeneralSecurityException, IOException {
+        PublicKey publicKey = VerifiedKeyCache.getPublicKey(certificate, caLocation);
+        if (publicKey == null) {
+            return false;
+        }
+        return verifyMessage(message, offset, length, encryptedHash, publicKey);
+    }
+
+    /**
+     * Authenticates raw bytes with a raw signature and a certificate that has already been parsed.
+     *
+     * @param message         a byte array holding the bytes that were signed
+     * @param offset          where the signed bytes start
+     * @param length          how many bytes were signed
+     * @param signature       a byte array holding the signature
+     * @param signatureOffset where the signature starts
+     * @param signatureLength how long the signature is
+     * @param certificate     the parsed certificate of the sender
+     * @param caLocation      the location of the CA certificate
+     * @return <code>true</code> if the bytes are authenticated
+     * <code>false</code> if the bytes are not authenticated
+     * @throws GeneralSecurityException
+     * @throws IOException
+     */
+    public static boolean authenticateMessage(byte[] message, int offset, int length, byte[] signature,
+                                              int signatureOffset, int signatureLength,
+                                              CertificateCache.CachedCertificate certificate, String caLocation)
+            throws GeneralSecurityException, IOException {
+        if (signature == null) {
+            return false;
+        }
+        PublicKey publicKey = VerifiedKeyCache.getPublicKey(certificate, caLocation);
+        if (publicKey == null) {
+            return false;
+        }
+        return verify(message, offset, length, signature, signatureOffset, signatureLength, publicKey);
     }
 
     public static void test() {
     }
 
     /**
-     * Checks a list of certificate strings for a match with the provided certificate
+     * Checks the CRL for a match with the provided certificate, using the in-memory index of the CRL
      *
      * @param certificate the certificate to be checked
-     * @param crllocation an array of certificates
+     * @param crllocation a string of the location of the CRL
      * @return <code>true</code> if the certificate is revocated
      * <code>false</code> if the certificate is fine
      * @throws IOException
      */
     public static boolean checkRevocatedCertificate(String certificate, String crllocation) throws IOException {
-        List<String> crl = getCertificateRevocationList(crllocation);
-        for (String pseudonym : crl) {
-            if (pseudonym.equals(certificate)) {
-                return true;
-            }
-        }
-        return false;
+        return RevocationIndex.isRevoked(certificate, crllocation);
     }
 
     /**
-     * Appends given certificate to the end of the CRL file
+     * Appends given certificate to the end of the CRL file and forgets that it was verified or pinned. The
+     * certificate is revoked in memory right away and written to the file by {@link CRLWriter}. The authority takes
+     * the linkage value of a pseudonym from the CRL to revoke every pseudonym of the vehicle, see
+     * {@link PseudonymAuthority#revokeLinked(String)}
      *
      * @param certificate the certificate to be added to the CRL
      * @param crllocation a string of the location of the CRL
      * @throws IOException
      */
-    public static void addToCRL(String certificate, String crllocation) throws IOException {
-        File crlFile = new File(crllocation);
-        Files.write(crlFile.toPath(), certificate.getBytes(), StandardOpenOption.APPEND);
-        Files.write(crlFile.toPath(), "\n".getBytes(), StandardOpenOption.APPEND);
+    public static synchronized void addToCRL(String certificate, String crllocation) throws IOException {
+        VerifiedKeyCache.invalidate(certificate);
+        TrustAnchors.revoke(certificate);
+        RevocationIndex.add(certificate, crllocation);
     }
 
     /**
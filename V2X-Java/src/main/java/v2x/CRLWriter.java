@@ -0,0 +1,257 @@
+package v2x;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Writes CRL lines on one background thread, so revoking a certificate does no file I/O on the thread that verified
+ * the answer. Lines that were queued while a batch was written are written together in the next batch, with one
+ * write per CRL and, with <code>-Dv2x.crlSync=true</code>, one fsync. Only this thread appends to the CRLs in this
+ * process, and every batch is one append, so lines are not torn by concurrent writes of this process or of the
+ * authority, which appends linkage seeds to the same CRL. Lines that are queued but not written yet are given by
+ * {@link #getUnwritten(String)}, so a CRL read from disk in the meantime can still include them. Lines that could not
+ * be written stay unwritten and are written again every {@link #RETRY_DELAY} ms.
+ */
+public class CRLWriter {
+    static final boolean SYNC = Boolean.getBoolean("v2x.crlSync");
+    static final int FLUSH_TIMEOUT = 5000;
+    static final int RETRY_DELAY = 100;
+
+    private static final BlockingQueue<String[]> queue = new LinkedBlockingQueue<>();
+    private static final Map<String, List<String>> unwritten = new ConcurrentHashMap<>();
+    private static final AtomicInteger batches = new AtomicInteger();
+    private static long queued = 0;
+    private static long written = 0;
+    private static int failing = 0;
+
+    static {
+        Thread writer = new Thread(CRLWriter::writeBatches, "crl-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> flush(FLUSH_TIMEOUT)));
+    }
+
+    /**
+     * Queues a line to be appended to a CRL.
+     *
+     * @param crlLocation a string of the location of the CRL
+     * @param line        the line without a line break
+     */
+    public static void append(String crlLocation, String line) {
+        synchronized (CRLWriter.class) {
+            unwritten.computeIfAbsent(crlLocation, location -> new ArrayList<>()).add(line);
+            queued++;
+        }
+        queue.add(new String[]{crlLocation, line});
+    }
+
+    /**
+     * Gives the lines of a CRL that are queued but not written yet.
+     *
+     * @param crlLocation a string of the location of the CRL
+     * @return <code>List</code> a copy of the lines
+     */
+    public static synchronized List<String> getUnwritten(String crlLocation) {
+        List<String> lines = unwritten.get(crlLocation);
+        return lines == null ? new ArrayList<>() : new ArrayList<>(lines);
+    }
+
+    /**
+     * Waits until every line queued so far is written and no line is waiting to be written again.
+     *
+     * @param timeout how long to wait at most in ms
+     * @return <code>true</code> if the lines are written
+     * <code>false</code> if the time ran out, e.g. because a CRL cannot be written
+     */
+    public static synchronized boolean flush(long timeout) {
+        long target = queued;
+        long deadline = System.currentTimeMillis() + timeout;
+        try {
+            while ((written < target || failing > 0) && System.currentTimeMillis() < deadline) {
+                CRLWriter.class.wait(Math.max(1, deadline - System.currentTimeMillis()));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return written >= target && failing == 0;
+    }
+
+    /**
+     * Gives how many batches were written.
+     *
+     * @return <code>int</code> the number of batches
+     */
+    public static int getBatches() {
+        return batches.get();
+    }
+
+    private static void writeBatches() {
+        List<String[]> batch = new ArrayList<>();
+        Set<String> failed = new HashSet<>();
+        while (true) {
+            try {
+                if (batch.isEmpty()) {
+                    batch.add(queue.take());
+                } else {
+                    // the lines that could not be written are written again, before the lines queued since
+                    Thread.sleep(RETRY_DELAY);
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch);
+            Map<String, StringBuilder> lines = new LinkedHashMap<>();
+            for (String[] line : batch) {
+                lines.computeIfAbsent(line[0], location -> new StringBuilder()).append(line[1]).append('\n');
+            }
+            Set<String> failedBefore = failed;
+            failed = new HashSet<>();
+            for (Map.Entry<String, StringBuilder> crl : lines.entrySet()) {
+                try {
+                    write(Paths.get(crl.getKey()), crl.getValue());
+                } catch (IOException e) {
+                    if (!failedBefore.contains(crl.getKey())) {
+                        System.out.println("could not write to " + crl.getKey());
+                        e.printStackTrace();
+                    }
+                    failed.add(crl.getKey());
+                }
+            }
+            batches.incrementAndGet();
+            List<String[]> retry = new ArrayList<>();
+            synchronized (CRLWriter.class) {
+                for (String[] line : batch) {
+                    if (failed.contains(line[0])) {
+                        retry.add(line);
+                    } else {
+                        unwritten.get(line[0]).remove(line[1]);
+                        written++;
+                    }
+                }
+                failing = retry.size();
+                CRLWriter.class.notifyAll();
+            }
+            batch = retry;
+        }
+    }
+
+    /**
+     * Appends lines to a CRL. If only part of them could be written, e.g. because the disk is full, the CRL is cut
+     * back to where it ended, so the lines written again later do not follow a torn line. It is not cut if something
+     * else appended to it in the meantime.
+     */
+    private static void write(Path crl, CharSequence lines) throws IOException {
+        ByteBuffer buffer = StandardCharsets.UTF_8.encode(lines.toString());
+        try (FileChannel channel = FileChannel.open(crl, StandardOpenOption.WRITE, StandardOpenOption.APPEND,
+                StandardOpenOption.CREATE)) {
+            long end = channel.size();
+            try {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                if (SYNC) {
+                    channel.force(false);
+                }
+            } catch (IOException e) {
+                try {
+                    if (channel.size() == end + buffer.position()) {
+                        channel.truncate(end);
+                    }
+                } catch (IOException truncateException) {
+                    e.addSuppressed(truncateException);
+                }
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Appends lines to a CRL from several threads at once and checks that every line is written whole, and compares
+     * the time a thread spends revoking with writing the line itself.
+     */
+    public static void main(String[] args) {
+        try {
+            String crlLocation = Paths.get(System.getProperty("java.io.tmpdir"), "v2x-crl-writer.crl").toString();
+            new PrintWriter(crlLocation).close();
+            String certificate = AuthenticationFunctions.getCertificate(Querier.OWN_CERTIFICATE_LOCATION);
+            int threads = 8;
+            int lines = 500;
+            Set<String> expected = ConcurrentHashMap.newKeySet();
+            List<Thread> revokers = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int thread = t;
+                revokers.add(new Thread(() -> {
+                    for (int i = 0; i < lines; i++) {
+                        String line = certificate + thread + "-" + i;
+                        expected.add(line);
+                        append(crlLocation, line);
+                    }
+                }));
+            }
+            for (Thread revoker : revokers) {
+                revoker.start();
+            }
+            for (Thread revoker : revokers) {
+                revoker.join();
+            }
+            System.out.println("Expected: " + true + " Actual: " + flush(FLUSH_TIMEOUT));
+            List<String> crl = Files.readAllLines(Paths.get(crlLocation));
+            System.out.println("Expected: " + threads * lines + " Actual: " + crl.size());
+            System.out.println("Expected: " + true + " Actual: " + expected.equals(new HashSet<>(crl)));
+            System.out.println("Expected: " + 0 + " Actual: " + getUnwritten(crlLocation).size());
+            System.out.println(threads * lines + " lines in " + getBatches() + " batches");
+
+            Path missing = Paths.get(System.getProperty("java.io.tmpdir"), "v2x-crl-writer", "missing.crl");
+            Files.deleteIfExists(missing);
+            Files.deleteIfExists(missing.getParent());
+            append(missing.toString(), certificate);
+            System.out.println("Expected: " + false + " Actual: " + flush(3 * RETRY_DELAY));
+            System.out.println("Expected: " + 1 + " Actual: " + getUnwritten(missing.toString()).size());
+            Files.createDirectories(missing.getParent());
+            System.out.println("Expected: " + true + " Actual: " + flush(FLUSH_TIMEOUT));
+            System.out.println("Expected: " + 1 + " Actual: " + Files.readAllLines(missing).size());
+            Files.delete(missing);
+
+            long queuedTime = 0;
+            long directTime = 0;
+            for (int round = 0; round < 3; round++) {
+                new PrintWriter(crlLocation).close();
+                long start = System.nanoTime();
+                for (int i = 0; i < lines; i++) {
+                    append(crlLocation, certificate + i);
+                }
+                queuedTime = System.nanoTime() - start;
+                flush(FLUSH_TIMEOUT);
+                new PrintWriter(crlLocation).close();
+                start = System.nanoTime();
+                for (int i = 0; i < lines; i++) {
+                    Files.write(Paths.get(crlLocation), (certificate + i + "\n").getBytes(),
+                            StandardOpenOption.APPEND);
+                }
+                directTime = System.nanoTime() - start;
+            }
+            System.out.println("revoking: " + queuedTime / lines + " ns queued, " + directTime / lines
+                    + " ns written on the calling thread");
+            Files.delete(Paths.get(crlLocation));
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,279 @@
+package v2x;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps parsed certificates by their SHA-256 digest and decides when a sender can refer to its certificate by
+ * digest instead of sending it in full, like the <code>digest</code> signer of IEEE 1609.2.
+ *
+ * With <code>-Dv2x.certificateDigest=true</code> a node sends its full certificate the first time it talks to a
+ * peer and only the digest after that. A receiver that does not know a digest asks for the certificate with a
+ * <code>CertificateRequest</code> field, after which the sender includes it again.
+ */
+public class CertificateCache {
+    static final boolean DIGEST_MODE = Boolean.getBoolean("v2x.certificateDigest");
+    static final int CACHE_SIZE = 256;
+    static final String MULTICAST_PEER = "225.0.0.0";
+
+    private static final Map<String, CachedCertificate> certificates = lruMap(CACHE_SIZE);
+    private static final Set<String> sentCertificates = Collections.newSetFromMap(lruMap(CACHE_SIZE));
+    private static final Set<String> requestedDigests = new LinkedHashSet<>();
+    private static String lastCertificate;
+    private static String lastDigest;
+
+    private static <V> Map<String, V> lruMap(int size) {
+        return new LinkedHashMap<String, V>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+                return size() > size;
+            }
+        };
+    }
+
+    /**
+     * A certificate together with its parsed form and public key.
+     */
+    public static class CachedCertificate {
+        private final String certificate;
+        private final String digest;
+        private final X509Certificate x509Certificate;
+        private final String linkageValue;
+
+        CachedCertificate(String certificate, String digest, X509Certificate x509Certificate) {
+            this.certificate = certificate;
+            this.digest = digest;
+            this.x509Certificate = x509Certificate;
+            this.linkageValue = PseudonymAuthority.getLinkageValue(x509Certificate);
+        }
+
+        public String getCertificate() {
+            return certificate;
+        }
+
+        public String getDigest() {
+            return digest;
+        }
+
+        public X509Certificate getX509Certificate() {
+            return x509Certificate;
+        }
+
+        public PublicKey getPublicKey() {
+            return x509Certificate.getPublicKey();
+        }
+
+        /**
+         * @return <code>String</code> the linkage value of the pseudonym, or <code>null</code> if it has none
+         */
+        public String getLinkageValue() {
+            return linkageValue;
+        }
+    }
+
+    /**
+     * Gives the Base64 SHA-256 digest of a certificate.
+     *
+     * @param certificate a base64 string representation of a certificate
+     * @return <code>String</code> the digest of the certificate
+     */
+    public static synchronized String digest(String certificate) {
+        if (certificate.equals(lastCertificate)) {
+            return lastDigest;
+        }
+        try {
+            MessageDigest messageDigest = AuthenticationFunctions.DIGESTS.acquire("SHA-256");
+            byte[] hash = messageDigest.digest(Base64.getDecoder().decode(certificate));
+            AuthenticationFunctions.DIGESTS.release("SHA-256", messageDigest);
+            lastCertificate = certificate;
+            lastDigest = Base64.getEncoder().encodeToString(hash);
+            return lastDigest;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Finds the certificate a message refers to. A full certificate is parsed once and kept for later messages
+     * that only carry its digest.
+     *
+     * @param certificate a base64 string representation of a certificate, or <code>null</code>
+     * @param digest      the digest of the certificate, or <code>null</code>
+     * @return <code>CachedCertificate</code> the certificate, or <code>null</code> if only an unknown digest is given
+     * @throws CertificateException if the certificate cannot be parsed
+     */
+    public static CachedCertificate resolve(String certificate, String digest) throws CertificateException {
+        if (certificate == null) {
+            if (digest == null) {
+                return null;
+            }
+            synchronized (CertificateCache.class) {
+                return certificates.get(digest);
+            }
+        }
+        String calculatedDigest = digest(certificate);
+        synchronized (CertificateCache.class) {
+            CachedCertificate cached = certificates.get(calculatedDigest);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        CertificateFactory certificateFactory = AuthenticationFunctions.CERTIFICATE_FACTORIES.acquire("X.509");
+        X509Certificate x509Certificate = (X509Certificate) certificateFactory.generateCertificate(
+                new ByteArrayInputStream(Base64.getDecoder().decode(certificate)));
+        AuthenticationFunctions.CERTIFICATE_FACTORIES.release("X.509", certificateFactory);
+        CachedCertificate cached = new CachedCertificate(certificate, calculatedDigest, x509Certificate);
+        synchronized (CertificateCache.class) {
+            certificates.put(calculatedDigest, cached);
+        }
+        return cached;
+    }
+
+    /**
+     * Decides if the full certificate has to be sent to a peer and remembers that it was.
+     *
+     * @param peer        the address of the peer, or the multicast group
+     * @param certificate a base64 string representation of the own certificate
+     * @return <code>true</code> if the full certificate has to be sent
+     * <code>false</code> if the digest is enough
+     */
+    public static boolean shouldSendCertificate(String peer, String certificate) {
+        if (!DIGEST_MODE) {
+            return true;
+        }
+        String key = peer + "/" + digest(certificate);
+        synchronized (CertificateCache.class) {
+            return sentCertificates.add(key);
+        }
+    }
+
+    /**
+     * Puts the own certificate into a message, either in full or by digest.
+     *
+     * @param message     the message to be sent
+     * @param certificate a base64 string representation of the own certificate
+     * @param peer        the address of the peer, or the multicast group
+     */
+    public static void attach(Message message, String certificate, String peer) {
+        if (shouldSendCertificate(peer, certificate)) {
+            message.putValue("Certificate", certificate);
+        } else {
+            message.putValue("CertificateDigest", digest(certificate));
+        }
+    }
+
+    /**
+     * Makes the next message with the certificate of the given digest carry it in full, to every peer.
+     *
+     * @param digest the digest of the requested certificate
+     */
+    public static synchronized void forgetSent(String digest) {
+        sentCertificates.removeIf(key -> key.endsWith("/" + digest));
+    }
+
+    /**
+     * Remembers to ask for the certificate of an unknown digest in the next query.
+     *
+     * @param digest the unknown digest
+     */
+    public static synchronized void requestCertificate(String digest) {
+        if (digest != null) {
+            requestedDigests.add(digest);
+        }
+    }
+
+    /**
+     * Asks for one certificate that was referred to by an unknown digest, if there is one.
+     *
+     * @param query the query to be sent
+     */
+    public static synchronized void attachRequest(Message query) {
+        if (!requestedDigests.isEmpty()) {
+            String digest = requestedDigests.iterator().next();
+            requestedDigests.remove(digest);
+            query.putValue("CertificateRequest", digest);
+        }
+    }
+
+    /**
+     * Asks the sender of a query for the certificate of an unknown digest.
+     *
+     * @param address     the address of the sender
+     * @param unicastPort the port the sender waits for answers on
+     * @param digest      the unknown digest
+     * @throws IOException
+     */
+    public static void sendCertificateRequest(InetAddress address, int unicastPort, String digest) throws IOException {
+        Message request = new Message();
+        request.putValue("CertificateRequest", digest);
+        byte[] data = MessageCodec.encode(request);
+        DatagramSocket clientSocket = new DatagramSocket();
+        clientSocket.send(new DatagramPacket(data, data.length, address, unicastPort));
+        clientSocket.close();
+    }
+
+    /**
+     * Finds the certificate of the sender of a query. A certificate request carried by the query is remembered, and
+     * if the query only refers to an unknown digest the sender is asked for the certificate.
+     *
+     * @param query       the received query
+     * @param address     the address of the sender
+     * @param unicastPort the port the sender waits for answers on
+     * @return <code>CachedCertificate</code> the certificate, or <code>null</code> if it is not known yet
+     * @throws CertificateException if the certificate cannot be parsed
+     * @throws IOException          if the request cannot be sent
+     */
+    public static CachedCertificate resolveSender(MessageView query, InetAddress address, int unicastPort)
+            throws CertificateException, IOException {
+        String certificateRequest = query.getValue("CertificateRequest");
+        if (certificateRequest != null) {
+            forgetSent(certificateRequest);
+        }
+        String digest = query.getValue("CertificateDigest");
+        CachedCertificate certificate = resolve(query.getValue("Certificate"), digest);
+        if (certificate == null && digest != null) {
+            sendCertificateRequest(address, unicastPort, digest);
+        }
+        return certificate;
+    }
+
+    /**
+     * Checks if a received datagram is a request for the own certificate and, if so, makes the next query carry it.
+     *
+     * @param buffer the received bytes
+     * @param offset where the datagram starts in the buffer
+     * @param length how many bytes were received
+     * @return <code>true</code> if the datagram was a certificate request
+     * <code>false</code> if it was something else
+     */
+    public static boolean handleCertificateRequest(byte[] buffer, int offset, int length) {
+        if (!MessageCodec.isBinary(buffer, offset, length) || buffer[offset + 3] != MessageCodec.TYPE_MESSAGE) {
+            return false;
+        }
+        try {
+            String digest = new MessageView().wrap(buffer, offset, length).getValue("CertificateRequest");
+            if (digest == null) {
+                return false;
+            }
+            forgetSent(digest);
+            return true;
+        } catch (IOException | ClassNotFoundException e) {
+            return false;
+        }
+    }
+}
@@ -1,8 +1,131 @@
 package v2x;
 
 import java.io.*;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class CommunicationFunctions {
+    static final String CODEC_PROPERTY = "v2x.codec";
+    static final String JAVA_SERIALIZATION = "java";
+    static final String BINARY = "binary";
+    static final int RECEIVE_BUFFER_SIZE = 65508;
+    // a receive buffer handed to the VerificationPool is out of the pool until its answer is verified
+    static final int RECEIVE_BUFFER_POOL_SIZE = 8 + VerificationPool.WORKERS + VerificationPool.QUEUE_SIZE;
+    static final int RETRANSMIT_WINDOW = 1000;
+
+    private static volatile String wireFormat = System.getProperty(CODEC_PROPERTY, BINARY);
+    private static final BlockingQueue<byte[]> receiveBuffers = new ArrayBlockingQueue<>(RECEIVE_BUFFER_POOL_SIZE);
+    private static final AtomicInteger nextMessageId = new AtomicInteger(new Random().nextInt());
+
+    /**
+     * Selects the wire format used when sending messages. Received messages are decoded in either format.
+     *
+     * @param format either <code>binary</code> or <code>java</code>
+     */
+    public static void setWireFormat(String format) {
+        if (!BINARY.equals(format) && !JAVA_SERIALIZATION.equals(format)) {
+            throw new IllegalArgumentException("Unknown wire format: " + format);
+        }
+        wireFormat = format;
+    }
+
+    /**
+     * Gives the wire format used when sending messages.
+     *
+     * @return <code>String</code> either <code>binary</code> or <code>java</code>
+     */
+    public static String getWireFormat() {
+        return wireFormat;
+    }
+
+    /**
+     * Takes a receive buffer from the pool, or allocates one if the pool is empty.
+     *
+     * @return <code>byte[]</code> a buffer large enough for any datagram
+     */
+    public static byte[] acquireReceiveBuffer() {
+        byte[] buffer = receiveBuffers.poll();
+        return buffer != null ? buffer : new byte[RECEIVE_BUFFER_SIZE];
+    }
+
+    /**
+     * Gives a receive buffer back to the pool. The buffer is dropped if the pool is full.
+     *
+     * @param buffer a buffer taken with {@link #acquireReceiveBuffer()}
+     */
+    public static void releaseReceiveBuffer(byte[] buffer) {
+        receiveBuffers.offer(buffer);
+    }
+
+    /**
+     * Sends a datagram, split into fragments if it does not fit into one MTU. After sending fragments the socket
+     * waits up to {@link #RETRANSMIT_WINDOW} milliseconds for the receiver to ask for lost fragments again, and
+     * returns as soon as the receiver confirms the datagram.
+     *
+     * @param socket  the socket to send with
+     * @param data    the encoded datagram
+     * @param address the address of the receiver
+     * @param port    the port of the receiver
+     * @throws IOException
+     */
+    public static void sendFragmented(DatagramSocket socket, byte[] data, InetAddress address, int port)
+            throws IOException {
+        if (data.length <= MessageCodec.FRAGMENT_SIZE) {
+            socket.send(new DatagramPacket(data, data.length, address, port));
+            return;
+        }
+        int messageId = nextMessageId.getAndIncrement();
+        byte[][] fragments = MessageCodec.fragment(data, messageId, MessageCodec.FRAGMENT_SIZE);
+        for (byte[] fragment : fragments) {
+            socket.send(new DatagramPacket(fragment, fragment.length, address, port));
+        }
+
+        byte[] buffer = new byte[MessageCodec.HEADER_LENGTH + 4 + 2 * MessageCodec.MAX_FRAGMENTS];
+        DatagramPacket requestPacket = new DatagramPacket(buffer, buffer.length);
+        long deadline = System.currentTimeMillis() + RETRANSMIT_WINDOW;
+        int soTimeout = socket.getSoTimeout();
+        try {
+            long remaining;
+            while ((remaining = deadline - System.currentTimeMillis()) > 0) {
+                socket.setSoTimeout((int) remaining);
+                requestPacket.setLength(buffer.length);
+                try {
+                    socket.receive(requestPacket);
+                } catch (SocketTimeoutException e) {
+                    break;
+                }
+                ByteBuffer request;
+                try {
+                    request = MessageCodec.readHeader(buffer, 0, requestPacket.getLength(),
+                            MessageCodec.TYPE_FRAGMENT_REQUEST);
+                } catch (IOException e) {
+                    continue;
+                }
+                if (request.remaining() < 4 || request.getInt() != messageId) {
+                    continue;
+                }
+                if (!request.hasRemaining()) {
+                    break;
+                }
+                while (request.remaining() >= 2) {
+                    int index = request.getShort() & 0xFFFF;
+                    if (index < fragments.length) {
+                        socket.send(new DatagramPacket(fragments[index], fragments[index].length, address, port));
+                    }
+                }
+            }
+        } finally {
+            socket.setSoTimeout(soTimeout);
+        }
+    }
+
     /**
      * Takes in message to turn into a byte array for sending through the network.
      *
@@ -11,6 +134,9 @@ public class CommunicationFunctions {
      * @throws IOException
      */
     public static byte[] messageToByteArray(Message message) throws IOException {
+        if (BINARY.equals(wireFormat)) {
+            return MessageCodec.encode(message);
+        }
         ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
         ObjectOutputStream objectOutputStream = new ObjectOutputStream(byteArrayOutputStream);
         objectOutputStream.writeObject(message);
@@ -28,8 +154,28 @@ public class CommunicationFunctions {
      * @throws ClassNotFoundException
      */
     public static Message byteArrayToMessage(byte[] buffer) throws IOException, ClassNotFoundException {
-        ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(buffer);
-        ObjectInput objectInput = new ObjectInputStream(byteArrayInputStream);
+        return byteArrayToMessage(buffer, 0, buffer.length);
+    }
+
+    /**
+     * Takes in the received part of a byte array and turns it into a message. The format is detected from the header.
+     * Java serialized messages are read through {@link PacketFilter#MESSAGE_FILTER}.
+     *
+     * @param buffer a byte array to be turned into a message
+     * @param offset where the message starts in the buffer
+     * @param length how many bytes of the buffer belong to the message
+     * @return <code>Message</code> a message with keys and values inside
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    public static Message byteArrayToMessage(byte[] buffer, int offset, int length)
+            throws IOException, ClassNotFoundException {
+        if (MessageCodec.isBinary(buffer, offset, length)) {
+            return MessageCodec.decode(buffer, offset, length);
+        }
+        ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(buffer, offset, length);
+        ObjectInputStream objectInput = new ObjectInputStream(byteArrayInputStream);
+        objectInput.setObjectInputFilter(PacketFilter.MESSAGE_FILTER);
         Message message = (Message) objectInput.readObject();
         return message;
     }
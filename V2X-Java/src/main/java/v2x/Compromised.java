@@ -5,6 +5,7 @@ import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
 import java.io.*;
 import java.net.*;
+import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
@@ -90,11 +91,7 @@ public class Compromised {
         DatagramSocket clientSocket = new DatagramSocket();
         Message answer = new Message();
         answer.putValue("Answer", "1");
-        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-        ObjectOutputStream objectOutputStream = new ObjectOutputStream(byteArrayOutputStream);
-        objectOutputStream.writeObject(answer);
-        objectOutputStream.flush();
-        byte[] data = byteArrayOutputStream.toByteArray();
+        byte[] data = CommunicationFunctions.messageToByteArray(answer);
         DatagramPacket answerPacket = new DatagramPacket(data, data.length, address, UNICAST_PORT);
         clientSocket.send(answerPacket);
         //System.out.println("answer sent");
@@ -122,16 +119,9 @@ public class Compromised {
      * @return <code>String</code> a string that is the IP address of the sender
      * @throws IOException
      * @throws ClassNotFoundException
-     * @throws CertificateException
-     * @throws NoSuchAlgorithmException
-     * @throws IllegalBlockSizeException
-     * @throws BadPaddingException
-     * @throws NoSuchPaddingException
-     * @throws InvalidKeyException
+     * @throws GeneralSecurityException
      */
-    private static String receiveQueryTest2()
-            throws IOException, ClassNotFoundException, CertificateException, NoSuchAlgorithmException,
-            IllegalBlockSizeException, BadPaddingException, NoSuchPaddingException, InvalidKeyException {
+    private static String receiveQueryTest2() throws IOException, ClassNotFoundException, GeneralSecurityException {
         MulticastSocket serverSocket = new MulticastSocket(MULTICAST_PORT);
         InetAddress group = InetAddress.getByName("225.0.0.0");
         serverSocket.joinGroup(group);
@@ -161,21 +151,13 @@ public class Compromised {
      *
      * @param returnIPAddress a string that is the IP address of who to send to
      * @throws IOException
-     * @throws InvalidKeySpecException
-     * @throws NoSuchAlgorithmException
-     * @throws IllegalBlockSizeException
-     * @throws InvalidKeyException
-     * @throws BadPaddingException
-     * @throws NoSuchPaddingException
+     * @throws GeneralSecurityException
      */
-    private static void sendAnswerTest2(String returnIPAddress)
-            throws IOException, InvalidKeySpecException, NoSuchAlgorithmException, IllegalBlockSizeException,
-            InvalidKeyException, BadPaddingException, NoSuchPaddingException {
+    private static void sendAnswerTest2(String returnIPAddress) throws IOException, GeneralSecurityException {
         String userCertificate = AuthenticationFunctions.getCertificate(OWN_CERTIFICATE_LOCATION);
         PrivateKey userPrivateKey = AuthenticationFunctions.getPrivateKey(OWN_PRIVATE_KEY_LOCATION);
         String message = "1";
-        String hash = AuthenticationFunctions.hashMessage(message);
-        String authentication = AuthenticationFunctions.encryptMessage(hash, userPrivateKey);
+        String authentication = AuthenticationFunctions.signMessage(message, userPrivateKey);
         InetAddress address = InetAddress.getByName(returnIPAddress);
         DatagramSocket clientSocket = new DatagramSocket();
         Message answer = new Message();
@@ -220,16 +202,9 @@ public class Compromised {
      * @return <code>String</code> a string that is the IP address of the sender
      * @throws IOException
      * @throws ClassNotFoundException
-     * @throws CertificateException
-     * @throws NoSuchAlgorithmException
-     * @throws IllegalBlockSizeException
-     * @throws BadPaddingException
-     * @throws NoSuchPaddingException
-     * @throws InvalidKeyException
+     * @throws GeneralSecurityException
      */
-    private static String receiveQueryTest3()
-            throws IOException, ClassNotFoundException, CertificateException, NoSuchAlgorithmException,
-            IllegalBlockSizeException, BadPaddingException, NoSuchPaddingException, InvalidKeyException {
+    private static String receiveQueryTest3() throws IOException, ClassNotFoundException, GeneralSecurityException {
         MulticastSocket serverSocket = new MulticastSocket(MULTICAST_PORT);
         InetAddress group = InetAddress.getByName("225.0.0.0");
         serverSocket.joinGroup(group);
@@ -259,16 +234,10 @@ public class Compromised {
      *
      * @param returnIPAddress a string that is the IP address of who to send to
      * @throws IOException
-     * @throws InvalidKeySpecException
-     * @throws NoSuchAlgorithmException
-     * @throws IllegalBlockSizeException
-     * @throws InvalidKeyException
-     * @throws BadPaddingException
-     * @throws NoSuchPaddingException
+     * @throws GeneralSecurityException
      */
     private static void sendAnswerTest3(String returnIPAddress, int number)
-            throws IOException, InvalidKeySpecException, NoSuchAlgorithmException, IllegalBlockSizeException,
-            InvalidKeyException, BadPaddingException, NoSuchPaddingException {
+            throws IOException, GeneralSecurityException {
 
         String userCertificate = AuthenticationFunctions
                 .getCertificate("Authentication/OBU-X-certificate" + number + ".crt");
@@ -277,8 +246,7 @@ public class Compromised {
         PrivateKey dnsPrivateKey = AuthenticationFunctions.getPrivateKey(DNS_PRIVATE_KEY);
 
         String innerAnswer = "0";
-        String innerHash = AuthenticationFunctions.hashMessage(innerAnswer);
-        String innerEncryptedHash = AuthenticationFunctions.encryptMessage(innerHash, dnsPrivateKey);
+        String innerEncryptedHash = AuthenticationFunctions.signMessage(innerAnswer, dnsPrivateKey);
 
         Message innerMessage = new Message();
         innerMessage.putValue("Answer", innerAnswer);
@@ -288,8 +256,7 @@ public class Compromised {
         byte[] innerMessageByteBase64 = Base64.getEncoder().encode(innerMessageByte);
         String innerMessageString = new String(innerMessageByteBase64);
 
-        String outerHash = AuthenticationFunctions.hashMessage(innerMessageString);
-        String outerEncryptedHash = AuthenticationFunctions.encryptMessage(outerHash, userPrivateKey);
+        String outerEncryptedHash = AuthenticationFunctions.signMessage(innerMessageString, userPrivateKey);
 
         Message outerMessage = new Message();
         outerMessage.putValue("Answer", innerMessageString);
@@ -319,7 +286,8 @@ public class Compromised {
      * @throws InvalidKeyException
      * @throws InvalidKeySpecException
      */
-    private static synchronized void runThirdTest(int rate) throws IOException, ClassNotFoundException, CertificateException,
+    private static synchronized void runThirdTest(int rate)
+            throws IOException, ClassNotFoundException, CertificateException,
             NoSuchAlgorithmException, IllegalBlockSizeException, BadPaddingException, NoSuchPaddingException,
             InvalidKeyException, InvalidKeySpecException {
         MulticastSocket serverSocket = new MulticastSocket(MULTICAST_PORT);
@@ -345,9 +313,7 @@ public class Compromised {
 //        }
     }
 
-    private static String receiveQueryTest4()
-            throws IOException, ClassNotFoundException, CertificateException, NoSuchAlgorithmException,
-            IllegalBlockSizeException, BadPaddingException, NoSuchPaddingException, InvalidKeyException {
+    private static String receiveQueryTest4() throws IOException, ClassNotFoundException, GeneralSecurityException {
         MulticastSocket serverSocket = new MulticastSocket(MULTICAST_PORT);
         InetAddress group = InetAddress.getByName("225.0.0.0");
         serverSocket.joinGroup(group);
@@ -372,8 +338,7 @@ public class Compromised {
     }
 
     private static void sendAnswerTest4(String returnIPAddress, int number)
-            throws IOException, InvalidKeySpecException, NoSuchAlgorithmException, IllegalBlockSizeException,
-            InvalidKeyException, BadPaddingException, NoSuchPaddingException {
+            throws IOException, GeneralSecurityException {
         String userCertificate = AuthenticationFunctions
                 .getCertificate("Authentication/OBU-X-certificate" + number + ".crt");
         PrivateKey userPrivateKey = AuthenticationFunctions
@@ -388,8 +353,7 @@ public class Compromised {
         byte[] innerMessageByteBase64 = Base64.getEncoder().encode(innerMessageByte);
         String innerMessageString = new String(innerMessageByteBase64);
 
-        String outerHash = AuthenticationFunctions.hashMessage(innerMessageString);
-        String outerEncryptedHash = AuthenticationFunctions.encryptMessage(outerHash, userPrivateKey);
+        String outerEncryptedHash = AuthenticationFunctions.signMessage(innerMessageString, userPrivateKey);
 
         Message outerMessage = new Message();
         outerMessage.putValue("Answer", innerMessageString);
@@ -406,7 +370,8 @@ public class Compromised {
         clientSocket.close();
     }
 
-    private static synchronized void runFourthTest(int rate) throws IOException, ClassNotFoundException, CertificateException,
+    private static synchronized void runFourthTest(int rate)
+            throws IOException, ClassNotFoundException, CertificateException,
             NoSuchAlgorithmException, IllegalBlockSizeException, BadPaddingException, NoSuchPaddingException,
             InvalidKeyException, InvalidKeySpecException {
         MulticastSocket serverSocket = new MulticastSocket(MULTICAST_PORT);
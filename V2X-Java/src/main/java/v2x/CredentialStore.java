@@ -0,0 +1,327 @@
+package v2x;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.security.spec.InvalidKeySpecException;
+import java.util.Base64;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the certificates, private keys and bloom filters of a node in memory so they are read from
+ * <code>Authentication/</code> and parsed only once. A background thread watches the directories of the loaded files
+ * and reloads a file as soon as it changes on disk.
+ */
+public class CredentialStore {
+    private static final Map<Path, String> certificates = new ConcurrentHashMap<>();
+    private static final Map<Path, X509Certificate> x509Certificates = new ConcurrentHashMap<>();
+    private static final Map<Path, PrivateKey> privateKeys = new ConcurrentHashMap<>();
+    private static final Map<Path, DNSBloomFilter> bloomFilters = new ConcurrentHashMap<>();
+    private static final Map<String, Path> paths = new ConcurrentHashMap<>();
+    private static final Map<Path, Long> versions = new ConcurrentHashMap<>();
+    private static final Set<Path> watchedDirectories = ConcurrentHashMap.newKeySet();
+    private static WatchService watchService;
+
+    private static Path toPath(String location) {
+        return paths.computeIfAbsent(location, key -> Paths.get(key).toAbsolutePath().normalize());
+    }
+
+    /**
+     * Gives the location of a numbered pseudonym, e.g. <code>OBU-N-certificate3.crt</code> for
+     * <code>OBU-N-certificate.crt</code> and 3.
+     *
+     * @param location the location without a number
+     * @param number   the number of the pseudonym
+     * @return <code>String</code> the location of the pseudonym
+     */
+    public static String pseudonymLocation(String location, int number) {
+        int extension = location.lastIndexOf('.');
+        return location.substring(0, extension) + number + location.substring(extension);
+    }
+
+    /**
+     * Loads credentials ahead of the first message. Certificates end in <code>.crt</code>, private keys in
+     * <code>.der</code> and bloom filters in <code>.bf</code>. Files that cannot be loaded are skipped.
+     *
+     * @param locations the locations of the files
+     */
+    public static void preload(String... locations) {
+        for (String location : locations) {
+            try {
+                if (location.endsWith(".der")) {
+                    getPrivateKey(location);
+                } else if (location.endsWith(".bf")) {
+                    getBloomFilter(location);
+                } else {
+                    getX509Certificate(location);
+                }
+            } catch (Exception e) {
+                System.out.println("could not preload " + location);
+            }
+        }
+    }
+
+    /**
+     * Loads the numbered pseudonyms of a node, starting at 0 and stopping at the first one that does not exist.
+     *
+     * @param certificateLocation the location of the certificates without a number
+     * @param privateKeyLocation  the location of the private keys without a number
+     * @param amount              the highest number of pseudonyms to load
+     */
+    public static void preloadPseudonyms(String certificateLocation, String privateKeyLocation, int amount) {
+        for (int number = 0; number < amount; number++) {
+            String certificate = pseudonymLocation(certificateLocation, number);
+            String privateKey = pseudonymLocation(privateKeyLocation, number);
+            if (!new File(certificate).exists() || !new File(privateKey).exists()) {
+                break;
+            }
+            preload(certificate, privateKey);
+        }
+    }
+
+    /**
+     * Gives a certificate as a base64 string.
+     *
+     * @param location a string of the location of the certificate
+     * @return <code>String</code> a string representation of the certificate
+     * @throws IOException
+     */
+    public static String getCertificate(String location) throws IOException {
+        Path path = toPath(location);
+        String certificate = certificates.get(path);
+        if (certificate == null) {
+            certificate = loadCertificate(path);
+        }
+        return certificate;
+    }
+
+    /**
+     * Gives a parsed certificate.
+     *
+     * @param location a string of the location of the certificate
+     * @return <code>X509Certificate</code> the certificate
+     * @throws IOException
+     * @throws CertificateException
+     */
+    public static X509Certificate getX509Certificate(String location) throws IOException, CertificateException {
+        Path path = toPath(location);
+        X509Certificate certificate = x509Certificates.get(path);
+        if (certificate == null) {
+            certificate = loadX509Certificate(path);
+        }
+        return certificate;
+    }
+
+    /**
+     * Gives the public key of a certificate.
+     *
+     * @param location a string of the location of the certificate
+     * @return <code>PublicKey</code> the public key of the certificate
+     * @throws IOException
+     * @throws CertificateException
+     */
+    public static PublicKey getPublicKey(String location) throws IOException, CertificateException {
+        return getX509Certificate(location).getPublicKey();
+    }
+
+    /**
+     * Gives a private key.
+     *
+     * @param location a string of the location of the private key
+     * @return <code>PrivateKey</code> a private key
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     * @throws InvalidKeySpecException
+     */
+    public static PrivateKey getPrivateKey(String location)
+            throws IOException, NoSuchAlgorithmException, InvalidKeySpecException {
+        Path path = toPath(location);
+        PrivateKey privateKey = privateKeys.get(path);
+        if (privateKey == null) {
+            privateKey = loadPrivateKey(path);
+        }
+        return privateKey;
+    }
+
+    /**
+     * Gives a bloom filter. The bloom filter is shared and must not be changed.
+     *
+     * @param location a string of the location of the bloom filter
+     * @return <code>DNSBloomFilter</code> the bloom filter
+     * @throws IOException
+     */
+    public static DNSBloomFilter getBloomFilter(String location) throws IOException {
+        Path path = toPath(location);
+        DNSBloomFilter bloomFilter = bloomFilters.get(path);
+        if (bloomFilter == null) {
+            bloomFilter = loadBloomFilter(path);
+        }
+        return bloomFilter;
+    }
+
+    /**
+     * Gives how often a file was seen to change on disk, so a caller can tell if something it derived from the file
+     * is still current. The first call starts watching the file.
+     *
+     * @param location a string of the location of the file
+     * @return <code>long</code> the number of changes seen so far
+     * @throws IOException if the file cannot be watched
+     */
+    public static long getVersion(String location) throws IOException {
+        Path path = toPath(location);
+        Long version = versions.get(path);
+        if (version == null) {
+            watch(path);
+            version = versions.computeIfAbsent(path, key -> 0L);
+        }
+        return version;
+    }
+
+    private static String loadCertificate(Path path) throws IOException {
+        String certificate = AuthenticationFunctions.getCertificate(path.toString());
+        certificates.put(path, certificate);
+        watch(path);
+        return certificate;
+    }
+
+    private static X509Certificate loadX509Certificate(Path path) throws IOException, CertificateException {
+        String certificate = loadCertificate(path);
+        CertificateFactory certificateFactory = AuthenticationFunctions.CERTIFICATE_FACTORIES.acquire("X.509");
+        X509Certificate x509Certificate = (X509Certificate) certificateFactory.generateCertificate(
+                new ByteArrayInputStream(Base64.getDecoder().decode(certificate)));
+        AuthenticationFunctions.CERTIFICATE_FACTORIES.release("X.509", certificateFactory);
+        x509Certificates.put(path, x509Certificate);
+        return x509Certificate;
+    }
+
+    private static PrivateKey loadPrivateKey(Path path)
+            throws IOException, NoSuchAlgorithmException, InvalidKeySpecException {
+        PrivateKey privateKey = AuthenticationFunctions.getPrivateKey(path.toString());
+        privateKeys.put(path, privateKey);
+        watch(path);
+        return privateKey;
+    }
+
+    private static DNSBloomFilter loadBloomFilter(Path path) throws IOException {
+        DNSBloomFilter bloomFilter = AuthenticationFunctions.getBloomFilter(path.toString());
+        bloomFilters.put(path, bloomFilter);
+        watch(path);
+        return bloomFilter;
+    }
+
+    private static void reload(Path path) {
+        try {
+            if (x509Certificates.containsKey(path)) {
+                loadX509Certificate(path);
+            } else if (certificates.containsKey(path)) {
+                loadCertificate(path);
+            }
+            if (privateKeys.containsKey(path)) {
+                loadPrivateKey(path);
+            }
+            if (bloomFilters.containsKey(path)) {
+                loadBloomFilter(path);
+            }
+        } catch (Exception e) {
+            certificates.remove(path);
+            x509Certificates.remove(path);
+            privateKeys.remove(path);
+            bloomFilters.remove(path);
+        }
+    }
+
+    private static void watch(Path path) throws IOException {
+        Path directory = path.getParent();
+        if (directory == null || !watchedDirectories.add(directory)) {
+            return;
+        }
+        synchronized (CredentialStore.class) {
+            if (watchService == null) {
+                watchService = FileSystems.getDefault().newWatchService();
+                Thread watcher = new Thread(CredentialStore::watchChanges, "credential-store-watcher");
+                watcher.setDaemon(true);
+                watcher.start();
+            }
+        }
+        directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+    }
+
+    private static void watchChanges() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                Path directory = (Path) key.watchable();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.context() instanceof Path) {
+                        Path path = directory.resolve((Path) event.context());
+                        reload(path);
+                        versions.computeIfPresent(path, (changed, version) -> version + 1);
+                    }
+                }
+                key.reset();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // the store is no longer watched
+        }
+    }
+
+    /**
+     * Loads a certificate, changes it on disk and checks that the store picks up the new certificate.
+     */
+    public static void main(String[] args) {
+        try {
+            File directory = new File(System.getProperty("java.io.tmpdir"), "v2x-credential-store");
+            directory.mkdirs();
+            File file = new File(directory, "test-certificate.crt");
+            String first = AuthenticationFunctions.getCertificate(Querier.OWN_CERTIFICATE_LOCATION);
+            String second = AuthenticationFunctions.getCertificate(Querier.DNS_CERTIFICATE_LOCATION);
+            Files.write(file.toPath(), Base64.getDecoder().decode(first));
+
+            System.out.println("Expected: " + true + " Actual: " + first.equals(getCertificate(file.getPath())));
+            System.out.println("Expected: " + true + " Actual: "
+                    + (getX509Certificate(file.getPath()) == getX509Certificate(file.getPath())));
+
+            int iterations = 10000;
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                getPublicKey(Querier.CA_CERTIFICATE_LOCATION);
+            }
+            long storeTime = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                AuthenticationFunctions.getPublicKey(AuthenticationFunctions.getCertificate(
+                        Querier.CA_CERTIFICATE_LOCATION));
+            }
+            long fileTime = System.nanoTime() - start;
+            System.out.println("CA public key from store: " + storeTime / iterations + " ns, from file: "
+                    + fileTime / iterations + " ns");
+
+            Files.write(file.toPath(), Base64.getDecoder().decode(second));
+            long deadline = System.currentTimeMillis() + 15000;
+            while (!second.equals(getCertificate(file.getPath())) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(100);
+            }
+            System.out.println("Expected: " + true + " Actual: " + second.equals(getCertificate(file.getPath())));
+            file.delete();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package v2x;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Counts received datagrams that were dropped before being processed, by the reason they were dropped for.
+ */
+public class DropCounter {
+    private final Map<String, Long> drops = new TreeMap<>();
+    private long total = 0;
+
+    /**
+     * Counts a dropped datagram.
+     *
+     * @param reason why the datagram was dropped
+     */
+    public synchronized void addDrop(String reason) {
+        drops.merge(reason, 1L, Long::sum);
+        total++;
+    }
+
+    /**
+     * Gives how many datagrams were dropped for a reason.
+     *
+     * @param reason why the datagrams were dropped
+     * @return <code>long</code> the number of dropped datagrams
+     */
+    public synchronized long getDrops(String reason) {
+        return drops.getOrDefault(reason, 0L);
+    }
+
+    /**
+     * Gives how many datagrams were dropped for any reason.
+     *
+     * @return <code>long</code> the number of dropped datagrams
+     */
+    public synchronized long getTotal() {
+        return total;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "dropped: " + total + " " + drops;
+    }
+}
@@ -0,0 +1,165 @@
+package v2x;
+
+import javax.crypto.Cipher;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps JCA engines such as <code>MessageDigest</code> and <code>Cipher</code> for reuse, so the provider lookup of
+ * <code>getInstance</code> is done once per engine instead of once per message. Answers are sent and received on
+ * short lived threads, so the engines are shared between threads rather than kept per thread. An engine is taken
+ * with {@link #acquire(String)} and given back with {@link #release(String, Object)} once it is no longer used; an
+ * engine that is not given back, e.g. because an exception was thrown, is simply dropped.
+ *
+ * @param <T> the type of the engine
+ * @param <E> the exception thrown when the engine cannot be created
+ */
+public class EnginePool<T, E extends Exception> {
+    static final int POOL_SIZE = 64;
+
+    /**
+     * Creates an engine, usually a reference to a <code>getInstance</code> method.
+     */
+    public interface EngineFactory<T, E extends Exception> {
+        T create(String algorithm) throws E;
+    }
+
+    private static class Engines<T> {
+        private final Queue<T> idle = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger size = new AtomicInteger();
+    }
+
+    private final EngineFactory<T, E> factory;
+    private final Map<String, Engines<T>> engines = new ConcurrentHashMap<>();
+
+    public EnginePool(EngineFactory<T, E> factory) {
+        this.factory = factory;
+    }
+
+    /**
+     * Takes an idle engine for an algorithm or creates one if there is none.
+     *
+     * @param algorithm the algorithm of the engine
+     * @return <code>T</code> an engine that is used by nobody else until it is released
+     * @throws E if the engine cannot be created
+     */
+    public T acquire(String algorithm) throws E {
+        T engine = engines.computeIfAbsent(algorithm, key -> new Engines<>()).idle.poll();
+        if (engine == null) {
+            return factory.create(algorithm);
+        }
+        engines.get(algorithm).size.decrementAndGet();
+        return engine;
+    }
+
+    /**
+     * Gives an engine back for later use. The engine must be in its initial state or be initialized again before
+     * every use, as is the case for a <code>MessageDigest</code> after <code>digest</code> or a <code>Cipher</code>.
+     *
+     * @param algorithm the algorithm the engine was acquired for
+     * @param engine    the engine
+     */
+    public void release(String algorithm, T engine) {
+        Engines<T> pool = engines.computeIfAbsent(algorithm, key -> new Engines<>());
+        if (pool.size.incrementAndGet() > POOL_SIZE) {
+            pool.size.decrementAndGet();
+            return;
+        }
+        pool.idle.offer(engine);
+    }
+
+    /**
+     * Compares signing and verifying an answer with engines from <code>getInstance</code> and with pooled engines.
+     */
+    public static void main(String[] args) {
+        try {
+            byte[] message = "artoria.saber.fgo=2001:0db8:85a3:0000:0000:8a2e:0370:7334"
+                    .getBytes(StandardCharsets.UTF_8);
+            int iterations = 500;
+            for (SignatureScheme scheme : new SignatureScheme[]{SignatureScheme.RSA, SignatureScheme.ECDSA}) {
+                KeyPair keyPair = scheme.generateKeyPair();
+                PrivateKey privateKey = keyPair.getPrivate();
+                PublicKey publicKey = keyPair.getPublic();
+                byte[] signature = scheme.sign(message, 0, message.length, privateKey);
+                System.out.println("Expected: " + true + " Actual: "
+                        + scheme.verify(message, 0, message.length, signature, 0, signature.length, publicKey));
+
+                long freshSign = 0;
+                long pooledSign = 0;
+                long freshVerify = 0;
+                long pooledVerify = 0;
+                for (int round = 0; round < 2; round++) {
+                    long start = System.nanoTime();
+                    for (int i = 0; i < iterations; i++) {
+                        if (scheme == SignatureScheme.RSA) {
+                            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+                            Cipher cipher = Cipher.getInstance("RSA/ECB/PKCS1Padding");
+                            cipher.init(Cipher.ENCRYPT_MODE, privateKey);
+                            cipher.doFinal(digest.digest(message));
+                        } else {
+                            Signature engine = Signature.getInstance("SHA256withECDSA");
+                            engine.initSign(privateKey);
+                            engine.update(message);
+                            engine.sign();
+                        }
+                    }
+                    freshSign = System.nanoTime() - start;
+                    start = System.nanoTime();
+                    for (int i = 0; i < iterations; i++) {
+                        scheme.sign(message, 0, message.length, privateKey);
+                    }
+                    pooledSign = System.nanoTime() - start;
+                    start = System.nanoTime();
+                    for (int i = 0; i < iterations; i++) {
+                        if (scheme == SignatureScheme.RSA) {
+                            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+                            Cipher cipher = Cipher.getInstance("RSA/ECB/PKCS1Padding");
+                            cipher.init(Cipher.DECRYPT_MODE, publicKey);
+                            MessageDigest.isEqual(digest.digest(message), cipher.doFinal(signature));
+                        } else {
+                            Signature engine = Signature.getInstance("SHA256withECDSA");
+                            engine.initVerify(publicKey);
+                            engine.update(message);
+                            engine.verify(signature);
+                        }
+                    }
+                    freshVerify = System.nanoTime() - start;
+                    start = System.nanoTime();
+                    for (int i = 0; i < iterations; i++) {
+                        scheme.verify(message, 0, message.length, signature, 0, signature.length, publicKey);
+                    }
+                    pooledVerify = System.nanoTime() - start;
+                }
+                System.out.println(scheme + " sign: " + freshSign / iterations + " ns with getInstance, "
+                        + pooledSign / iterations + " ns pooled; verify: " + freshVerify / iterations
+                        + " ns with getInstance, " + pooledVerify / iterations + " ns pooled");
+            }
+
+            int lookups = 100000;
+            long start = System.nanoTime();
+            for (int i = 0; i < lookups; i++) {
+                MessageDigest.getInstance("SHA-256");
+            }
+            long freshTime = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < lookups; i++) {
+                MessageDigest digest = AuthenticationFunctions.DIGESTS.acquire("SHA-256");
+                AuthenticationFunctions.DIGESTS.release("SHA-256", digest);
+            }
+            long pooledTime = System.nanoTime() - start;
+            System.out.println("SHA-256 engine: " + freshTime / lookups + " ns with getInstance, "
+                    + pooledTime / lookups + " ns pooled");
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package v2x;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Puts fragmented datagrams back together for a receiving thread. At most {@link #MAX_PENDING} datagrams are
+ * reassembled at the same time and a datagram that is not complete after {@link #REASSEMBLY_TIMEOUT} milliseconds
+ * is dropped. Lost fragments are asked for again with {@link #requestMissing(DatagramSocket)}, which is meant to be
+ * called whenever the socket has been quiet for {@link #RETRANSMIT_DELAY} milliseconds.
+ */
+public class FragmentReassembler {
+    static final int MAX_PENDING = 8;
+    static final int RETRANSMIT_DELAY = 100;
+    static final int REASSEMBLY_TIMEOUT = 2000;
+
+    private final Map<String, Reassembly> pending = new LinkedHashMap<>();
+    private final Map<String, Boolean> completed = new LinkedHashMap<String, Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > MAX_PENDING;
+        }
+    };
+    private final int[] missing = new int[MessageCodec.MAX_FRAGMENTS];
+    private byte[] data;
+    private int offset;
+    private int length;
+
+    private static class Reassembly {
+        private final SocketAddress sender;
+        private final int messageId;
+        private final byte[][] fragments;
+        private final long started;
+        private int received;
+        private int totalLength;
+        private long lastActivity;
+
+        Reassembly(SocketAddress sender, int messageId, int count, long now) {
+            this.sender = sender;
+            this.messageId = messageId;
+            this.fragments = new byte[count][];
+            this.started = now;
+            this.lastActivity = now;
+        }
+    }
+
+    /**
+     * Takes a received datagram. A datagram that is not a fragment is available right away; a fragment is kept
+     * until the rest of its datagram has arrived.
+     *
+     * @param packet the received packet
+     * @param socket the socket the packet was received on, used to confirm a completed datagram
+     * @return <code>true</code> if a complete datagram is available through {@link #getData()}
+     * <code>false</code> if more fragments are needed
+     * @throws IOException if the fragment is invalid
+     */
+    public boolean accept(DatagramPacket packet, DatagramSocket socket) throws IOException {
+        byte[] buffer = packet.getData();
+        int packetOffset = packet.getOffset();
+        int packetLength = packet.getLength();
+        if (!MessageCodec.isType(buffer, packetOffset, packetLength, MessageCodec.TYPE_FRAGMENT)) {
+            data = buffer;
+            offset = packetOffset;
+            length = packetLength;
+            return true;
+        }
+
+        long now = System.currentTimeMillis();
+        expire(now);
+        ByteBuffer body = MessageCodec.readHeader(buffer, packetOffset, packetLength, MessageCodec.TYPE_FRAGMENT);
+        if (body.remaining() < MessageCodec.FRAGMENT_HEADER_LENGTH) {
+            throw new IOException("Truncated fragment");
+        }
+        int messageId = body.getInt();
+        int index = body.getShort() & 0xFFFF;
+        int count = body.getShort() & 0xFFFF;
+        if (count == 0 || count > MessageCodec.MAX_FRAGMENTS || index >= count) {
+            throw new IOException("Invalid fragment: " + index + "/" + count);
+        }
+
+        SocketAddress sender = packet.getSocketAddress();
+        String key = sender + "/" + messageId;
+        if (completed.containsKey(key)) {
+            return false;
+        }
+        Reassembly reassembly = pending.get(key);
+        if (reassembly == null) {
+            if (pending.size() >= MAX_PENDING) {
+                Iterator<Reassembly> oldest = pending.values().iterator();
+                oldest.next();
+                oldest.remove();
+            }
+            reassembly = new Reassembly(sender, messageId, count, now);
+            pending.put(key, reassembly);
+        } else if (reassembly.fragments.length != count) {
+            throw new IOException("Fragment count changed: " + count);
+        }
+        if (reassembly.fragments[index] == null) {
+            byte[] fragment = new byte[body.remaining()];
+            body.get(fragment);
+            reassembly.fragments[index] = fragment;
+            reassembly.received++;
+            reassembly.totalLength += fragment.length;
+        }
+        reassembly.lastActivity = now;
+        if (reassembly.received < count) {
+            return false;
+        }
+
+        pending.remove(key);
+        completed.put(key, Boolean.TRUE);
+        data = new byte[reassembly.totalLength];
+        int position = 0;
+        for (byte[] fragment : reassembly.fragments) {
+            System.arraycopy(fragment, 0, data, position, fragment.length);
+            position += fragment.length;
+        }
+        offset = 0;
+        length = data.length;
+        byte[] confirmation = MessageCodec.encodeFragmentRequest(messageId, missing, 0);
+        socket.send(new DatagramPacket(confirmation, confirmation.length, sender));
+        return true;
+    }
+
+    /**
+     * Asks the senders of incomplete datagrams for the fragments that have not arrived yet. Datagrams that still
+     * receive fragments are left alone, and datagrams that took too long are dropped.
+     *
+     * @param socket the socket to send the requests with
+     */
+    public void requestMissing(DatagramSocket socket) {
+        long now = System.currentTimeMillis();
+        expire(now);
+        for (Reassembly reassembly : pending.values()) {
+            if (now - reassembly.lastActivity < RETRANSMIT_DELAY) {
+                continue;
+            }
+            int missingCount = 0;
+            for (int index = 0; index < reassembly.fragments.length; index++) {
+                if (reassembly.fragments[index] == null) {
+                    missing[missingCount++] = index;
+                }
+            }
+            byte[] request = MessageCodec.encodeFragmentRequest(reassembly.messageId, missing, missingCount);
+            try {
+                socket.send(new DatagramPacket(request, request.length, reassembly.sender));
+            } catch (IOException e) {
+                return;
+            }
+            reassembly.lastActivity = now;
+        }
+    }
+
+    private void expire(long now) {
+        pending.values().removeIf(reassembly -> now - reassembly.started > REASSEMBLY_TIMEOUT);
+    }
+
+    /**
+     * Gives how many datagrams are waiting for fragments.
+     *
+     * @return <code>int</code> the number of incomplete datagrams
+     */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Fragments a datagram, drops one fragment and checks that the datagram is put back together after the lost
+     * fragment is sent again.
+     */
+    public static void main(String[] args) {
+        try {
+            DatagramSocket receiver = new DatagramSocket();
+            DatagramSocket sender = new DatagramSocket();
+            InetSocketAddress receiverAddress = new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                    receiver.getLocalPort());
+            byte[] datagram = new byte[5000];
+            new Random(1).nextBytes(datagram);
+            byte[][] fragments = MessageCodec.fragment(datagram, 7, MessageCodec.FRAGMENT_SIZE);
+            System.out.println("Expected: " + 4 + " Actual: " + fragments.length);
+
+            FragmentReassembler reassembler = new FragmentReassembler();
+            byte[] buffer = new byte[CommunicationFunctions.RECEIVE_BUFFER_SIZE];
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            boolean complete = false;
+            for (int index = 0; index < fragments.length; index++) {
+                if (index == 2) {
+                    continue;
+                }
+                sender.send(new DatagramPacket(fragments[index], fragments[index].length,
+                        receiverAddress));
+                packet.setLength(buffer.length);
+                receiver.receive(packet);
+                complete = reassembler.accept(packet, receiver);
+            }
+            System.out.println("Expected: " + false + " Actual: " + complete);
+
+            Thread.sleep(RETRANSMIT_DELAY);
+            reassembler.requestMissing(receiver);
+            byte[] requestBuffer = new byte[64];
+            DatagramPacket requestPacket = new DatagramPacket(requestBuffer, requestBuffer.length);
+            sender.receive(requestPacket);
+            ByteBuffer request = MessageCodec.readHeader(requestBuffer, 0, requestPacket.getLength(),
+                    MessageCodec.TYPE_FRAGMENT_REQUEST);
+            System.out.println("Expected: " + 7 + " Actual: " + request.getInt());
+            System.out.println("Expected: " + 2 + " Actual: " + request.getShort());
+
+            sender.send(new DatagramPacket(fragments[2], fragments[2].length, receiverAddress));
+            packet.setLength(buffer.length);
+            receiver.receive(packet);
+            complete = reassembler.accept(packet, receiver);
+            System.out.println("Expected: " + true + " Actual: " + complete);
+            System.out.println("Expected: " + true + " Actual: " + Arrays.equals(datagram,
+                    Arrays.copyOfRange(reassembler.getData(), reassembler.getOffset(),
+                            reassembler.getOffset() + reassembler.getLength())));
+            System.out.println("Expected: " + 0 + " Actual: " + reassembler.getPendingCount());
+            receiver.close();
+            sender.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,678 @@
+package v2x;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A CRL of SHA-256 digests that does not have to fit on the heap. The digests are kept sorted in a file of fixed-width
+ * 32-byte entries that is memory-mapped and searched with interpolation search, which takes a few probes because the
+ * digests are spread evenly. Revoked certificates are appended to a delta log next to the file and kept in memory
+ * until the delta log holds {@link #MERGE_THRESHOLD} digests; then a background thread merges it into a new sorted
+ * file, which replaces the old one.
+ * <p>
+ * <p>
+ * A bloom filter of all digests sits in front of the file, so a digest that is not revoked is usually answered without
+ * reading the file, which may be on flash. It takes about 1.2 bytes of heap per digest it is sized for. It is made
+ * from the file when the CRL is opened, sized for twice the digests, and made again once more digests were added than
+ * it was sized for; merging the delta log leaves it as it is.
+ * <p>
+ * One file holds at most {@link #MAX_ENTRIES} digests, about 67 million. All digests are only replaced with
+ * {@link #replace(Runs)}, which merges digests that were sorted in runs on disk, so they never have to fit on the heap.
+ */
+public class MappedCRL {
+    static final int DIGEST_SIZE = 32;
+    static final int MAX_ENTRIES = Integer.MAX_VALUE / DIGEST_SIZE;
+    static final int MERGE_THRESHOLD = Integer.getInteger("v2x.crlMergeThreshold", 4096);
+    static final int RUN_ENTRIES = Integer.getInteger("v2x.crlRunEntries", 1 << 17);
+
+    private static final ExecutorService merger = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "crl-merger");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Path location;
+    private final Path deltaLocation;
+    private final Object mergeLock = new Object();
+    private final Set<ByteBuffer> pending = ConcurrentHashMap.newKeySet();
+    // the number of digests is taken from the capacity, so a lookup never sees the count of another file
+    private volatile ByteBuffer digests;
+    // holds every digest in the file and the delta log
+    private volatile BloomFilter<byte[]> filter;
+    private long filterSize;
+    private long filterEntries;
+    private FileChannel delta;
+    private boolean merging = false;
+
+    private MappedCRL(Path location) {
+        this.location = location;
+        this.deltaLocation = location.resolveSibling(location.getFileName() + ".delta");
+    }
+
+    /**
+     * Opens a CRL file, creating an empty one if it does not exist, and reads its delta log.
+     *
+     * @param location a string of the location of the sorted digests
+     * @return <code>MappedCRL</code> the opened CRL
+     * @throws IOException if the file cannot be mapped or is not a multiple of {@link #DIGEST_SIZE} bytes
+     */
+    public static MappedCRL open(String location) throws IOException {
+        MappedCRL crl = new MappedCRL(Paths.get(location));
+        if (!Files.exists(crl.location)) {
+            Files.createFile(crl.location);
+        }
+        crl.map();
+        if (Files.exists(crl.deltaLocation)) {
+            byte[] log = Files.readAllBytes(crl.deltaLocation);
+            // a digest cut off by a crash while it was appended is ignored
+            for (int offset = 0; offset + DIGEST_SIZE <= log.length; offset += DIGEST_SIZE) {
+                crl.pending.add(ByteBuffer.wrap(Arrays.copyOfRange(log, offset, offset + DIGEST_SIZE)));
+            }
+        }
+        crl.delta = FileChannel.open(crl.deltaLocation, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        crl.buildFilter();
+        return crl;
+    }
+
+    /**
+     * Checks if a digest is in the CRL.
+     *
+     * @param digest the SHA-256 digest of a certificate
+     * @return <code>true</code> if the digest is revoked
+     * <code>false</code> if it is not
+     */
+    public boolean contains(byte[] digest) {
+        if (!filter.mightContain(digest)) {
+            return false;
+        }
+        ByteBuffer sorted = digests;
+        return pending.contains(ByteBuffer.wrap(digest)) || search(sorted, count(sorted), digest);
+    }
+
+    /**
+     * Adds a digest to the delta log. When the log is long enough it is merged in the background.
+     *
+     * @param digest the SHA-256 digest of a certificate
+     * @throws IOException if the delta log cannot be written
+     */
+    public synchronized void add(byte[] digest) throws IOException {
+        if (contains(digest)) {
+            return;
+        }
+        ByteBuffer entry = ByteBuffer.wrap(digest.clone());
+        while (entry.hasRemaining()) {
+            delta.write(entry);
+        }
+        entry.rewind();
+        filter.put(entry.array());
+        pending.add(entry);
+        if (++filterEntries > filterSize) {
+            buildFilter();
+        }
+        if (pending.size() >= MERGE_THRESHOLD && !merging) {
+            merging = true;
+            merger.execute(() -> {
+                try {
+                    merge();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+        }
+    }
+
+    /**
+     * Digests sorted in runs, to replace all digests of a CRL with {@link #replace(Runs)}. The digests are collected
+     * until there are {@link #RUN_ENTRIES} of them, which are sorted and written to a run file next to the CRL, so at
+     * most one run is on the heap. The run files are deleted when the runs are closed.
+     */
+    public static class Runs implements Closeable {
+        private final String location;
+        private final List<Path> files = new ArrayList<>();
+        private final int runEntries;
+        private byte[][] run;
+        private int count = 0;
+        private long added = 0;
+
+        /**
+         * Starts collecting digests.
+         *
+         * @param location a string of the location of the sorted digests the runs are for
+         */
+        public Runs(String location) {
+            this(location, RUN_ENTRIES);
+        }
+
+        Runs(String location, int runEntries) {
+            this.location = location;
+            this.runEntries = runEntries;
+            run = new byte[Math.min(1024, runEntries)][];
+        }
+
+        /**
+         * Adds a digest. The array is kept, so it must not be changed afterwards.
+         *
+         * @param digest the SHA-256 digest of a certificate
+         * @throws IOException if a run cannot be written
+         */
+        public void add(byte[] digest) throws IOException {
+            if (count == run.length) {
+                if (count < runEntries) {
+                    run = Arrays.copyOf(run, Math.min(runEntries, 2 * count));
+                } else {
+                    writeRun();
+                }
+            }
+            run[count++] = digest;
+            added++;
+        }
+
+        /**
+         * Gives how many runs were written to disk.
+         *
+         * @return <code>int</code> the number of run files
+         */
+        public int getRunCount() {
+            return files.size();
+        }
+
+        private void writeRun() throws IOException {
+            Path file = Paths.get(location + ".run" + files.size());
+            files.add(file);
+            Arrays.sort(run, 0, count, Arrays::compareUnsigned);
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file), 1 << 16)) {
+                for (int i = 0; i < count; i++) {
+                    out.write(run[i]);
+                }
+            }
+            Arrays.fill(run, 0, count, null);
+            count = 0;
+        }
+
+        /**
+         * Writes the distinct digests of all runs in order and puts them in a bloom filter. The runs are merged a
+         * digest at a time, with one buffer per run.
+         */
+        private void writeSorted(Path next, BloomFilter<byte[]> filter) throws IOException {
+            if (files.isEmpty()) {
+                Arrays.sort(run, 0, count, Arrays::compareUnsigned);
+            } else if (count > 0) {
+                writeRun();
+            }
+            PriorityQueue<RunReader> readers = new PriorityQueue<>(
+                    (first, second) -> Arrays.compareUnsigned(first.entry, second.entry));
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(next), 1 << 16)) {
+                byte[] previous = new byte[DIGEST_SIZE];
+                boolean written = false;
+                if (files.isEmpty()) {
+                    for (int i = 0; i < count; i++) {
+                        if (!written || !Arrays.equals(previous, run[i])) {
+                            out.write(run[i]);
+                            filter.put(run[i]);
+                            previous = run[i];
+                            written = true;
+                        }
+                    }
+                    return;
+                }
+                for (Path file : files) {
+                    RunReader reader = new RunReader(file);
+                    if (reader.next()) {
+                        readers.add(reader);
+                    } else {
+                        reader.close();
+                    }
+                }
+                while (!readers.isEmpty()) {
+                    RunReader reader = readers.poll();
+                    if (!written || !Arrays.equals(previous, reader.entry)) {
+                        out.write(reader.entry);
+                        filter.put(reader.entry);
+                        System.arraycopy(reader.entry, 0, previous, 0, DIGEST_SIZE);
+                        written = true;
+                    }
+                    if (reader.next()) {
+                        readers.add(reader);
+                    } else {
+                        reader.close();
+                    }
+                }
+            } finally {
+                for (RunReader reader : readers) {
+                    reader.close();
+                }
+            }
+        }
+
+        /**
+         * Deletes the run files.
+         *
+         * @throws IOException if a run file cannot be deleted
+         */
+        @Override
+        public void close() throws IOException {
+            for (Path file : files) {
+                Files.deleteIfExists(file);
+            }
+            files.clear();
+        }
+    }
+
+    private static class RunReader implements Closeable {
+        private final InputStream in;
+        private final byte[] entry = new byte[DIGEST_SIZE];
+
+        RunReader(Path file) throws IOException {
+            in = new BufferedInputStream(Files.newInputStream(file), 1 << 13);
+        }
+
+        boolean next() throws IOException {
+            return in.readNBytes(entry, 0, DIGEST_SIZE) == DIGEST_SIZE;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * Replaces all digests of the CRL, e.g. after the CRL it was made from changed.
+     *
+     * @param revoked the SHA-256 digests of the revoked certificates
+     * @throws IOException if the file cannot be written
+     */
+    public void replace(Runs revoked) throws IOException {
+        synchronized (mergeLock) {
+            Path next = location.resolveSibling(location.getFileName() + ".merging");
+            long size = filterSize(revoked.added);
+            BloomFilter<byte[]> nextFilter = BloomFilter.create(Funnels.byteArrayFunnel(), size,
+                    RevocationIndex.FALSE_POSITIVE_RATE);
+            revoked.writeSorted(next, nextFilter);
+            synchronized (this) {
+                filter = nextFilter;
+                filterSize = size;
+                filterEntries = revoked.added;
+                install(next);
+                pending.clear();
+                rewriteDelta();
+            }
+        }
+    }
+
+    /**
+     * Merges the delta log into the sorted file. Digests added while merging stay in the delta log.
+     *
+     * @throws IOException if the file cannot be written
+     */
+    public void merge() throws IOException {
+        try {
+            mergePending();
+        } finally {
+            synchronized (this) {
+                merging = false;
+            }
+        }
+    }
+
+    private void mergePending() throws IOException {
+        synchronized (mergeLock) {
+            List<byte[]> merged = new ArrayList<>();
+            for (ByteBuffer digest : pending) {
+                merged.add(digest.array());
+            }
+            merged.sort(Arrays::compareUnsigned);
+            Path next = location.resolveSibling(location.getFileName() + ".merging");
+            ByteBuffer current = digests.duplicate();
+            int currentCount = count(current);
+            byte[] entry = new byte[DIGEST_SIZE];
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(next), 1 << 16)) {
+                int i = 0;
+                int j = 0;
+                boolean read = false;
+                while (i < currentCount || j < merged.size()) {
+                    if (!read && i < currentCount) {
+                        current.get(entry);
+                        read = true;
+                    }
+                    int comparison = !read ? 1
+                            : j == merged.size() ? -1 : Arrays.compareUnsigned(entry, merged.get(j));
+                    if (comparison <= 0) {
+                        out.write(entry);
+                        read = false;
+                        i++;
+                    }
+                    if (comparison >= 0) {
+                        if (comparison > 0) {
+                            out.write(merged.get(j));
+                        }
+                        j++;
+                    }
+                }
+            }
+            synchronized (this) {
+                install(next);
+                for (byte[] digest : merged) {
+                    pending.remove(ByteBuffer.wrap(digest));
+                }
+                rewriteDelta();
+            }
+        }
+    }
+
+    /**
+     * Gives the number of revoked digests.
+     *
+     * @return <code>long</code> the number of digests in the sorted file and the delta log
+     */
+    public long size() {
+        return (long) count(digests) + pending.size();
+    }
+
+    /**
+     * Closes the delta log. The CRL cannot be changed afterwards.
+     *
+     * @throws IOException
+     */
+    public synchronized void close() throws IOException {
+        delta.close();
+    }
+
+    /**
+     * Makes the bloom filter from the digests in the file and the delta log, while no digest can be added.
+     */
+    private void buildFilter() {
+        ByteBuffer sorted = digests.duplicate();
+        int count = count(sorted);
+        long entries = (long) count + pending.size();
+        long size = filterSize(entries);
+        BloomFilter<byte[]> next = BloomFilter.create(Funnels.byteArrayFunnel(), size,
+                RevocationIndex.FALSE_POSITIVE_RATE);
+        byte[] entry = new byte[DIGEST_SIZE];
+        for (int i = 0; i < count; i++) {
+            sorted.get(entry);
+            next.put(entry);
+        }
+        for (ByteBuffer digest : pending) {
+            next.put(digest.array());
+        }
+        filter = next;
+        filterSize = size;
+        filterEntries = entries;
+    }
+
+    private static long filterSize(long entries) {
+        return Math.max(RevocationIndex.MIN_FILTER_SIZE, 2 * entries);
+    }
+
+    private void install(Path next) throws IOException {
+        Files.move(next, location, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        map();
+    }
+
+    private void map() throws IOException {
+        try (FileChannel channel = FileChannel.open(location, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size % DIGEST_SIZE != 0 || size / DIGEST_SIZE > MAX_ENTRIES) {
+                throw new IOException("not a CRL of sorted digests: " + location);
+            }
+            digests = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+    }
+
+    private void rewriteDelta() throws IOException {
+        delta.close();
+        Path next = deltaLocation.resolveSibling(deltaLocation.getFileName() + ".merging");
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(next))) {
+            for (ByteBuffer digest : pending) {
+                out.write(digest.array());
+            }
+        }
+        Files.move(next, deltaLocation, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        delta = FileChannel.open(deltaLocation, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private static int count(ByteBuffer digests) {
+        return digests.capacity() / DIGEST_SIZE;
+    }
+
+    /**
+     * Searches sorted digests. The first 8 bytes of a digest are spread evenly, so the position of a digest is
+     * guessed from them; guessing is alternated with halving the range so a badly spread file still takes
+     * logarithmic time.
+     */
+    private static boolean search(ByteBuffer digests, int count, byte[] digest) {
+        ByteBuffer key = ByteBuffer.wrap(digest);
+        long first = key.getLong(0);
+        int low = 0;
+        int high = count - 1;
+        boolean guess = true;
+        while (low <= high) {
+            int middle;
+            if (guess) {
+                long lowKey = digests.getLong(low * DIGEST_SIZE);
+                long highKey = digests.getLong(high * DIGEST_SIZE);
+                if (Long.compareUnsigned(first, lowKey) < 0 || Long.compareUnsigned(first, highKey) > 0) {
+                    return false;
+                }
+                double span = unsigned(highKey) - unsigned(lowKey);
+                middle = span <= 0 ? low
+                        : low + (int) ((unsigned(first) - unsigned(lowKey)) / span * (high - low));
+                middle = Math.max(low, Math.min(high, middle));
+            } else {
+                middle = (low + high) >>> 1;
+            }
+            guess = !guess;
+            int comparison = compare(digests, middle * DIGEST_SIZE, key);
+            if (comparison == 0) {
+                return true;
+            } else if (comparison < 0) {
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return false;
+    }
+
+    private static int compare(ByteBuffer digests, int offset, ByteBuffer key) {
+        for (int i = 0; i < DIGEST_SIZE; i += Long.BYTES) {
+            int comparison = Long.compareUnsigned(digests.getLong(offset + i), key.getLong(i));
+            if (comparison != 0) {
+                return comparison;
+            }
+        }
+        return 0;
+    }
+
+    private static double unsigned(long value) {
+        return (value >>> 1) * 2.0 + (value & 1);
+    }
+
+    /**
+     * Writes sorted CRLs of 10^4, 10^6 and 10^7 random digests and times looking up revoked and not revoked digests,
+     * with the bloom filter and with interpolation and binary search alone. It also checks replacing the digests from runs sorted on disk, adding digests
+     * and merging the delta log.
+     */
+    public static void main(String[] args) {
+        try {
+            Path directory = Paths.get(System.getProperty("java.io.tmpdir"), "v2x-mapped-crl");
+            Files.createDirectories(directory);
+            Random random = new Random(1);
+            int lookups = 100000;
+            for (int entries : new int[]{10000, 1000000, 10000000}) {
+                Path file = directory.resolve("crl-" + entries + ".digests");
+                Files.deleteIfExists(file.resolveSibling(file.getFileName() + ".delta"));
+                // digests in order: the first 8 bytes step evenly with random jitter, the rest is random
+                List<byte[]> revoked = new ArrayList<>();
+                int stride = Math.max(1, entries / lookups);
+                long step = Long.divideUnsigned(-1L, entries);
+                try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file), 1 << 16)) {
+                    ByteBuffer entry = ByteBuffer.allocate(DIGEST_SIZE);
+                    for (int i = 0; i < entries; i++) {
+                        entry.clear();
+                        entry.putLong(i * step + Long.remainderUnsigned(random.nextLong(), step));
+                        entry.putLong(random.nextLong()).putLong(random.nextLong()).putLong(random.nextLong());
+                        if (i % stride == 0) {
+                            revoked.add(entry.array().clone());
+                        }
+                        out.write(entry.array());
+                    }
+                }
+                MappedCRL crl = open(file.toString());
+                byte[][] unknown = new byte[lookups][DIGEST_SIZE];
+                for (byte[] digest : unknown) {
+                    random.nextBytes(digest);
+                }
+                int found = 0;
+                long filterTime = 0;
+                long interpolationTime = 0;
+                long binaryTime = 0;
+                for (int round = 0; round < 3; round++) {
+                    found = 0;
+                    long start = System.nanoTime();
+                    for (int i = 0; i < lookups; i++) {
+                        if (crl.contains(revoked.get(i % revoked.size()))) {
+                            found++;
+                        }
+                        if (crl.contains(unknown[i])) {
+                            found--;
+                        }
+                    }
+                    filterTime = System.nanoTime() - start;
+                    start = System.nanoTime();
+                    for (int i = 0; i < lookups; i++) {
+                        search(crl.digests, count(crl.digests), revoked.get(i % revoked.size()));
+                        search(crl.digests, count(crl.digests), unknown[i]);
+                    }
+                    interpolationTime = System.nanoTime() - start;
+                    start = System.nanoTime();
+                    for (int i = 0; i < lookups; i++) {
+                        binarySearch(crl.digests, count(crl.digests), revoked.get(i % revoked.size()));
+                        binarySearch(crl.digests, count(crl.digests), unknown[i]);
+                    }
+                    binaryTime = System.nanoTime() - start;
+                }
+                System.out.println("Expected: " + lookups + " Actual: " + found);
+                System.out.println(entries + " revoked, " + Files.size(file) / 1024 + " KB, with the filter: "
+                        + filterTime / (2L * lookups) + " ns, interpolation search: "
+                        + interpolationTime / (2L * lookups) + " ns, binary search: "
+                        + binaryTime / (2L * lookups) + " ns");
+                crl.close();
+                Files.delete(file);
+            }
+
+            // replacing all digests, sorted in runs of 1000 on disk, with some of them twice
+            Path file = directory.resolve("crl-runs.digests");
+            Files.deleteIfExists(file.resolveSibling(file.getFileName() + ".delta"));
+            MappedCRL replaced = open(file.toString());
+            byte[][] distinct = new byte[10000][DIGEST_SIZE];
+            int runCount;
+            try (Runs runs = new Runs(file.toString(), 1000)) {
+                for (int i = 0; i < distinct.length; i++) {
+                    random.nextBytes(distinct[i]);
+                    runs.add(distinct[i]);
+                    if (i % 10 == 0) {
+                        runs.add(distinct[i].clone());
+                    }
+                }
+                replaced.replace(runs);
+                runCount = runs.getRunCount();
+            }
+            boolean sorted = true;
+            ByteBuffer entries = replaced.digests.duplicate();
+            byte[] previous = new byte[DIGEST_SIZE];
+            byte[] entry = new byte[DIGEST_SIZE];
+            for (int i = 0; i < count(replaced.digests); i++) {
+                entries.get(entry);
+                sorted &= i == 0 || Arrays.compareUnsigned(previous, entry) < 0;
+                System.arraycopy(entry, 0, previous, 0, DIGEST_SIZE);
+            }
+            boolean found = true;
+            for (byte[] digest : distinct) {
+                found &= replaced.contains(digest);
+            }
+            System.out.println("Expected: " + 11 + " Actual: " + runCount);
+            System.out.println("Expected: " + distinct.length + " Actual: " + replaced.size());
+            System.out.println("Expected: " + true + " Actual: " + (sorted && found));
+            System.out.println("Expected: " + false + " Actual: "
+                    + Files.exists(Paths.get(file + ".run0")));
+            replaced.close();
+            Files.delete(file);
+
+            file = directory.resolve("crl-delta.digests");
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(file.resolveSibling(file.getFileName() + ".delta"));
+            MappedCRL crl = open(file.toString());
+            byte[][] added = new byte[MERGE_THRESHOLD + 10][DIGEST_SIZE];
+            for (byte[] digest : added) {
+                random.nextBytes(digest);
+                crl.add(digest);
+            }
+            crl.add(added[0]);
+            long deadline = System.currentTimeMillis() + 15000;
+            while ((count(crl.digests) < MERGE_THRESHOLD || crl.size() != added.length)
+                    && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            System.out.println("Expected: " + true + " Actual: " + (count(crl.digests) >= MERGE_THRESHOLD));
+            System.out.println("Expected: " + added.length + " Actual: " + crl.size());
+            crl.close();
+            MappedCRL reopened = open(file.toString());
+            boolean all = true;
+            for (byte[] digest : added) {
+                all &= reopened.contains(digest);
+            }
+            System.out.println("Expected: " + true + " Actual: " + all);
+            reopened.merge();
+            System.out.println("Expected: " + added.length + " Actual: " + count(reopened.digests));
+            System.out.println("Expected: " + 0 + " Actual: "
+                    + Files.size(file.resolveSibling(file.getFileName() + ".delta")));
+            reopened.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static boolean binarySearch(ByteBuffer digests, int count, byte[] digest) {
+        ByteBuffer key = ByteBuffer.wrap(digest);
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int comparison = compare(digests, middle * DIGEST_SIZE, key);
+            if (comparison == 0) {
+                return true;
+            } else if (comparison < 0) {
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return false;
+    }
+}
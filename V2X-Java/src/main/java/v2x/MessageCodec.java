@@ -0,0 +1,356 @@
+package v2x;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compact binary wire format for messages. Every datagram starts with a fixed header followed by a body of
+ * length-prefixed fields:
+ *
+ * <pre>
+ * header: 'V' 'X' | version (1) | type (1) | body length (4)
+ * field:  field id (1) | [key length (1) | key] | value length (2) | value
+ * </pre>
+ *
+ * The key is only written for field id 0, which is used for keys that are not in the field table.
+ *
+ * Datagrams that do not fit into one MTU can be split into fragments of type 3. A receiver asks for lost fragments
+ * with a fragment request of type 4, which lists the missing indices; a request without indices confirms the message.
+ *
+ * <pre>
+ * fragment: message id (4) | index (2) | count (2) | part of the datagram
+ * request:  message id (4) | missing index (2) ...
+ * </pre>
+ */
+public class MessageCodec {
+    static final byte MAGIC_FIRST = 'V';
+    static final byte MAGIC_SECOND = 'X';
+    static final byte VERSION = 1;
+    static final byte TYPE_MESSAGE = 1;
+    static final byte TYPE_FRAGMENT = 3;
+    static final byte TYPE_FRAGMENT_REQUEST = 4;
+    static final int HEADER_LENGTH = 8;
+    static final int CUSTOM_FIELD = 0;
+    static final int MAX_FIELD_LENGTH = 0xFFFF;
+    static final int FRAGMENT_HEADER_LENGTH = 8;
+    static final int FRAGMENT_SIZE = Integer.getInteger("v2x.fragmentSize", 1400);
+    static final int MAX_FRAGMENTS = 64;
+    static final String[] FIELD_NAMES = {null, "Query", "Answer", "Time", "Certificate", "Hash", "TestNumber",
+            "CertificateDigest", "CertificateRequest", "SessionKey", "SessionKeyHash", "Sessions",
+            "TeslaAnchor", "TeslaAnchorHash", "TeslaMac", "TeslaKey", "TeslaChain"};
+
+    /**
+     * Gives the field id of a key, or the custom field id if the key is not in the field table.
+     *
+     * @param key the key of the field
+     * @return <code>int</code> the field id
+     */
+    static int getFieldId(String key) {
+        for (int i = 1; i < FIELD_NAMES.length; i++) {
+            if (FIELD_NAMES[i].equals(key)) {
+                return i;
+            }
+        }
+        return CUSTOM_FIELD;
+    }
+
+    /**
+     * Checks if the bytes start with the header of the binary format.
+     *
+     * @param buffer the received bytes
+     * @param offset where the datagram starts in the buffer
+     * @param length how many bytes were received
+     * @return <code>true</code> if the bytes are in the binary format
+     * <code>false</code> if they are not
+     */
+    public static boolean isBinary(byte[] buffer, int offset, int length) {
+        return length >= HEADER_LENGTH && buffer[offset] == MAGIC_FIRST && buffer[offset + 1] == MAGIC_SECOND;
+    }
+
+    /**
+     * Checks if the bytes are in the binary format and have the given type.
+     *
+     * @param buffer the received bytes
+     * @param offset where the datagram starts in the buffer
+     * @param length how many bytes were received
+     * @param type   the type of the body
+     * @return <code>true</code> if the bytes are of the given type
+     * <code>false</code> if they are not
+     */
+    public static boolean isType(byte[] buffer, int offset, int length, byte type) {
+        return isBinary(buffer, offset, length) && buffer[offset + 3] == type;
+    }
+
+    /**
+     * Turns a message into the binary format.
+     *
+     * @param message a message with keys and values inside
+     * @return <code>byte[]</code> the encoded message
+     * @throws IOException if a key or value is too long for the format
+     */
+    public static byte[] encode(Message message) throws IOException {
+        List<String> names = new ArrayList<>(message.stringPropertyNames());
+        List<byte[]> keys = new ArrayList<>(names.size());
+        List<byte[]> values = new ArrayList<>(names.size());
+        int bodyLength = 0;
+        for (String key : names) {
+            byte[] value = message.getValue(key).getBytes(StandardCharsets.UTF_8);
+            if (value.length > MAX_FIELD_LENGTH) {
+                throw new IOException("Value of " + key + " is too long: " + value.length);
+            }
+            byte[] keyBytes = null;
+            bodyLength += 3 + value.length;
+            if (getFieldId(key) == CUSTOM_FIELD) {
+                keyBytes = key.getBytes(StandardCharsets.UTF_8);
+                if (keyBytes.length > 0xFF) {
+                    throw new IOException("Key is too long: " + key);
+                }
+                bodyLength += 1 + keyBytes.length;
+            }
+            keys.add(keyBytes);
+            values.add(value);
+        }
+
+        ByteBuffer byteBuffer = ByteBuffer.allocate(HEADER_LENGTH + bodyLength);
+        writeHeader(byteBuffer, TYPE_MESSAGE, bodyLength);
+        for (int index = 0; index < names.size(); index++) {
+            byte[] keyBytes = keys.get(index);
+            byte[] value = values.get(index);
+            byteBuffer.put((byte) getFieldId(names.get(index)));
+            if (keyBytes != null) {
+                byteBuffer.put((byte) keyBytes.length);
+                byteBuffer.put(keyBytes);
+            }
+            byteBuffer.putShort((short) value.length);
+            byteBuffer.put(value);
+        }
+        return byteBuffer.array();
+    }
+
+    /**
+     * Writes the header of the binary format.
+     *
+     * @param byteBuffer the buffer to write into
+     * @param type       the type of the body
+     * @param bodyLength the length of the body in bytes
+     */
+    static void writeHeader(ByteBuffer byteBuffer, byte type, int bodyLength) {
+        byteBuffer.put(MAGIC_FIRST);
+        byteBuffer.put(MAGIC_SECOND);
+        byteBuffer.put(VERSION);
+        byteBuffer.put(type);
+        byteBuffer.putInt(bodyLength);
+    }
+
+    /**
+     * Checks the header of the binary format and gives a buffer positioned at the start of the body and limited to
+     * its end.
+     *
+     * @param buffer the received bytes
+     * @param offset where the datagram starts in the buffer
+     * @param length how many bytes were received
+     * @param type   the type the body is expected to have
+     * @return <code>ByteBuffer</code> a view of the body
+     * @throws IOException if the header is invalid
+     */
+    static ByteBuffer readHeader(byte[] buffer, int offset, int length, byte type) throws IOException {
+        if (!isBinary(buffer, offset, length)) {
+            throw new IOException("Not a binary message");
+        }
+        ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, offset, length);
+        byteBuffer.position(offset + 2);
+        byte version = byteBuffer.get();
+        if (version != VERSION) {
+            throw new IOException("Unsupported version: " + version);
+        }
+        byte actualType = byteBuffer.get();
+        if (actualType != type) {
+            throw new IOException("Unexpected type: " + actualType);
+        }
+        int bodyLength = byteBuffer.getInt();
+        if (bodyLength < 0 || bodyLength > length - HEADER_LENGTH) {
+            throw new IOException("Invalid body length: " + bodyLength);
+        }
+        byteBuffer.limit(byteBuffer.position() + bodyLength);
+        return byteBuffer;
+    }
+
+    /**
+     * Turns bytes in the binary format back into a message.
+     *
+     * @param buffer the received bytes
+     * @param offset where the datagram starts in the buffer
+     * @param length how many bytes were received
+     * @return <code>Message</code> a message with keys and values inside
+     * @throws IOException if the bytes are not a valid message
+     */
+    public static Message decode(byte[] buffer, int offset, int length) throws IOException {
+        ByteBuffer byteBuffer = readHeader(buffer, offset, length, TYPE_MESSAGE);
+        Message message = new Message();
+        try {
+            while (byteBuffer.hasRemaining()) {
+                int fieldId = byteBuffer.get() & 0xFF;
+                String key;
+                if (fieldId == CUSTOM_FIELD) {
+                    int keyLength = byteBuffer.get() & 0xFF;
+                    key = readString(byteBuffer, keyLength);
+                } else if (fieldId < FIELD_NAMES.length) {
+                    key = FIELD_NAMES[fieldId];
+                } else {
+                    throw new IOException("Unknown field id: " + fieldId);
+                }
+                int valueLength = byteBuffer.getShort() & 0xFFFF;
+                message.putValue(key, readString(byteBuffer, valueLength));
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated message");
+        }
+        return message;
+    }
+
+    /**
+     * Splits an encoded datagram into fragments that each carry at most the given number of its bytes.
+     *
+     * @param data         the encoded datagram
+     * @param messageId    the id shared by all fragments of the datagram
+     * @param fragmentSize how many bytes of the datagram go into one fragment
+     * @return <code>byte[][]</code> the encoded fragments in order
+     * @throws IOException if the datagram needs too many fragments
+     */
+    public static byte[][] fragment(byte[] data, int messageId, int fragmentSize) throws IOException {
+        int count = (data.length + fragmentSize - 1) / fragmentSize;
+        if (count > MAX_FRAGMENTS) {
+            throw new IOException("Too many fragments: " + count);
+        }
+        byte[][] fragments = new byte[count][];
+        for (int index = 0; index < count; index++) {
+            int offset = index * fragmentSize;
+            int length = Math.min(fragmentSize, data.length - offset);
+            ByteBuffer byteBuffer = ByteBuffer.allocate(HEADER_LENGTH + FRAGMENT_HEADER_LENGTH + length);
+            writeHeader(byteBuffer, TYPE_FRAGMENT, FRAGMENT_HEADER_LENGTH + length);
+            byteBuffer.putInt(messageId);
+            byteBuffer.putShort((short) index);
+            byteBuffer.putShort((short) count);
+            byteBuffer.put(data, offset, length);
+            fragments[index] = byteBuffer.array();
+        }
+        return fragments;
+    }
+
+    /**
+     * Encodes a request for the missing fragments of a datagram. Without missing indices it confirms the datagram.
+     *
+     * @param messageId    the id of the fragmented datagram
+     * @param missing      the indices of the missing fragments
+     * @param missingCount how many of the indices are used
+     * @return <code>byte[]</code> the encoded request
+     */
+    public static byte[] encodeFragmentRequest(int messageId, int[] missing, int missingCount) {
+        int bodyLength = 4 + 2 * missingCount;
+        ByteBuffer byteBuffer = ByteBuffer.allocate(HEADER_LENGTH + bodyLength);
+        writeHeader(byteBuffer, TYPE_FRAGMENT_REQUEST, bodyLength);
+        byteBuffer.putInt(messageId);
+        for (int i = 0; i < missingCount; i++) {
+            byteBuffer.putShort((short) missing[i]);
+        }
+        return byteBuffer.array();
+    }
+
+    private static String readString(ByteBuffer byteBuffer, int length) throws IOException {
+        if (length > byteBuffer.remaining()) {
+            throw new IOException("Truncated field");
+        }
+        String value = new String(byteBuffer.array(), byteBuffer.position(), length, StandardCharsets.UTF_8);
+        byteBuffer.position(byteBuffer.position() + length);
+        return value;
+    }
+
+    private static byte[] serialize(Message message) throws IOException {
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        ObjectOutputStream objectOutputStream = new ObjectOutputStream(byteArrayOutputStream);
+        objectOutputStream.writeObject(message);
+        objectOutputStream.flush();
+        return byteArrayOutputStream.toByteArray();
+    }
+
+    private static Message deserialize(byte[] data) throws IOException, ClassNotFoundException {
+        return (Message) new ObjectInputStream(new ByteArrayInputStream(data)).readObject();
+    }
+
+    /**
+     * Round trips the messages of the experiments through the binary format and compares its size and latency with
+     * Java serialization.
+     */
+    public static void main(String[] args) {
+        try {
+            String certificate = AuthenticationFunctions.getCertificate(Querier.OWN_CERTIFICATE_LOCATION);
+            Message query = new Message();
+            query.putValue("Query", "Query");
+            query.putValue("Certificate", certificate);
+            query.putValue("Hash", "c2lnbmF0dXJl");
+            query.putValue("Time", String.valueOf(System.currentTimeMillis()));
+            query.putValue("TestNumber", "42");
+            Message answer = new Message();
+            answer.putValue("Answer", "0");
+            answer.putValue("Time", String.valueOf(System.currentTimeMillis()));
+            Message custom = new Message();
+            custom.putValue("Custom", "åäö");
+            custom.putValue("Empty", "");
+
+            int iterations = 10000;
+            for (Message message : new Message[]{query, answer, custom}) {
+                byte[] binary = encode(message);
+                byte[] serialized = serialize(message);
+                Message decoded = decode(binary, 0, binary.length);
+                System.out.println("Expected: " + true + " Actual: " + message.equals(decoded));
+                System.out.println("Expected: " + true + " Actual: "
+                        + message.equals(CommunicationFunctions.byteArrayToMessage(serialized)));
+
+                long binaryStart = System.nanoTime();
+                for (int i = 0; i < iterations; i++) {
+                    byte[] data = encode(message);
+                    decode(data, 0, data.length);
+                }
+                long binaryTime = System.nanoTime() - binaryStart;
+                long serializedStart = System.nanoTime();
+                for (int i = 0; i < iterations; i++) {
+                    deserialize(serialize(message));
+                }
+                long serializedTime = System.nanoTime() - serializedStart;
+
+                System.out.println("fields: " + message.size()
+                        + " binary: " + binary.length + " bytes, " + binaryTime / iterations + " ns"
+                        + " serialized: " + serialized.length + " bytes, " + serializedTime / iterations + " ns");
+            }
+
+            MessageView view = new MessageView();
+            byte[] queryBytes = encode(query);
+            view.wrap(queryBytes, 0, queryBytes.length);
+            System.out.println("Expected: " + true + " Actual: " + view.valueEquals("Query", "Query"));
+            System.out.println("Expected: " + true + " Actual: " + certificate.equals(view.getValue("Certificate")));
+            byte[] customBytes = encode(custom);
+            view.wrap(customBytes, 0, customBytes.length);
+            System.out.println("Expected: " + false + " Actual: " + view.valueEquals("Query", "Query"));
+            System.out.println("Expected: " + true + " Actual: " + view.valueEquals("Custom", "åäö"));
+            System.out.println("Expected: " + true + " Actual: " + custom.equals(view.toMessage()));
+
+            byte[] truncated = encode(answer);
+            try {
+                decode(truncated, 0, truncated.length - 1);
+                System.out.println("Expected: " + false + " Actual: " + true);
+            } catch (IOException e) {
+                System.out.println("Expected: " + false + " Actual: " + false);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package v2x;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * Read-only view of a received message. Wrapping only reads the header and the offsets of the fields; a value is
+ * turned into a String the first time it is asked for. The same view is meant to be reused for every datagram a
+ * thread receives, so dropping a message that is not of interest costs no allocations.
+ *
+ * Datagrams in Java serialization are decoded into a {@link Message} as before and the view reads from that.
+ */
+public class MessageView {
+    private static final int INITIAL_FIELDS = 8;
+
+    private byte[] buffer;
+    private int count;
+    private int[] fieldIds = new int[INITIAL_FIELDS];
+    private int[] keyOffsets = new int[INITIAL_FIELDS];
+    private int[] keyLengths = new int[INITIAL_FIELDS];
+    private int[] valueOffsets = new int[INITIAL_FIELDS];
+    private int[] valueLengths = new int[INITIAL_FIELDS];
+    private String[] values = new String[INITIAL_FIELDS];
+    private Message fallback;
+
+    /**
+     * Points the view at a new datagram and reads the offsets of its fields.
+     *
+     * @param buffer the received bytes
+     * @param offset where the datagram starts in the buffer
+     * @param length how many bytes were received
+     * @return <code>MessageView</code> this view
+     * @throws IOException if the bytes are not a valid message
+     * @throws ClassNotFoundException if a serialized datagram holds an unknown class
+     */
+    public MessageView wrap(byte[] buffer, int offset, int length) throws IOException, ClassNotFoundException {
+        this.buffer = buffer;
+        this.count = 0;
+        this.fallback = null;
+        if (!MessageCodec.isBinary(buffer, offset, length)) {
+            fallback = CommunicationFunctions.byteArrayToMessage(buffer, offset, length);
+            return this;
+        }
+
+        int position = offset + MessageCodec.HEADER_LENGTH;
+        int end = position + readBodyLength(buffer, offset, length);
+        while (position < end) {
+            int fieldId = buffer[position++] & 0xFF;
+            int keyOffset = -1;
+            int keyLength = 0;
+            if (fieldId == MessageCodec.CUSTOM_FIELD) {
+                checkRemaining(position, 1, end);
+                keyLength = buffer[position++] & 0xFF;
+                keyOffset = position;
+                position += keyLength;
+            } else if (fieldId >= MessageCodec.FIELD_NAMES.length) {
+                throw new IOException("Unknown field id: " + fieldId);
+            }
+            checkRemaining(position, 2, end);
+            int valueLength = ((buffer[position] & 0xFF) << 8) | (buffer[position + 1] & 0xFF);
+            position += 2;
+            checkRemaining(position, valueLength, end);
+            addField(fieldId, keyOffset, keyLength, position, valueLength);
+            position += valueLength;
+        }
+        return this;
+    }
+
+    private static int readBodyLength(byte[] buffer, int offset, int length) throws IOException {
+        if (buffer[offset + 2] != MessageCodec.VERSION) {
+            throw new IOException("Unsupported version: " + buffer[offset + 2]);
+        }
+        if (buffer[offset + 3] != MessageCodec.TYPE_MESSAGE) {
+            throw new IOException("Unexpected type: " + buffer[offset + 3]);
+        }
+        int bodyLength = ((buffer[offset + 4] & 0xFF) << 24) | ((buffer[offset + 5] & 0xFF) << 16)
+                | ((buffer[offset + 6] & 0xFF) << 8) | (buffer[offset + 7] & 0xFF);
+        if (bodyLength < 0 || bodyLength > length - MessageCodec.HEADER_LENGTH) {
+            throw new IOException("Invalid body length: " + bodyLength);
+        }
+        return bodyLength;
+    }
+
+    private static void checkRemaining(int position, int needed, int end) throws IOException {
+        if (position + needed > end) {
+            throw new IOException("Truncated message");
+        }
+    }
+
+    private void addField(int fieldId, int keyOffset, int keyLength, int valueOffset, int valueLength) {
+        if (count == fieldIds.length) {
+            int size = count * 2;
+            fieldIds = Arrays.copyOf(fieldIds, size);
+            keyOffsets = Arrays.copyOf(keyOffsets, size);
+            keyLengths = Arrays.copyOf(keyLengths, size);
+            valueOffsets = Arrays.copyOf(valueOffsets, size);
+            valueLengths = Arrays.copyOf(valueLengths, size);
+            values = Arrays.copyOf(values, size);
+        }
+        fieldIds[count] = fieldId;
+        keyOffsets[count] = keyOffset;
+        keyLengths[count] = keyLength;
+        valueOffsets[count] = valueOffset;
+        valueLengths[count] = valueLength;
+        values[count] = null;
+        count++;
+    }
+
+    private int indexOf(String key) {
+        int fieldId = MessageCodec.getFieldId(key);
+        for (int i = 0; i < count; i++) {
+            if (fieldIds[i] != fieldId) {
+                continue;
+            }
+            if (fieldId != MessageCodec.CUSTOM_FIELD || equalsText(keyOffsets[i], keyLengths[i], key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean equalsText(int offset, int length, String expected) {
+        boolean ascii = true;
+        for (int i = 0; i < expected.length(); i++) {
+            if (expected.charAt(i) > 0x7F) {
+                ascii = false;
+                break;
+            }
+        }
+        if (!ascii) {
+            return expected.equals(new String(buffer, offset, length, StandardCharsets.UTF_8));
+        }
+        if (length != expected.length()) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (buffer[offset + i] != (byte) expected.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gives the value of a key, turning it into a String the first time it is asked for.
+     *
+     * @param key the key of the value
+     * @return <code>String</code> the value, or <code>null</code> if the message has no such key
+     */
+    public String getValue(String key) {
+        if (fallback != null) {
+            return fallback.getValue(key);
+        }
+        int index = indexOf(key);
+        if (index < 0) {
+            return null;
+        }
+        if (values[index] == null) {
+            values[index] = new String(buffer, valueOffsets[index], valueLengths[index], StandardCharsets.UTF_8);
+        }
+        return values[index];
+    }
+
+    /**
+     * Gives the UTF-8 bytes of a value without turning it into a String.
+     *
+     * @param key the key of the value
+     * @return <code>byte[]</code> the bytes of the value, or <code>null</code> if the message has no such key
+     */
+    public byte[] getBytes(String key) {
+        if (fallback != null) {
+            String value = fallback.getValue(key);
+            return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+        }
+        int index = indexOf(key);
+        if (index < 0) {
+            return null;
+        }
+        return Arrays.copyOfRange(buffer, valueOffsets[index], valueOffsets[index] + valueLengths[index]);
+    }
+
+    /**
+     * Decodes a base64 value, such as a signature, straight from the received bytes.
+     *
+     * @param key the key of the value
+     * @return <code>byte[]</code> the decoded value, or <code>null</code> if the message has no such key or the value
+     * is not base64
+     */
+    public byte[] getBase64Value(String key) {
+        if (fallback != null) {
+            return AuthenticationFunctions.decodeSignature(fallback.getValue(key));
+        }
+        int index = indexOf(key);
+        if (index < 0) {
+            return null;
+        }
+        try {
+            ByteBuffer decoded = Base64.getDecoder().decode(
+                    ByteBuffer.wrap(buffer, valueOffsets[index], valueLengths[index]));
+            if (decoded.arrayOffset() == 0 && decoded.remaining() == decoded.array().length) {
+                return decoded.array();
+            }
+            byte[] value = new byte[decoded.remaining()];
+            decoded.get(value);
+            return value;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Checks if the value of a key is equal to the expected value without turning it into a String.
+     *
+     * @param key      the key of the value
+     * @param expected the expected value
+     * @return <code>true</code> if the message has the key with the expected value
+     * <code>false</code> if it does not
+     */
+    public boolean valueEquals(String key, String expected) {
+        if (fallback != null) {
+            return expected.equals(fallback.getValue(key));
+        }
+        int index = indexOf(key);
+        if (index < 0) {
+            return false;
+        }
+        return equalsText(valueOffsets[index], valueLengths[index], expected);
+    }
+
+    /**
+     * Copies every field of the view into a message.
+     *
+     * @return <code>Message</code> a message with the keys and values of the view
+     */
+    public Message toMessage() {
+        if (fallback != null) {
+            return fallback;
+        }
+        Message message = new Message();
+        for (int i = 0; i < count; i++) {
+            String key = fieldIds[i] == MessageCodec.CUSTOM_FIELD
+                    ? new String(buffer, keyOffsets[i], keyLengths[i], StandardCharsets.UTF_8)
+                    : MessageCodec.FIELD_NAMES[fieldIds[i]];
+            if (values[i] == null) {
+                values[i] = new String(buffer, valueOffsets[i], valueLengths[i], StandardCharsets.UTF_8);
+            }
+            message.putValue(key, values[i]);
+        }
+        return message;
+    }
+}
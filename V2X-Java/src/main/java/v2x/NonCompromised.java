@@ -5,6 +5,7 @@ import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
 import java.io.*;
 import java.net.*;
+import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
@@ -120,16 +121,9 @@ public class NonCompromised {
      * @return <code>String</code> a string that is the IP address of the sender
      * @throws IOException
      * @throws ClassNotFoundException
-     * @throws CertificateException
-     * @throws NoSuchAlgorithmException
-     * @throws IllegalBlockSizeException
-     * @throws BadPaddingException
-     * @throws NoSuchPaddingException
-     * @throws InvalidKeyException
+     * @throws GeneralSecurityException
      */
-    private static String[] receiveQueryTest2() throws IOException, ClassNotFoundException, CertificateException,
-            NoSuchAlgorithmException, IllegalBlockSizeException, BadPaddingException,
-            NoSuchPaddingException, InvalidKeyException {
+    private static String[] receiveQueryTest2() throws IOException, ClassNotFoundException, GeneralSecurityException {
         MulticastSocket serverSocket = new MulticastSocket(MULTICAST_PORT);
         InetAddress group = InetAddress.getByName("225.0.0.0");
         serverSocket.joinGroup(group);
@@ -161,21 +155,14 @@ public class NonCompromised {
      *
      * @param returnIPAddress a string that is the IP address of who to send to
      * @throws IOException
-     * @throws InvalidKeySpecException
-     * @throws NoSuchAlgorithmException
-     * @throws IllegalBlockSizeException
-     * @throws InvalidKeyException
-     * @throws BadPaddingException
-     * @throws NoSuchPaddingException
+     * @throws GeneralSecurityException
      */
-    private static void sendAnswerTest2(String returnIPAddress, String time) throws IOException, InvalidKeySpecException,
-            NoSuchAlgorithmException, IllegalBlockSizeException, InvalidKeyException,
-            BadPaddingException, NoSuchPaddingException {
+    private static void sendAnswerTest2(String returnIPAddress, String time)
+            throws IOException, GeneralSecurityException {
         String userCertificate = AuthenticationFunctions.getCertificate(OWN_CERTIFICATE_LOCATION);
         PrivateKey userPrivateKey = AuthenticationFunctions.getPrivateKey(OWN_PRIVATE_KEY_LOCATION);
         String message = "0";
-        String hash = AuthenticationFunctions.hashMessage(message);
-        String authentication = AuthenticationFunctions.encryptMessage(hash, userPrivateKey);
+        String authentication = AuthenticationFunctions.signMessage(message, userPrivateKey);
         InetAddress address = InetAddress.getByName(returnIPAddress);
         DatagramSocket clientSocket = new DatagramSocket();
         Message answer = new Message();
@@ -222,16 +209,9 @@ public class NonCompromised {
      * @return <code>String</code> a string that is the IP address of the sender
      * @throws IOException
      * @throws ClassNotFoundException
-     * @throws CertificateException
-     * @throws NoSuchAlgorithmException
-     * @throws IllegalBlockSizeException
-     * @throws BadPaddingException
-     * @throws NoSuchPaddingException
-     * @throws InvalidKeyException
+     * @throws GeneralSecurityException
      */
-    private static String[] receiveQueryTest3() throws IOException, ClassNotFoundException, CertificateException,
-            NoSuchAlgorithmException, IllegalBlockSizeException, BadPaddingException,
-            NoSuchPaddingException, InvalidKeyException {
+    private static String[] receiveQueryTest3() throws IOException, ClassNotFoundException, GeneralSecurityException {
         MulticastSocket serverSocket = new MulticastSocket(MULTICAST_PORT);
         InetAddress group = InetAddress.getByName("225.0.0.0");
         serverSocket.joinGroup(group);
@@ -263,16 +243,10 @@ public class NonCompromised {
      *
      * @param returnIPAddress a string that is the IP address of who to send to
      * @throws IOException
-     * @throws InvalidKeySpecException
-     * @throws NoSuchAlgorithmException
-     * @throws IllegalBlockSizeException
-     * @throws InvalidKeyException
-     * @throws BadPaddingException
-     * @throws NoSuchPaddingException
+     * @throws GeneralSecurityException
      */
-    private static void sendAnswerTest3(String returnIPAddress, int number, String time) throws IOException, InvalidKeySpecException,
-            NoSuchAlgorithmException, IllegalBlockSizeException, InvalidKeyException,
-            BadPaddingException, NoSuchPaddingException {
+    private static void sendAnswerTest3(String returnIPAddress, int number, String time)
+            throws IOException, GeneralSecurityException {
         String userCertificate = AuthenticationFunctions
                 .getCertificate("Authentication/OBU-N-certificate" + number + ".crt");
         PrivateKey userPrivateKey = AuthenticationFunctions
@@ -280,8 +254,7 @@ public class NonCompromised {
         PrivateKey dnsPrivateKey = AuthenticationFunctions.getPrivateKey(DNS_PRIVATE_KEY);
 
         String innerAnswer = "0";
-        String innerHash = AuthenticationFunctions.hashMessage(innerAnswer);
-        String innerEncryptedHash = AuthenticationFunctions.encryptMessage(innerHash, dnsPrivateKey);
+        String innerEncryptedHash = AuthenticationFunctions.signMessage(innerAnswer, dnsPrivateKey);
 
         Message innerMessage = new Message();
         innerMessage.putValue("Answer", innerAnswer);
@@ -291,8 +264,7 @@ public class NonCompromised {
         byte[] innerMessageByteBase64 = Base64.getEncoder().encode(innerMessageByte);
         String innerMessageString = new String(innerMessageByteBase64);
 
-        String outerHash = AuthenticationFunctions.hashMessage(innerMessageString);
-        String outerEncryptedHash = AuthenticationFunctions.encryptMessage(outerHash, userPrivateKey);
+        String outerEncryptedHash = AuthenticationFunctions.signMessage(innerMessageString, userPrivateKey);
 
         Message outerMessage = new Message();
         outerMessage.putValue("Answer", innerMessageString);
@@ -323,7 +295,8 @@ public class NonCompromised {
      * @throws InvalidKeyException
      * @throws InvalidKeySpecException
      */
-    private static synchronized void  runThirdTest(int rate) throws IOException, ClassNotFoundException, CertificateException,
+    private static synchronized void  runThirdTest(int rate)
+            throws IOException, ClassNotFoundException, CertificateException,
             NoSuchAlgorithmException, IllegalBlockSizeException, BadPaddingException, NoSuchPaddingException,
             InvalidKeyException, InvalidKeySpecException {
         MulticastSocket serverSocket = new MulticastSocket(MULTICAST_PORT);
@@ -351,9 +324,8 @@ public class NonCompromised {
 //        }
     }
     
-    private static String[] receiveQueryTest4() throws IOException, ClassNotFoundException, CertificateException,
-            NoSuchAlgorithmException, IllegalBlockSizeException, BadPaddingException,
-            NoSuchPaddingException, InvalidKeyException {
+    private static String[] receiveQueryTest4()
+            throws IOException, ClassNotFoundException, GeneralSecurityException {
         MulticastSocket serverSocket = new MulticastSocket(MULTICAST_PORT);
         InetAddress group = InetAddress.getByName("225.0.0.0");
         serverSocket.joinGroup(group);
@@ -380,9 +352,7 @@ public class NonCompromised {
     }
 
     private static void sendAnswerTest4(String returnIPAddress, int number, String time)
-            throws IOException, InvalidKeySpecException,
-            NoSuchAlgorithmException, IllegalBlockSizeException, InvalidKeyException,
-            BadPaddingException, NoSuchPaddingException {
+            throws IOException, GeneralSecurityException {
         String userCertificate = AuthenticationFunctions
                 .getCertificate("Authentication/OBU-N-certificate" + number + ".crt");
         PrivateKey userPrivateKey = AuthenticationFunctions
@@ -398,8 +368,7 @@ public class NonCompromised {
         byte[] innerMessageByteBase64 = Base64.getEncoder().encode(innerMessageByte);
         String innerMessageString = new String(innerMessageByteBase64);
 
-        String outerHash = AuthenticationFunctions.hashMessage(innerMessageString);
-        String outerEncryptedHash = AuthenticationFunctions.encryptMessage(outerHash, userPrivateKey);
+        String outerEncryptedHash = AuthenticationFunctions.signMessage(innerMessageString, userPrivateKey);
 
         Message outerMessage = new Message();
         outerMessage.putValue("Answer", innerMessageString);
@@ -417,7 +386,8 @@ public class NonCompromised {
         clientSocket.close();
     }
 
-    private static synchronized void runFourthTest(int rate) throws IOException, ClassNotFoundException, CertificateException,
+    private static synchronized void runFourthTest(int rate)
+            throws IOException, ClassNotFoundException, CertificateException,
             NoSuchAlgorithmException, IllegalBlockSizeException, BadPaddingException, NoSuchPaddingException,
             InvalidKeyException, InvalidKeySpecException {
         MulticastSocket serverSocket = new MulticastSocket(MULTICAST_PORT);
@@ -0,0 +1,171 @@
+package v2x;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.ObjectInputFilter;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Cheap checks that run on a received query before it is decoded, so garbage and floods are dropped without
+ * building any object graph. Binary datagrams must have the right version, type and an exact body length; Java
+ * serialized datagrams must start with a serialized object and are read through {@link #MESSAGE_FILTER}.
+ */
+public class PacketFilter {
+    static final String TOO_SHORT = "too_short";
+    static final String BAD_MAGIC = "bad_magic";
+    static final String BAD_VERSION = "bad_version";
+    static final String BAD_TYPE = "bad_type";
+    static final String BAD_LENGTH = "bad_length";
+    static final String REJECTED = "rejected";
+    static final String MALFORMED = "malformed";
+
+    static final int REPORT_INTERVAL = 1000;
+
+    private static final int STREAM_HEADER_LENGTH = 5;
+    private static final byte STREAM_MAGIC_FIRST = (byte) 0xAC;
+    private static final byte STREAM_MAGIC_SECOND = (byte) 0xED;
+    private static final byte STREAM_VERSION = 5;
+    private static final byte TC_OBJECT = 0x73;
+
+    /**
+     * Only lets a {@link Message} with a few string fields through Java deserialization.
+     */
+    static final ObjectInputFilter MESSAGE_FILTER = ObjectInputFilter.Config.createFilter(
+            "maxdepth=4;maxrefs=64;maxarray=64;maxbytes=" + CommunicationFunctions.RECEIVE_BUFFER_SIZE
+                    + ";v2x.Message;java.util.Properties;java.util.Hashtable;java.util.Map$Entry;java.lang.String;!*");
+
+    /**
+     * Checks the header of a received query.
+     *
+     * @param buffer the received bytes
+     * @param offset where the datagram starts in the buffer
+     * @param length how many bytes were received
+     * @return <code>String</code> the reason to drop the datagram, or <code>null</code> if it may be decoded
+     */
+    public static String check(byte[] buffer, int offset, int length) {
+        if (length < STREAM_HEADER_LENGTH) {
+            return TOO_SHORT;
+        }
+        byte first = buffer[offset];
+        byte second = buffer[offset + 1];
+        if (first == MessageCodec.MAGIC_FIRST && second == MessageCodec.MAGIC_SECOND) {
+            if (length < MessageCodec.HEADER_LENGTH) {
+                return TOO_SHORT;
+            }
+            if (buffer[offset + 2] != MessageCodec.VERSION) {
+                return BAD_VERSION;
+            }
+            if (buffer[offset + 3] != MessageCodec.TYPE_MESSAGE) {
+                return BAD_TYPE;
+            }
+            int bodyLength = ((buffer[offset + 4] & 0xFF) << 24) | ((buffer[offset + 5] & 0xFF) << 16)
+                    | ((buffer[offset + 6] & 0xFF) << 8) | (buffer[offset + 7] & 0xFF);
+            if (bodyLength != length - MessageCodec.HEADER_LENGTH) {
+                return BAD_LENGTH;
+            }
+            return null;
+        }
+        if (first == STREAM_MAGIC_FIRST && second == STREAM_MAGIC_SECOND) {
+            if (buffer[offset + 2] != 0 || buffer[offset + 3] != STREAM_VERSION) {
+                return BAD_VERSION;
+            }
+            if (buffer[offset + 4] != TC_OBJECT) {
+                return BAD_TYPE;
+            }
+            return null;
+        }
+        return BAD_MAGIC;
+    }
+
+    /**
+     * Checks a received query and points the view at it, or counts it as dropped. Every
+     * {@link #REPORT_INTERVAL} drops the counts are printed.
+     *
+     * @param message     the view to point at the query
+     * @param buffer      the received bytes
+     * @param offset      where the datagram starts in the buffer
+     * @param length      how many bytes were received
+     * @param dropCounter the counter of dropped datagrams
+     * @return <code>true</code> if the query can be processed
+     * <code>false</code> if it was dropped
+     */
+    public static boolean accept(MessageView message, byte[] buffer, int offset, int length,
+                                 DropCounter dropCounter) {
+        String reason = check(buffer, offset, length);
+        if (reason == null) {
+            try {
+                message.wrap(buffer, offset, length);
+                return true;
+            } catch (InvalidClassException e) {
+                reason = REJECTED;
+            } catch (IOException | ClassNotFoundException | ClassCastException e) {
+                reason = MALFORMED;
+            }
+        }
+        dropCounter.addDrop(reason);
+        if (dropCounter.getTotal() % REPORT_INTERVAL == 0) {
+            System.out.println(dropCounter);
+        }
+        return false;
+    }
+
+    /**
+     * Feeds valid, truncated and random datagrams through the checks and reports how long a check takes.
+     */
+    public static void main(String[] args) {
+        try {
+            Message query = new Message();
+            query.putValue("Query", "Query");
+            query.putValue("Time", String.valueOf(System.currentTimeMillis()));
+            byte[] binary = MessageCodec.encode(query);
+            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+            ObjectOutputStream objectOutputStream = new ObjectOutputStream(byteArrayOutputStream);
+            objectOutputStream.writeObject(query);
+            objectOutputStream.flush();
+            byte[] serialized = byteArrayOutputStream.toByteArray();
+
+            System.out.println("Expected: " + null + " Actual: " + check(binary, 0, binary.length));
+            System.out.println("Expected: " + null + " Actual: " + check(serialized, 0, serialized.length));
+            System.out.println("Expected: " + BAD_LENGTH + " Actual: " + check(binary, 0, binary.length - 1));
+            System.out.println("Expected: " + TOO_SHORT + " Actual: " + check(binary, 0, 3));
+            System.out.println("Expected: " + true + " Actual: "
+                    + query.equals(CommunicationFunctions.byteArrayToMessage(serialized)));
+
+            byteArrayOutputStream = new ByteArrayOutputStream();
+            objectOutputStream = new ObjectOutputStream(byteArrayOutputStream);
+            objectOutputStream.writeObject(new ArrayList<>(query.stringPropertyNames()));
+            objectOutputStream.flush();
+            byte[] other = byteArrayOutputStream.toByteArray();
+            try {
+                CommunicationFunctions.byteArrayToMessage(other);
+                System.out.println("Expected: " + REJECTED + " Actual: " + null);
+            } catch (IOException e) {
+                System.out.println("Expected: " + REJECTED + " Actual: " + REJECTED);
+            }
+
+            DropCounter dropCounter = new DropCounter();
+            byte[][] garbage = new byte[1024][1400];
+            Random random = new Random(1);
+            for (byte[] datagram : garbage) {
+                random.nextBytes(datagram);
+            }
+            int iterations = 1000000;
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                byte[] datagram = garbage[i % garbage.length];
+                String reason = check(datagram, 0, datagram.length);
+                if (reason != null) {
+                    dropCounter.addDrop(reason);
+                }
+            }
+            long time = System.nanoTime() - start;
+            System.out.println("Expected: " + iterations + " Actual: " + dropCounter.getTotal());
+            System.out.println("random datagrams: " + time / iterations + " ns each, " + dropCounter);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
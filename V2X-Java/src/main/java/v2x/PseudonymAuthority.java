@@ -1,10 +1,226 @@
 package v2x;
 
+import javax.security.auth.x500.X500Principal;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
+/**
+ * Issues the pseudonyms of a vehicle. Every pseudonym carries a linkage value in the <code>pseudonym</code>
+ * attribute of its subject, derived from a secret seed of the vehicle and the number of the pseudonym as in SCMS.
+ * Whoever holds the seed can link every pseudonym of the vehicle, so the seeds are only kept by the authority in
+ * {@link #LINKAGE_SEEDS_LOCATION} and must not be given to Queriers or OBUs. A Querier puts the pseudonym it caught
+ * on the CRL, and the authority puts the seed of its vehicle there with {@link #revokeLinked(String)}, which revokes
+ * every pseudonym of the vehicle by that one entry. From then on anybody can link all pseudonyms of the vehicle,
+ * including the ones it used before it was revoked.
+ * <p>
+ * The authority runs as its own process, <code>PseudonymAuthority watch &lt;crl&gt;</code>, which does this every time
+ * the CRL changes; in tests 3 and 4 the Querier starts it with {@link #startWatching(String)} when there are seeds.
+ * Until the seed is on the CRL, the other pseudonyms of the vehicle are not revoked yet.
+ */
 public class PseudonymAuthority {
     static int CERTIFICATE_AMOUNT = 1000;
+    static final String LINKAGE_SEEDS_LOCATION = "Authentication/linkage-seeds.txt";
+    static final int LINKAGE_SEED_SIZE = 16;
+    static final int LINKAGE_VALUE_SIZE = 16;
+    static final String PSEUDONYM_OID = "2.5.4.65";
+    static final int WATCH_INTERVAL = 100;
+
+    private static final SecureRandom random = new SecureRandom();
+    private static Map<String, String> linkageSeeds = Collections.emptyMap();
+    private static long linkageSeedsVersion = -1;
+
+    /**
+     * Makes a new secret seed for the linkage values of a vehicle.
+     *
+     * @return <code>String</code> the seed as url-safe base64
+     */
+    static String newLinkageSeed() {
+        byte[] seed = new byte[LINKAGE_SEED_SIZE];
+        random.nextBytes(seed);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(seed);
+    }
+
+    /**
+     * Derives the linkage value of a pseudonym: the first {@link #LINKAGE_VALUE_SIZE} bytes of the SHA-256 hash of
+     * the seed of the vehicle and the number of the pseudonym.
+     *
+     * @param seed   the seed of the vehicle
+     * @param number the number of the pseudonym
+     * @return <code>String</code> the linkage value as url-safe base64, which can be used in a subject as is
+     */
+    public static String linkageValue(String seed, int number) {
+        try {
+            MessageDigest digest = AuthenticationFunctions.DIGESTS.acquire("SHA-256");
+            digest.update(Base64.getUrlDecoder().decode(seed));
+            byte[] hash = digest.digest(ByteBuffer.allocate(Integer.BYTES).putInt(number).array());
+            AuthenticationFunctions.DIGESTS.release("SHA-256", digest);
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(Arrays.copyOf(hash, LINKAGE_VALUE_SIZE));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Gives the linkage value of a pseudonym.
+     *
+     * @param certificate the pseudonym
+     * @return <code>String</code> the linkage value, or <code>null</code> if the certificate has none
+     */
+    public static String getLinkageValue(X509Certificate certificate) {
+        return getLinkageValue(certificate.getSubjectX500Principal().getName(X500Principal.RFC2253,
+                Collections.singletonMap(PSEUDONYM_OID, "PSEUDONYM")));
+    }
+
+    static String getLinkageValue(String subject) {
+        for (String attribute : subject.split(",")) {
+            if (attribute.startsWith("PSEUDONYM=")) {
+                return attribute.substring("PSEUDONYM=".length());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Finds the seed a linkage value was derived from, as the authority does to revoke every pseudonym of a
+     * vehicle. The linkage values of all issued pseudonyms are derived once and again when a vehicle is added.
+     *
+     * @param linkageValue the linkage value of a pseudonym
+     * @return <code>String</code> the seed, or <code>null</code> if the pseudonym was not issued with the seeds on
+     * this node
+     * @throws IOException
+     */
+    public static String findLinkageSeed(String linkageValue) throws IOException {
+        if (linkageValue == null || !new File(LINKAGE_SEEDS_LOCATION).exists()) {
+            return null;
+        }
+        long version = CredentialStore.getVersion(LINKAGE_SEEDS_LOCATION);
+        synchronized (PseudonymAuthority.class) {
+            if (version != linkageSeedsVersion) {
+                Map<String, String> seeds = new HashMap<>();
+                for (String seed : Files.readAllLines(Paths.get(LINKAGE_SEEDS_LOCATION))) {
+                    for (int number = 0; number < CERTIFICATE_AMOUNT; number++) {
+                        seeds.put(linkageValue(seed, number), seed);
+                    }
+                }
+                linkageSeeds = seeds;
+                linkageSeedsVersion = version;
+            }
+            return linkageSeeds.get(linkageValue);
+        }
+    }
+
+    /**
+     * Puts the seed of each vehicle whose pseudonym is on a CRL on the CRL as well, which revokes every pseudonym of
+     * the vehicle. Run by the authority, since only it has the seeds; the linkage value is taken from the revoked
+     * pseudonym.
+     *
+     * @param crlLocation a string of the location of the CRL
+     * @return <code>int</code> the number of seeds added
+     * @throws IOException if the CRL or the seeds cannot be read or the CRL cannot be written
+     */
+    public static int revokeLinked(String crlLocation) throws IOException {
+        Set<String> revoked = new HashSet<>();
+        List<String> certificates = new ArrayList<>();
+        for (String line : AuthenticationFunctions.getCertificateRevocationList(crlLocation)) {
+            if (line.startsWith(RevocationIndex.LINKAGE_PREFIX)) {
+                revoked.add(line.substring(RevocationIndex.LINKAGE_PREFIX.length()));
+            } else {
+                certificates.add(line);
+            }
+        }
+        int added = 0;
+        for (String certificate : certificates) {
+            String seed;
+            try {
+                seed = findLinkageSeed(CertificateCache.resolve(certificate, null).getLinkageValue());
+            } catch (CertificateException | IllegalArgumentException e) {
+                continue;
+            }
+            if (seed != null && revoked.add(seed)) {
+                CRLWriter.append(crlLocation, RevocationIndex.LINKAGE_PREFIX + seed);
+                added++;
+            }
+        }
+        if (!CRLWriter.flush(CRLWriter.FLUSH_TIMEOUT)) {
+            throw new IOException("could not write to " + crlLocation);
+        }
+        return added;
+    }
+
+    /**
+     * Runs {@link #revokeLinked(String)} every time the size or modification time of a CRL changes, checking every
+     * {@link #WATCH_INTERVAL} ms. Runs until the process is stopped.
+     *
+     * @param crlLocation a string of the location of the CRL
+     * @throws InterruptedException if the thread is interrupted
+     */
+    public static void watch(String crlLocation) throws InterruptedException {
+        Path crl = Paths.get(crlLocation);
+        long size = -1;
+        FileTime modified = null;
+        while (true) {
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(crl, BasicFileAttributes.class);
+                if (attributes.size() != size || !attributes.lastModifiedTime().equals(modified)) {
+                    size = attributes.size();
+                    modified = attributes.lastModifiedTime();
+                    int added = revokeLinked(crlLocation);
+                    if (added > 0) {
+                        System.out.println("authority: " + added + " vehicles revoked");
+                    }
+                }
+            } catch (IOException e) {
+                System.out.println("authority: could not revoke from " + crlLocation + ": " + e);
+            }
+            Thread.sleep(WATCH_INTERVAL);
+        }
+    }
+
+    /**
+     * Starts the authority in its own process to watch a CRL, if this node has linkage seeds, so the seeds are not
+     * read into the calling process. The process is stopped with {@link Process#destroy()}, or when this one exits.
+     *
+     * @param crlLocation a string of the location of the CRL
+     * @return <code>Process</code> the authority, or <code>null</code> if there are no seeds
+     * @throws IOException if the process cannot be started
+     */
+    public static Process startWatching(String crlLocation) throws IOException {
+        if (!new File(LINKAGE_SEEDS_LOCATION).exists()) {
+            return null;
+        }
+        Process authority = new ProcessBuilder(Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", System.getProperty("java.class.path"), PseudonymAuthority.class.getName(), "watch",
+                crlLocation).inheritIO().start();
+        Runtime.getRuntime().addShutdownHook(new Thread(authority::destroy));
+        return authority;
+    }
+
+    private static synchronized void recordLinkageSeed(String seed) throws IOException {
+        Files.write(Paths.get(LINKAGE_SEEDS_LOCATION), (seed + "\n").getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
 
     //TODO Can use pre gen pseudonyms if a la carte no work
     public static synchronized void genPseudonymsX() throws IOException, InterruptedException {
@@ -12,16 +228,13 @@ public class PseudonymAuthority {
         if (!f.mkdir()) {
             System.err.println("Couldn't create dir...");
         }
-        String[][] cmdsX1 = new String[CERTIFICATE_AMOUNT][5];
+        String linkageSeed = newLinkageSeed();
+        String[][] cmdsX1 = new String[CERTIFICATE_AMOUNT][];
         String[][] cmdsX2 = new String[CERTIFICATE_AMOUNT][9];
         String[][] cmdsX3 = new String[CERTIFICATE_AMOUNT][15];
         String[][] cmdsX4 = new String[CERTIFICATE_AMOUNT][12];
         for(int c = 0; c < CERTIFICATE_AMOUNT; c++) {
-            cmdsX1[c][0] = ("openssl");
-            cmdsX1[c][1] = ("genrsa");
-            cmdsX1[c][2] = ("-out");
-            cmdsX1[c][3] = ("OBU-X-private-key"+c+".pem");
-            cmdsX1[c][4] = ("2048");
+            cmdsX1[c] = SignatureScheme.getSelected().keyGenerationCommand("OBU-X-private-key"+c+".pem");
 
             cmdsX2[c][0] = ("openssl");
             cmdsX2[c][1] = ("req");
@@ -31,7 +244,8 @@ public class PseudonymAuthority {
             cmdsX2[c][5] = ("-out");
             cmdsX2[c][6] = ("OBU-X"+c+".csr");
             cmdsX2[c][7] = ("-subj");
-            cmdsX2[c][8] = ("\"/C=SE/ST=Stockholm/L=Stockholm/O=KTH Thesis/OU=V2X Thesis/CN=test/emailAddress=arieltan@kth.se\"");
+            cmdsX2[c][8] = ("\"/C=SE/ST=Stockholm/L=Stockholm/O=KTH Thesis/OU=V2X Thesis/CN=test/pseudonym="
+                    + linkageValue(linkageSeed, c) + "/emailAddress=arieltan@kth.se\"");
 
             cmdsX3[c][0] = ("openssl");
             cmdsX3[c][1] = ("x509");
@@ -90,6 +304,7 @@ public class PseudonymAuthority {
             currentProcess =  builder.start();
             currentProcess.waitFor();
         }
+        recordLinkageSeed(linkageSeed);
 
     }
 
@@ -98,16 +313,13 @@ public class PseudonymAuthority {
         if (!f.mkdir()) {
             System.err.println("Couldn't create dir...");
         }
-        String[][] cmdsN1 = new String[CERTIFICATE_AMOUNT][5];
+        String linkageSeed = newLinkageSeed();
+        String[][] cmdsN1 = new String[CERTIFICATE_AMOUNT][];
         String[][] cmdsN2 = new String[CERTIFICATE_AMOUNT][9];
         String[][] cmdsN3 = new String[CERTIFICATE_AMOUNT][15];
         String[][] cmdsN4 = new String[CERTIFICATE_AMOUNT][12];
         for(int c = 0; c < CERTIFICATE_AMOUNT; c++) {
-            cmdsN1[c][0] = ("openssl");
-            cmdsN1[c][1] = ("genrsa");
-            cmdsN1[c][2] = ("-out");
-            cmdsN1[c][3] = ("OBU-N-private-key"+c+".pem");
-            cmdsN1[c][4] = ("2048");
+            cmdsN1[c] = SignatureScheme.getSelected().keyGenerationCommand("OBU-N-private-key"+c+".pem");
 
             cmdsN2[c][0] = ("openssl");
             cmdsN2[c][1] = ("req");
@@ -117,7 +329,8 @@ public class PseudonymAuthority {
             cmdsN2[c][5] = ("-out");
             cmdsN2[c][6] = ("OBU-N"+c+".csr");
             cmdsN2[c][7] = ("-subj");
-            cmdsN2[c][8] = ("\"/C=SE/ST=Stockholm/L=Stockholm/O=KTH Thesis/OU=V2X Thesis/CN=test/emailAddress=arieltan@kth.se\"");
+            cmdsN2[c][8] = ("\"/C=SE/ST=Stockholm/L=Stockholm/O=KTH Thesis/OU=V2X Thesis/CN=test/pseudonym="
+                    + linkageValue(linkageSeed, c) + "/emailAddress=arieltan@kth.se\"");
 
             cmdsN3[c][0] = ("openssl");
             cmdsN3[c][1] = ("x509");
@@ -176,6 +389,7 @@ public class PseudonymAuthority {
             currentProcess =  builder.start();
             currentProcess.waitFor();
         }
+        recordLinkageSeed(linkageSeed);
 
     }
 
@@ -184,16 +398,13 @@ public class PseudonymAuthority {
         if (!f.mkdir()) {
             System.err.println("Couldn't create dir...");
         }
-        String[][] cmdsA1 = new String[1][5];
+        String linkageSeed = newLinkageSeed();
+        String[][] cmdsA1 = new String[1][];
         String[][] cmdsA2 = new String[1][9];
         String[][] cmdsA3 = new String[1][15];
         String[][] cmdsA4 = new String[1][12];
         for(int c = 0; c < 1; c++) {
-            cmdsA1[c][0] = ("openssl");
-            cmdsA1[c][1] = ("genrsa");
-            cmdsA1[c][2] = ("-out");
-            cmdsA1[c][3] = ("OBU-A-private-key"+c+".pem");
-            cmdsA1[c][4] = ("2048");
+            cmdsA1[c] = SignatureScheme.getSelected().keyGenerationCommand("OBU-A-private-key"+c+".pem");
 
             cmdsA2[c][0] = ("openssl");
             cmdsA2[c][1] = ("req");
@@ -203,7 +414,8 @@ public class PseudonymAuthority {
             cmdsA2[c][5] = ("-out");
             cmdsA2[c][6] = ("OBU-A"+c+".csr");
             cmdsA2[c][7] = ("-subj");
-            cmdsA2[c][8] = ("\"/C=SE/ST=Stockholm/L=Stockholm/O=KTH Thesis/OU=V2X Thesis/CN=test/emailAddress=arieltan@kth.se\"");
+            cmdsA2[c][8] = ("\"/C=SE/ST=Stockholm/L=Stockholm/O=KTH Thesis/OU=V2X Thesis/CN=test/pseudonym="
+                    + linkageValue(linkageSeed, c) + "/emailAddress=arieltan@kth.se\"");
 
             cmdsA3[c][0] = ("openssl");
             cmdsA3[c][1] = ("x509");
@@ -262,10 +474,25 @@ public class PseudonymAuthority {
             currentProcess =  builder.start();
             currentProcess.waitFor();
         }
+        recordLinkageSeed(linkageSeed);
     }
 
+    /**
+     * Generates pseudonyms for the group given as the first argument. A second argument selects the
+     * {@link SignatureScheme} of the keys, e.g. <code>x ecdsa</code>; without it <code>-Dv2x.signature</code> is used.
+     * <code>revoke &lt;crl&gt;</code> puts the seeds of the vehicles on a CRL once, <code>watch &lt;crl&gt;</code> every
+     * time it changes.
+     */
     public static void main(String[] args) {
+        boolean revoking = args.length > 0 && (args[0].equals("revoke") || args[0].equals("watch"));
+        if (args.length == 0 || revoking && args.length < 2) {
+            System.err.println("PLEASE TYPE ARG a, A, x, X, n, N, revoke <crl> OR watch <crl>");
+            return;
+        }
         try {
+            if (args.length > 1 && !revoking) {
+                SignatureScheme.setSelected(SignatureScheme.forName(args[1]));
+            }
             switch (args[0]) {
                 case "x":
                 case "X":
@@ -279,8 +506,14 @@ public class PseudonymAuthority {
                 case "A":
                     genPseudonymsA();
                     break;
+                case "revoke":
+                    System.out.println(revokeLinked(args[1]) + " vehicles revoked");
+                    break;
+                case "watch":
+                    watch(args[1]);
+                    break;
                 default:
-                    System.err.println("PLEASE TYPE ARG a, A, x, X, n, OR N");
+                    System.err.println("PLEASE TYPE ARG a, A, x, X, n, N, revoke <crl> OR watch <crl>");
                     break;
             }
         } catch (IOException | InterruptedException e) {
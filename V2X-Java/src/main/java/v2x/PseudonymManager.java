@@ -0,0 +1,156 @@
+package v2x;
+
+import java.io.File;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Gets the pseudonyms of a responder ready before they are used. When a pseudonym is taken into use the next
+ * {@link #AHEAD} pseudonyms are loaded, parsed and the answer is signed with them on a background thread, so the
+ * first answer after a change of pseudonym comes from {@link SignedAnswerCache} like every other answer instead of
+ * reading and signing on the answering thread.
+ */
+public class PseudonymManager {
+    static final int AHEAD = 2;
+
+    private static final ExecutorService warmer = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "pseudonym-warmer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final String answer;
+    private final String certificateLocation;
+    private final String privateKeyLocation;
+    private final String dnsPrivateKeyLocation;
+    private final int amount;
+    private final AtomicInteger number = new AtomicInteger();
+
+    /**
+     * @param answer                the DNS answer of the responder
+     * @param certificateLocation   the location of the certificates without a number
+     * @param privateKeyLocation    the location of the private keys without a number
+     * @param dnsPrivateKeyLocation the location of the private key of the DNS server
+     * @param amount                the highest number of pseudonyms to use
+     */
+    public PseudonymManager(String answer, String certificateLocation, String privateKeyLocation,
+                            String dnsPrivateKeyLocation, int amount) {
+        this.answer = answer;
+        this.certificateLocation = certificateLocation;
+        this.privateKeyLocation = privateKeyLocation;
+        this.dnsPrivateKeyLocation = dnsPrivateKeyLocation;
+        this.amount = amount;
+    }
+
+    /**
+     * Gets the first pseudonym ready on the calling thread and the ones after it in the background.
+     */
+    public void start() {
+        CredentialStore.preload(dnsPrivateKeyLocation);
+        warm(0);
+        for (int ahead = 1; ahead <= AHEAD; ahead++) {
+            warmLater(ahead);
+        }
+    }
+
+    /**
+     * Gives the number of the pseudonym answers are signed with.
+     *
+     * @return <code>int</code> the number of the current pseudonym
+     */
+    public int getNumber() {
+        return number.get();
+    }
+
+    /**
+     * Gives the signed answer of the current pseudonym.
+     *
+     * @return <code>SignedEnvelope</code> the signed envelope without a time
+     * @throws Exception if the credentials cannot be loaded or the answer cannot be signed
+     */
+    public SignedEnvelope getEnvelope() throws Exception {
+        return SignedAnswerCache.getEnvelope(answer,
+                CredentialStore.pseudonymLocation(certificateLocation, number.get()),
+                CredentialStore.pseudonymLocation(privateKeyLocation, number.get()), dnsPrivateKeyLocation);
+    }
+
+    /**
+     * Takes the next pseudonym into use and starts getting the one {@link #AHEAD} after it ready.
+     *
+     * @return <code>int</code> the number of the new pseudonym
+     */
+    public int rotate() {
+        int next = number.incrementAndGet();
+        warmLater(next + AHEAD);
+        return next;
+    }
+
+    /**
+     * Starts getting a pseudonym ready in the background.
+     *
+     * @param pseudonym the number of the pseudonym
+     * @return <code>Future</code> done once the pseudonym is ready
+     */
+    Future<?> warmLater(int pseudonym) {
+        return warmer.submit(() -> warm(pseudonym));
+    }
+
+    private void warm(int pseudonym) {
+        if (pseudonym >= amount) {
+            return;
+        }
+        String certificate = CredentialStore.pseudonymLocation(certificateLocation, pseudonym);
+        String privateKey = CredentialStore.pseudonymLocation(privateKeyLocation, pseudonym);
+        if (!new File(certificate).exists() || !new File(privateKey).exists()) {
+            return;
+        }
+        try {
+            CredentialStore.preload(certificate, privateKey);
+            SignedAnswerCache.getEnvelope(answer, certificate, privateKey, dnsPrivateKeyLocation);
+        } catch (Exception e) {
+            System.out.println("could not prepare pseudonym " + pseudonym);
+        }
+    }
+
+    /**
+     * Rotates through the pseudonyms of a responder and compares the first answer after a rotation with and
+     * without getting the pseudonym ready in the background.
+     */
+    public static void main(String[] args) {
+        try {
+            String answer = DNSBloomFilterFunctions.getFixedAAAA();
+            String certificateLocation = "Authentication/OBU-N-certificate.crt";
+            String privateKeyLocation = "Authentication/OBU-N-private-key.der";
+            PseudonymManager manager = new PseudonymManager(answer, certificateLocation, privateKeyLocation,
+                    NonCompromised.DNS_PRIVATE_KEY, 2);
+            manager.start();
+            manager.warmLater(AHEAD).get();
+            long misses = SignedAnswerCache.getMisses();
+            long start = System.nanoTime();
+            manager.getEnvelope();
+            long currentTime = System.nanoTime() - start;
+            System.out.println("Expected: " + 1 + " Actual: " + manager.rotate());
+            start = System.nanoTime();
+            SignedEnvelope envelope = manager.getEnvelope();
+            long rotatedTime = System.nanoTime() - start;
+            System.out.println("Expected: " + misses + " Actual: " + SignedAnswerCache.getMisses());
+            byte[] encoded = envelope.forPeer("127.0.0.1", "1").encode();
+            SignedEnvelope received = SignedEnvelope.decode(encoded, 0, encoded.length);
+            System.out.println("Expected: " + true + " Actual: "
+                    + received.authenticate(NonCompromised.CA_CERTIFICATE_LOCATION));
+            System.out.println("Expected: " + true + " Actual: " + received.getCertificate()
+                    .equals(CredentialStore.getCertificate(CredentialStore.pseudonymLocation(certificateLocation, 1))));
+
+            start = System.nanoTime();
+            SignedAnswerCache.getEnvelope(answer, CredentialStore.pseudonymLocation(certificateLocation, 3),
+                    CredentialStore.pseudonymLocation(privateKeyLocation, 3), NonCompromised.DNS_PRIVATE_KEY);
+            long coldTime = System.nanoTime() - start;
+            System.out.println("first answer before rotation: " + currentTime / 1000 + " us, after rotation: "
+                    + rotatedTime / 1000 + " us, with a cold pseudonym: " + coldTime / 1000 + " us");
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
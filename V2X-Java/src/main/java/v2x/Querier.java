@@ -9,6 +9,7 @@ import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.MulticastSocket;
+import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
@@ -176,6 +177,7 @@ public class Querier extends Thread {
         System.out.println("NOT_AVG_TSQ_TIME: "+timeCounter.getBiasedPercentage2());
         System.out.println("ALL_AVG_TPR_TIME: "+timeCounter.getPercentage3());
         System.out.println("NOT_AVG_TPR_TIME: "+timeCounter.getBiasedPercentage3());
+        System.out.println("ALL_AVG_TPR_ALLOCATION: "+timeCounter.getAverageAllocationToProcessResponse());
 
         answerCounter.logAnswers();
         validityCounter.logAnswers();
@@ -193,31 +195,27 @@ public class Querier extends Thread {
      * Sends query message, hash, and certificate to the 2 OBUs
      *
      * @throws IOException
-     * @throws NoSuchAlgorithmException
-     * @throws InvalidKeySpecException
-     * @throws IllegalBlockSizeException
-     * @throws InvalidKeyException
-     * @throws BadPaddingException
-     * @throws NoSuchPaddingException
+     * @throws GeneralSecurityException
      */
     private void sendQueryTest2()
-            throws IOException, NoSuchAlgorithmException, InvalidKeySpecException,
-            IllegalBlockSizeException, InvalidKeyException, BadPaddingException, NoSuchPaddingException {
-        String userCertificate = AuthenticationFunctions.getCertificate(OWN_CERTIFICATE_LOCATION);
-        PrivateKey userPrivateKey = AuthenticationFunctions.getPrivateKey(OWN_PRIVATE_KEY_LOCATION);
+            throws IOException, GeneralSecurityException {
+        String userCertificate = CredentialStore.getCertificate(OWN_CERTIFICATE_LOCATION);
+        PrivateKey userPrivateKey = CredentialStore.getPrivateKey(OWN_PRIVATE_KEY_LOCATION);
         String message = "Query";
-        String hash = AuthenticationFunctions.hashMessage(message);
-        String authentication = AuthenticationFunctions.encryptMessage(hash, userPrivateKey);
         MulticastSocket multicastSocket = new MulticastSocket(MULTICAST_PORT);
         InetAddress groupIP = InetAddress.getByName("225.0.0.0");
         multicastSocket.joinGroup(groupIP);
         Message query = new Message();
         query.putValue("Query", message);
-        query.putValue("Certificate", userCertificate);
-        query.putValue("Hash", authentication);
+        CertificateCache.attach(query, userCertificate, CertificateCache.MULTICAST_PEER);
+        CertificateCache.attachRequest(query);
+        if (!TeslaChain.TESLA_MODE) {
+            query.putValue("Hash", AuthenticationFunctions.signMessage(message, userPrivateKey));
+        }
         long currentTime = System.currentTimeMillis();
         String time = String.valueOf(currentTime);
         query.putValue("Time", time);
+        TeslaChain.attach(query, userCertificate, userPrivateKey);
         byte[] data = CommunicationFunctions.messageToByteArray(query);
         int randomPort = multicastSocket.getLocalPort();
         DatagramPacket queryPacket = new DatagramPacket(data, data.length, groupIP, randomPort);
@@ -259,10 +257,14 @@ public class Querier extends Thread {
             e.printStackTrace();
         }
 
-        new PrintWriter(CRL_LOCATION).close(); // empty the file
+        emptyCRL();
         String blacklistCertificate = AuthenticationFunctions.getCertificate(OBU_X_CERTIFICATE_LOCATION);
         AuthenticationFunctions.addToCRL(blacklistCertificate, CRL_LOCATION);
         DatagramSocket serverSocket = new DatagramSocket(2021);
+        CredentialStore.preload(OWN_CERTIFICATE_LOCATION, OWN_PRIVATE_KEY_LOCATION, CA_CERTIFICATE_LOCATION,
+                DNS_CERTIFICATE_LOCATION, BLOOM_FILTER_LOCATION);
+        TeslaChain.prepare(CredentialStore.getCertificate(OWN_CERTIFICATE_LOCATION),
+                CredentialStore.getPrivateKey(OWN_PRIVATE_KEY_LOCATION));
         ThreadCommunication threadCommunication = new ThreadCommunication(true);
         long startTime = System.currentTimeMillis();
 
@@ -314,6 +316,7 @@ public class Querier extends Thread {
         System.out.println("NOT_AVG_TSQ_TIME: "+timeCounter.getBiasedPercentage2());
         System.out.println("ALL_AVG_TPR_TIME: "+timeCounter.getPercentage3());
         System.out.println("NOT_AVG_TPR_TIME: "+timeCounter.getBiasedPercentage3());
+        System.out.println("ALL_AVG_TPR_ALLOCATION: "+timeCounter.getAverageAllocationToProcessResponse());
 
         answerCounter.logAnswers();
         validityCounter.logAnswers();
@@ -331,32 +334,29 @@ public class Querier extends Thread {
      * Sends query message, hash, and certificate to the 2 OBUs. Same as the second one.
      *
      * @throws IOException
-     * @throws NoSuchAlgorithmException
-     * @throws InvalidKeySpecException
-     * @throws IllegalBlockSizeException
-     * @throws InvalidKeyException
-     * @throws BadPaddingException
-     * @throws NoSuchPaddingException
+     * @throws GeneralSecurityException
      */
     private void sendQueryTest3(int counter)
-            throws IOException, NoSuchAlgorithmException, InvalidKeySpecException,
-            IllegalBlockSizeException, InvalidKeyException, BadPaddingException, NoSuchPaddingException {
-        String userCertificate = AuthenticationFunctions.getCertificate(OWN_CERTIFICATE_LOCATION);
-        PrivateKey userPrivateKey = AuthenticationFunctions.getPrivateKey(OWN_PRIVATE_KEY_LOCATION);
+            throws IOException, GeneralSecurityException {
+        String userCertificate = CredentialStore.getCertificate(OWN_CERTIFICATE_LOCATION);
+        PrivateKey userPrivateKey = CredentialStore.getPrivateKey(OWN_PRIVATE_KEY_LOCATION);
         String message = "Query";
-        String hash = AuthenticationFunctions.hashMessage(message);
-        String authentication = AuthenticationFunctions.encryptMessage(hash, userPrivateKey);
         MulticastSocket multicastSocket = new MulticastSocket(MULTICAST_PORT);
         InetAddress groupIP = InetAddress.getByName("225.0.0.0");
         multicastSocket.joinGroup(groupIP);
         Message query = new Message();
         query.putValue("Query", message);
-        query.putValue("Certificate", userCertificate);
-        query.putValue("Hash", authentication);
+        CertificateCache.attach(query, userCertificate, CertificateCache.MULTICAST_PEER);
+        CertificateCache.attachRequest(query);
+        if (!TeslaChain.TESLA_MODE) {
+            query.putValue("Hash", AuthenticationFunctions.signMessage(message, userPrivateKey));
+        }
         long currentTime = System.currentTimeMillis();
         String time = String.valueOf(currentTime);
         query.putValue("Time", time);
         query.putValue("TestNumber", String.valueOf(counter));
+        SessionKeys.attach(query, userCertificate, userPrivateKey);
+        TeslaChain.attach(query, userCertificate, userPrivateKey);
         byte[] data = CommunicationFunctions.messageToByteArray(query);
         int randomPort = multicastSocket.getLocalPort();
         DatagramPacket queryPacket = new DatagramPacket(data, data.length, groupIP, randomPort);
@@ -379,11 +379,12 @@ public class Querier extends Thread {
      * @throws InvalidKeyException
      * @throws InvalidKeySpecException
      * @throws InterruptedException
+     * @throws CertificateException
      */
     public void runThirdTest(int testAmount, int rate)
             throws IOException, NoSuchAlgorithmException,
             IllegalBlockSizeException, BadPaddingException, NoSuchPaddingException, InvalidKeyException,
-            InvalidKeySpecException, InterruptedException {
+            InvalidKeySpecException, InterruptedException, CertificateException {
         TimeCounter timeCounter = new TimeCounter(3, rate, testAmount);
         AnswerCounter answerCounter = new AnswerCounter(3, rate);
         ValidityCounter validityCounter = new ValidityCounter(3, rate);
@@ -396,10 +397,17 @@ public class Querier extends Thread {
             e.printStackTrace();
         }
 
-        new PrintWriter(CRL_LOCATION).close(); // empty the file
+        emptyCRL();
         String blacklistCertificate = AuthenticationFunctions.getCertificate(OBU_X_CERTIFICATE_LOCATION);
         AuthenticationFunctions.addToCRL(blacklistCertificate, CRL_LOCATION);
+        // puts the seed of a caught vehicle on the CRL, which revokes its other pseudonyms
+        Process authority = PseudonymAuthority.startWatching(CRL_LOCATION);
         DatagramSocket serverSocket = new DatagramSocket(2021);
+        CredentialStore.preload(OWN_CERTIFICATE_LOCATION, OWN_PRIVATE_KEY_LOCATION, CA_CERTIFICATE_LOCATION,
+                DNS_CERTIFICATE_LOCATION, BLOOM_FILTER_LOCATION);
+        TeslaChain.prepare(CredentialStore.getCertificate(OWN_CERTIFICATE_LOCATION),
+                CredentialStore.getPrivateKey(OWN_PRIVATE_KEY_LOCATION));
+        TrustAnchors.pin(DNS_CERTIFICATE_LOCATION, CA_CERTIFICATE_LOCATION, CRL_LOCATION);
         ThreadCommunication threadCommunication = new ThreadCommunication(true);
         long startTime = System.currentTimeMillis();
 
@@ -440,6 +448,9 @@ public class Querier extends Thread {
         }
 
         Thread.sleep(1000);
+        if (authority != null) {
+            authority.destroy();
+        }
 
         System.out.println(answerCounter.printAnswer());
         System.out.println(answerCounter.printMath());
@@ -451,6 +462,9 @@ public class Querier extends Thread {
         System.out.println("NOT_AVG_TSQ_TIME: "+timeCounter.getBiasedPercentage2());
         System.out.println("ALL_AVG_TPR_TIME: "+timeCounter.getPercentage3());
         System.out.println("NOT_AVG_TPR_TIME: "+timeCounter.getBiasedPercentage3());
+        System.out.println("ALL_AVG_TPR_ALLOCATION: "+timeCounter.getAverageAllocationToProcessResponse());
+        System.out.println("answers " + VerificationPool.getDropCounter());
+        System.out.println("checks " + AnswerChecks.getRejects());
 
         answerCounter.logAnswers();
         validityCounter.logAnswers();
@@ -468,32 +482,29 @@ public class Querier extends Thread {
      * Sends query message, hash, and certificate to the 2 OBUs. Same as the second & third ones.
      *
      * @throws IOException
-     * @throws NoSuchAlgorithmException
-     * @throws InvalidKeySpecException
-     * @throws IllegalBlockSizeException
-     * @throws InvalidKeyException
-     * @throws BadPaddingException
-     * @throws NoSuchPaddingException
+     * @throws GeneralSecurityException
      */
     private void sendQueryTest4(int counter)
-            throws IOException, NoSuchAlgorithmException, InvalidKeySpecException,
-            IllegalBlockSizeException, InvalidKeyException, BadPaddingException, NoSuchPaddingException {
-        String userCertificate = AuthenticationFunctions.getCertificate(OWN_CERTIFICATE_LOCATION);
-        PrivateKey userPrivateKey = AuthenticationFunctions.getPrivateKey(OWN_PRIVATE_KEY_LOCATION);
+            throws IOException, GeneralSecurityException {
+        String userCertificate = CredentialStore.getCertificate(OWN_CERTIFICATE_LOCATION);
+        PrivateKey userPrivateKey = CredentialStore.getPrivateKey(OWN_PRIVATE_KEY_LOCATION);
         String message = "Query";
-        String hash = AuthenticationFunctions.hashMessage(message);
-        String authentication = AuthenticationFunctions.encryptMessage(hash, userPrivateKey);
         MulticastSocket multicastSocket = new MulticastSocket(MULTICAST_PORT);
         InetAddress groupIP = InetAddress.getByName("225.0.0.0");
         multicastSocket.joinGroup(groupIP);
         Message query = new Message();
         query.putValue("Query", message);
-        query.putValue("Certificate", userCertificate);
-        query.putValue("Hash", authentication);
+        CertificateCache.attach(query, userCertificate, CertificateCache.MULTICAST_PEER);
+        CertificateCache.attachRequest(query);
+        if (!TeslaChain.TESLA_MODE) {
+            query.putValue("Hash", AuthenticationFunctions.signMessage(message, userPrivateKey));
+        }
         long currentTime = System.currentTimeMillis();
         String time = String.valueOf(currentTime);
         query.putValue("Time", time);
         query.putValue("TestNumber", String.valueOf(counter));
+        SessionKeys.attach(query, userCertificate, userPrivateKey);
+        TeslaChain.attach(query, userCertificate, userPrivateKey);
         byte[] data = CommunicationFunctions.messageToByteArray(query);
         int randomPort = multicastSocket.getLocalPort();
         DatagramPacket queryPacket = new DatagramPacket(data, data.length, groupIP, randomPort);
@@ -531,12 +542,18 @@ public class Querier extends Thread {
             e.printStackTrace();
         }
 
-        new PrintWriter(CRL_LOCATION).close(); // empty the file
+        emptyCRL();
         String blacklistCertifiate = AuthenticationFunctions.getCertificate(OBU_X_CERTIFICATE_LOCATION);
         AuthenticationFunctions.addToCRL(blacklistCertifiate, CRL_LOCATION);
+        // puts the seed of a caught vehicle on the CRL, which revokes its other pseudonyms
+        Process authority = PseudonymAuthority.startWatching(CRL_LOCATION);
         DNSBloomFilterFunctions.generateRandomBloomFilter(1000);
 
         DatagramSocket serverSocket = new DatagramSocket(2021);
+        CredentialStore.preload(OWN_CERTIFICATE_LOCATION, OWN_PRIVATE_KEY_LOCATION, CA_CERTIFICATE_LOCATION,
+                DNS_CERTIFICATE_LOCATION, BLOOM_FILTER_LOCATION);
+        TeslaChain.prepare(CredentialStore.getCertificate(OWN_CERTIFICATE_LOCATION),
+                CredentialStore.getPrivateKey(OWN_PRIVATE_KEY_LOCATION));
         ThreadCommunication threadCommunication = new ThreadCommunication(true);
         long startTime = System.currentTimeMillis();
 
@@ -577,6 +594,9 @@ public class Querier extends Thread {
         }
 
         Thread.sleep(1000);
+        if (authority != null) {
+            authority.destroy();
+        }
 
         System.out.println(answerCounter.printAnswer());
         System.out.println(answerCounter.printMath());
@@ -588,6 +608,9 @@ public class Querier extends Thread {
         System.out.println("NOT_AVG_TSQ_TIME: "+timeCounter.getBiasedPercentage2());
         System.out.println("ALL_AVG_TPR_TIME: "+timeCounter.getPercentage3());
         System.out.println("NOT_AVG_TPR_TIME: "+timeCounter.getBiasedPercentage3());
+        System.out.println("ALL_AVG_TPR_ALLOCATION: "+timeCounter.getAverageAllocationToProcessResponse());
+        System.out.println("answers " + VerificationPool.getDropCounter());
+        System.out.println("checks " + AnswerChecks.getRejects());
 
         answerCounter.logAnswers();
         validityCounter.logAnswers();
@@ -624,7 +647,7 @@ public class Querier extends Thread {
     public static void crlTest() throws IOException {
         String n_certificate = AuthenticationFunctions.getCertificate("Authentication/OBU-N-certificate.crt");
         String x_certificate = AuthenticationFunctions.getCertificate("Authentication/OBU-X-certificate.crt");
-        new PrintWriter(CRL_LOCATION).close(); // empty the file
+        emptyCRL();
         if (!AuthenticationFunctions.checkRevocatedCertificate(n_certificate, CRL_LOCATION)) {
             System.out.println("it seems the bloom filter worked..2");
             if (!AuthenticationFunctions.checkRevocatedCertificate(x_certificate, CRL_LOCATION)) {
@@ -688,4 +711,18 @@ public class Querier extends Thread {
         }
         System.out.println("it seems the bloom filter did not work..");
     }
-}
\ No newline at end of file
+
+    /**
+     * Empties the CRL before a test. Revocations still queued by {@link CRLWriter} are written first, since they would
+     * otherwise land in the emptied file.
+     *
+     * @throws IOException if the queued revocations cannot be written, in which case the CRL is left as it is
+     */
+    private static void emptyCRL() throws IOException {
+        if (!CRLWriter.flush(CRLWriter.FLUSH_TIMEOUT)) {
+            throw new IOException("could not write the queued revocations to " + CRL_LOCATION);
+        }
+        new PrintWriter(CRL_LOCATION).close();
+        RevocationIndex.changed(CRL_LOCATION);
+    }
+}
@@ -34,19 +34,22 @@ class ReceiveAnswerOne extends Thread {
 
     @Override
     public void run() {
-        byte[] buffer = new byte[65508];
+        byte[] buffer = CommunicationFunctions.acquireReceiveBuffer();
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
 
         int counter = 0;
         boolean run = true;
         long TPRStart;
         long TPREnd;
+        long TPRAllocationStart;
 
         while (run) {
-            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            packet.setLength(buffer.length);
             try {
                 serverSocket.receive(packet);
                 TPRStart = System.currentTimeMillis();
-                Message message = CommunicationFunctions.byteArrayToMessage(buffer);
+                TPRAllocationStart = TimeCounter.getAllocatedBytes();
+                Message message = CommunicationFunctions.byteArrayToMessage(buffer, 0, packet.getLength());
                 String answer = message.getValue("Answer");
 
 
@@ -65,6 +68,7 @@ class ReceiveAnswerOne extends Thread {
                     TPREnd = System.currentTimeMillis();
                     timeCounter.addTimeToProcessResponse(TPREnd - TPRStart);
                     timeCounter.addTimeToRawTPRData(TPREnd - TPRStart);
+                    timeCounter.addAllocationToProcessResponse(TimeCounter.getAllocatedBytes() - TPRAllocationStart);
                 }
 
                 answerCounter.addAnswer(answer);
@@ -82,5 +86,6 @@ class ReceiveAnswerOne extends Thread {
                 e.printStackTrace();
             }
         }
+        CommunicationFunctions.releaseReceiveBuffer(buffer);
     }
 }
@@ -3,18 +3,21 @@ package v2x;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.security.PublicKey;
-import java.util.Base64;
 import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 // https://stackoverflow.com/questions/2275443/how-to-timeout-a-thread
 
 /**
  * Waits for an answer that is authenticated and returns it for the third test. If the message is untrustworhy, the
- * certificate is put into the revocation list.
+ * certificate is put into the revocation list. Answers are verified on the {@link VerificationPool}, so the first
+ * valid answer completes the query even if an answer before it is still being verified.
  */
 public class ReceiveAnswerThree extends Thread {
     static final int UNICAST_PORT = 2021;
+    static final String OWN_CERTIFICATE_LOCATION = "Authentication/OBU-A-certificate0.crt";
     static final String CA_CERTIFICATE_LOCATION = "Authentication/CA-certificate.crt";
     static final String CRL_LOCATION = "Authentication/CRL-A.crl";
     static final String DNS_CERTIFICATE_LOCATION = "Authentication/DNS-certificate.crt";
@@ -25,6 +28,8 @@ public class ReceiveAnswerThree extends Thread {
     private TimeCounter timeCounter;
     private int counter;
     private ThreadCommunication threadCommunication;
+    private final AtomicBoolean answered = new AtomicBoolean();
+    private final long started = System.currentTimeMillis();
 
     public ReceiveAnswerThree(DatagramSocket serverSocket,
                               AnswerCounter answerCounter,
@@ -41,108 +46,186 @@ public class ReceiveAnswerThree extends Thread {
 
     @Override
     public void run() {
-        byte[] buffer = new byte[65508];
+        byte[] buffer = CommunicationFunctions.acquireReceiveBuffer();
+        DatagramPacket receivePacket = new DatagramPacket(buffer, buffer.length);
 
-        int counter = 0;
         boolean run = true;
-        long TPRStart;
-        long TPREnd;
+        FragmentReassembler reassembler = new FragmentReassembler();
+        try {
+            serverSocket.setSoTimeout(FragmentReassembler.RETRANSMIT_DELAY);
+        } catch (SocketException e) {
+            run = false;
+        }
 
         while (run) {
-            DatagramPacket receivePacket = new DatagramPacket(buffer, buffer.length);
+            receivePacket.setLength(buffer.length);
 
             try {
                 serverSocket.receive(receivePacket);
-                TPRStart = System.currentTimeMillis();
-                Message outerMessage = CommunicationFunctions.byteArrayToMessage(buffer);
-                String outerAnswer = outerMessage.getValue("Answer");
-
-                String outerCertificate = outerMessage.getValue("Certificate");
-                String outerEncryptedHash = outerMessage.getValue("Hash");
-
-                boolean outerAuthentication = AuthenticationFunctions.authenticateMessage(
-                        outerAnswer, outerEncryptedHash, outerCertificate, CA_CERTIFICATE_LOCATION);
-                boolean outerRevoked = AuthenticationFunctions.checkRevocatedCertificate(
-                        outerCertificate, CRL_LOCATION);
-
-                if (outerAuthentication && !outerRevoked) {
-                    byte[] decodedInnerAnswer = Base64.getDecoder().decode(outerAnswer);
-                    Message innerMessage = CommunicationFunctions.byteArrayToMessage(decodedInnerAnswer);
-
-                    String innerAnswer = innerMessage.getValue("Answer");
-                    String innerCertificate = AuthenticationFunctions.getCertificate(DNS_CERTIFICATE_LOCATION);
-                    String innerEncryptedHash = innerMessage.getValue("Hash");
-
-                    boolean innerAuthentication = false;
-                    try {
-                        String calculatedHash = AuthenticationFunctions.hashMessage(innerAnswer);
-                        PublicKey publicKey = AuthenticationFunctions.getPublicKey(innerCertificate);
-                        String decryptedHash = AuthenticationFunctions.decryptMessage(innerEncryptedHash, publicKey);
-                        boolean certificateVerification = AuthenticationFunctions.verifyCertificate(
-                                innerCertificate, CA_CERTIFICATE_LOCATION);
-
-                        if (certificateVerification && calculatedHash.equals(decryptedHash)) {
-                            innerAuthentication = true;
-                        }
-
-                        /* Check if DNS server is revocated */
-                        boolean innerRevoked = AuthenticationFunctions.checkRevocatedCertificate(
-                                innerCertificate, CRL_LOCATION);
-
-                        if (innerAuthentication && !innerRevoked) {
-                            if (innerAnswer.equals("0")) {
-                                long endTime = System.currentTimeMillis();
-                                String time = outerMessage.getValue("Time");
-                                long startTime = Long.parseLong(time);
-                                long totalTime = endTime - startTime;
+                if (!reassembler.accept(receivePacket, serverSocket)) {
+                    continue;
+                }
+                byte[] data = reassembler.getData();
+                int offset = reassembler.getOffset();
+                int length = reassembler.getLength();
+                if (CertificateCache.handleCertificateRequest(data, offset, length)) {
+                    continue;
+                }
+                // a datagram in the receive buffer goes to the worker as is, and the next one is received into
+                // another buffer
+                boolean pooled = data == buffer;
+                if (pooled) {
+                    buffer = CommunicationFunctions.acquireReceiveBuffer();
+                    receivePacket.setData(buffer);
+                }
+                if (!VerificationPool.submit(() -> verify(data, offset, length, pooled)) && pooled) {
+                    CommunicationFunctions.releaseReceiveBuffer(data);
+                }
+            } catch (SocketTimeoutException e) {
+                reassembler.requestMissing(serverSocket);
+            } catch (SocketException e) {
+                //System.out.println("Thread ended");
+                run = false;
+            } catch (Exception e) {
+                //System.out.println("error two");
+                e.printStackTrace();
+            }
+        }
+        CommunicationFunctions.releaseReceiveBuffer(buffer);
+    }
+
+    /**
+     * Verifies an answer and gives its receive buffer back to the pool afterwards. Parallel checks that are still
+     * running after the answer was rejected may read the buffer after it was given back; their result is not used.
+     */
+    private void verify(byte[] data, int offset, int length, boolean pooled) {
+        try {
+            verify(data, offset, length);
+        } finally {
+            if (pooled) {
+                CommunicationFunctions.releaseReceiveBuffer(data);
+            }
+        }
+    }
+
+    private void verify(byte[] data, int offset, int length) {
+        if (answered.get()) {
+            VerificationPool.drop(VerificationPool.ANSWERED);
+            return;
+        }
+        long TPRStart;
+        long TPREnd;
+        long TPRAllocationStart;
+        MessageView innerMessage = new MessageView();
+        try {
+            TPRStart = System.currentTimeMillis();
+            TPRAllocationStart = TimeCounter.getAllocatedBytes();
+            SessionEnvelope sessionMessage = null;
+            SignedEnvelope outerMessage = null;
+            AnswerChecks.Stage outerCheck;
+            String outerCertificate;
+            String outerTime;
+            if (SessionEnvelope.isSessionEnvelope(data, offset, length)) {
+                sessionMessage = SessionEnvelope.decode(data, offset, length);
+                SessionKeys.Session session = SessionKeys.getSession(sessionMessage.getSessionId());
+                SessionEnvelope envelope = sessionMessage;
+                outerCheck = AnswerChecks.Stage.sender("session MAC", AnswerChecks.MAC_COST,
+                        () -> envelope.authenticate(session));
+                outerCertificate = session == null ? null : session.getCertificate();
+                outerTime = sessionMessage.getTime();
+            } else {
+                outerMessage = SignedEnvelope.decode(data, offset, length);
+                SignedEnvelope envelope = outerMessage;
+                outerCheck = AnswerChecks.Stage.sender("outer signature", AnswerChecks.SIGNATURE_COST,
+                        () -> envelope.authenticate(CA_CERTIFICATE_LOCATION));
+                outerCertificate = outerMessage.getCertificate();
+                outerTime = outerMessage.getTime();
+            }
+            Callable<Boolean> revocationCheck = () -> outerCertificate != null
+                    && !AuthenticationFunctions.checkRevocatedCertificate(outerCertificate, CRL_LOCATION);
+            SessionEnvelope sessionPayload = sessionMessage;
+            SignedEnvelope signedPayload = outerMessage;
+            Callable<Boolean> innerCheck = () -> {
+                if (sessionPayload != null) {
+                    sessionPayload.openPayload(innerMessage);
+                } else {
+                    signedPayload.openPayload(innerMessage);
+                }
+                byte[] innerAnswerBytes = innerMessage.getBytes("Answer");
+                byte[] innerSignature = innerMessage.getBase64Value("Hash");
+                /* The DNS certificate is pinned, so revocation is already checked */
+                PublicKey publicKey = TrustAnchors.getPublicKey(DNS_CERTIFICATE_LOCATION);
+                return publicKey != null && innerAnswerBytes != null && innerSignature != null
+                        && AuthenticationFunctions.verify(innerAnswerBytes, 0, innerAnswerBytes.length,
+                        innerSignature, 0, innerSignature.length, publicKey);
+            };
+            int validity = AnswerChecks.check(
+                    AnswerChecks.Stage.sender("stale", AnswerChecks.TIME_COST,
+                            () -> AnswerChecks.isCurrent(outerTime, started)),
+                    AnswerChecks.Stage.sender("revoked", AnswerChecks.LOOKUP_COST, revocationCheck),
+                    outerCheck,
+                    AnswerChecks.Stage.inner("inner signature", AnswerChecks.SIGNATURE_COST, innerCheck));
+
+            if (validity == AnswerChecks.VALID) {
+                String innerAnswer = innerMessage.getValue("Answer");
+                try {
+                    if (!answered.compareAndSet(false, true)) {
+                        VerificationPool.drop(VerificationPool.ANSWERED);
+                        return;
+                    }
+                    SessionKeys.establish(innerMessage, outerCertificate,
+                            CredentialStore.getCertificate(OWN_CERTIFICATE_LOCATION));
+                    if (innerAnswer.equals("0")) {
+                        long endTime = System.currentTimeMillis();
+                        String time = outerTime;
+                        long startTime = Long.parseLong(time);
+                        long totalTime = endTime - startTime;
 
 //                    System.out.println("start time" + startTime);
 //                    System.out.println("end time" + endTime);
-                                //System.out.println("total time " + totalTime);
-                                timeCounter.addTimeToQueryResolve(totalTime);
-                                timeCounter.addTimeToRawTQRData(totalTime);
-                            }
-
-                            answerCounter.addAnswer(innerAnswer);
-                            validityCounter.addValidity("2");
-
-                            TPREnd = System.currentTimeMillis();
-                            timeCounter.addTimeToProcessResponse(TPREnd - TPRStart);
-                            timeCounter.addTimeToRawTPRData(TPREnd - TPRStart);
-
-                            run = false;
-                            serverSocket.close();
-                            threadCommunication.setReady(true);
-                        } else {
-                            AuthenticationFunctions.addToCRL(outerCertificate, CRL_LOCATION);
-                            validityCounter.addValidity("1");
-
-                            TPREnd = System.currentTimeMillis();
-                            timeCounter.addTimeToProcessResponse(TPREnd - TPRStart);
-                            timeCounter.addTimeToRawTPRData(TPREnd - TPRStart);
-                        }
-                    } catch (Exception e) {
-                        AuthenticationFunctions.addToCRL(outerCertificate, CRL_LOCATION);
-                        validityCounter.addValidity("1");
-
-                        TPREnd = System.currentTimeMillis();
-                        timeCounter.addTimeToProcessResponse(TPREnd - TPRStart);
-                        timeCounter.addTimeToRawTPRData(TPREnd - TPRStart);
+                        //System.out.println("total time " + totalTime);
+                        timeCounter.addTimeToQueryResolve(totalTime);
+                        timeCounter.addTimeToRawTQRData(totalTime);
                     }
-                } else {
-                    validityCounter.addValidity("0");
+
+                    answerCounter.addAnswer(innerAnswer);
+                    validityCounter.addValidity("2");
+
+                    TPREnd = System.currentTimeMillis();
+                    timeCounter.addTimeToProcessResponse(TPREnd - TPRStart);
+                    timeCounter.addTimeToRawTPRData(TPREnd - TPRStart);
+                    timeCounter.addAllocationToProcessResponse(TimeCounter.getAllocatedBytes() - TPRAllocationStart);
+
+                    serverSocket.close();
+                    threadCommunication.setReady(true);
+                } catch (Exception e) {
+                    AuthenticationFunctions.addToCRL(outerCertificate, CRL_LOCATION);
+                    validityCounter.addValidity("1");
 
                     TPREnd = System.currentTimeMillis();
                     timeCounter.addTimeToProcessResponse(TPREnd - TPRStart);
                     timeCounter.addTimeToRawTPRData(TPREnd - TPRStart);
+                    timeCounter.addAllocationToProcessResponse(TimeCounter.getAllocatedBytes() - TPRAllocationStart);
                 }
-            } catch (SocketException e) {
-                //System.out.println("Thread ended");
-                run = false;
-            } catch (Exception e) {
-                //System.out.println("error two");
-                e.printStackTrace();
+            } else if (validity == AnswerChecks.INNER_FAILED) {
+                AuthenticationFunctions.addToCRL(outerCertificate, CRL_LOCATION);
+                validityCounter.addValidity("1");
+
+                TPREnd = System.currentTimeMillis();
+                timeCounter.addTimeToProcessResponse(TPREnd - TPRStart);
+                timeCounter.addTimeToRawTPRData(TPREnd - TPRStart);
+                timeCounter.addAllocationToProcessResponse(TimeCounter.getAllocatedBytes() - TPRAllocationStart);
+            } else {
+                validityCounter.addValidity("0");
+
+                TPREnd = System.currentTimeMillis();
+                timeCounter.addTimeToProcessResponse(TPREnd - TPRStart);
+                timeCounter.addTimeToRawTPRData(TPREnd - TPRStart);
+                timeCounter.addAllocationToProcessResponse(TimeCounter.getAllocatedBytes() - TPRAllocationStart);
             }
+        } catch (Exception e) {
+            //System.out.println("error two");
+            e.printStackTrace();
         }
     }
 }
@@ -3,6 +3,7 @@ package v2x;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.util.ArrayList;
 import java.util.concurrent.Callable;
 
@@ -37,26 +38,56 @@ class ReceiveAnswerTwo extends Thread {
 
     @Override
     public void run() {
-        byte[] buffer = new byte[65508];
+        byte[] buffer = CommunicationFunctions.acquireReceiveBuffer();
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
 
         int counter = 0;
         boolean run = true;
         long TPRStart;
         long TPREnd;
+        long TPRAllocationStart;
+        FragmentReassembler reassembler = new FragmentReassembler();
+        MessageView message = new MessageView();
+        try {
+            serverSocket.setSoTimeout(FragmentReassembler.RETRANSMIT_DELAY);
+        } catch (SocketException e) {
+            run = false;
+        }
 
         while (run) {
-            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            packet.setLength(buffer.length);
             try {
                 serverSocket.receive(packet);
+                if (!reassembler.accept(packet, serverSocket)) {
+                    continue;
+                }
+                byte[] data = reassembler.getData();
+                int offset = reassembler.getOffset();
+                int length = reassembler.getLength();
+                if (CertificateCache.handleCertificateRequest(data, offset, length)) {
+                    continue;
+                }
                 TPRStart = System.currentTimeMillis();
-                Message message = CommunicationFunctions.byteArrayToMessage(buffer);
+                TPRAllocationStart = TimeCounter.getAllocatedBytes();
+                message.wrap(data, offset, length);
                 String answer = message.getValue("Answer");
 
-                String certificate = message.getValue("Certificate");
-                String encryptedHash = message.getValue("Hash");
-                boolean revoked = AuthenticationFunctions.checkRevocatedCertificate(certificate, CRL_LOCATION);
-                boolean authenticated = AuthenticationFunctions.authenticateMessage(answer, encryptedHash,
-                        certificate, CA_CERTIFICATE_LOCATION);
+                String digest = message.getValue("CertificateDigest");
+                CertificateCache.CachedCertificate certificate =
+                        CertificateCache.resolve(message.getValue("Certificate"), digest);
+                byte[] answerBytes = message.getBytes("Answer");
+                byte[] signature = message.getBase64Value("Hash");
+                boolean revoked = true;
+                boolean authenticated = false;
+                if (certificate == null) {
+                    CertificateCache.requestCertificate(digest);
+                } else {
+                    revoked = AuthenticationFunctions.checkRevocatedCertificate(certificate.getCertificate(),
+                            CRL_LOCATION);
+                    authenticated = answerBytes != null && signature != null
+                            && AuthenticationFunctions.authenticateMessage(answerBytes, 0, answerBytes.length,
+                            signature, 0, signature.length, certificate, CA_CERTIFICATE_LOCATION);
+                }
 
                 if (authenticated && !revoked) {
 
@@ -79,6 +110,7 @@ class ReceiveAnswerTwo extends Thread {
                     TPREnd = System.currentTimeMillis();
                     timeCounter.addTimeToProcessResponse(TPREnd - TPRStart);
                     timeCounter.addTimeToRawTPRData(TPREnd - TPRStart);
+                    timeCounter.addAllocationToProcessResponse(TimeCounter.getAllocatedBytes() - TPRAllocationStart);
 
                     run = false;
                     serverSocket.close();
@@ -90,8 +122,11 @@ class ReceiveAnswerTwo extends Thread {
                     TPREnd = System.currentTimeMillis();
                     timeCounter.addTimeToProcessResponse(TPREnd - TPRStart);
                     timeCounter.addTimeToRawTPRData(TPREnd - TPRStart);
+                    timeCounter.addAllocationToProcessResponse(TimeCounter.getAllocatedBytes() - TPRAllocationStart);
                 }
 
+            } catch (SocketTimeoutException e) {
+                reassembler.requestMissing(serverSocket);
             } catch (SocketException e) {
                 //System.out.println("Thread ended");
                 run = false;
@@ -100,5 +135,6 @@ class ReceiveAnswerTwo extends Thread {
                 e.printStackTrace();
             }
         }
+        CommunicationFunctions.releaseReceiveBuffer(buffer);
     }
 }
@@ -1,10 +1,7 @@
 package v2x;
 
-import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.security.PrivateKey;
-import java.util.Base64;
 
 public class ReturnQueryThree extends Thread {
     private String inetAddress;
@@ -15,10 +12,21 @@ public class ReturnQueryThree extends Thread {
     private String ownPrivateKeyLocation;
     private int number;
     private String dnsPrivateKeylocation;
+    private SessionKeys.Session session;
 
     public ReturnQueryThree(String inetAddress, String time, int unicastPort, String answer,
                             String ownCertificateLocation, String ownPrivateKeyLocation,
                             int number, String dnsPrivateKeylocation) {
+        this(inetAddress, time, unicastPort, answer, ownCertificateLocation, ownPrivateKeyLocation, number,
+                dnsPrivateKeylocation, null);
+    }
+
+    /**
+     * @param session the session the querier holds with the pseudonym, or <code>null</code> to send a signed answer
+     */
+    public ReturnQueryThree(String inetAddress, String time, int unicastPort, String answer,
+                            String ownCertificateLocation, String ownPrivateKeyLocation,
+                            int number, String dnsPrivateKeylocation, SessionKeys.Session session) {
         this.inetAddress = inetAddress;
         this.time = time;
         this.unicastPort = unicastPort;
@@ -27,47 +35,22 @@ public class ReturnQueryThree extends Thread {
         this.ownPrivateKeyLocation = ownPrivateKeyLocation;
         this.number = number;
         this.dnsPrivateKeylocation = dnsPrivateKeylocation;
+        this.session = session;
     }
 
     @Override
     public void run() {
         try {
-            String[] certLocation = ownCertificateLocation.split("\\.");
-            String[] privKeyLocation = ownPrivateKeyLocation.split("\\.");
-
-            String userCertificate = AuthenticationFunctions
-                    .getCertificate(certLocation[0] + number + "." + certLocation[1]);
-            PrivateKey userPrivateKey = AuthenticationFunctions
-                    .getPrivateKey(privKeyLocation[0] + number + "." + privKeyLocation[1]);
-            PrivateKey dnsPrivateKey = AuthenticationFunctions.getPrivateKey(dnsPrivateKeylocation);
-
-            String innerAnswer = answer;
-            String innerHash = AuthenticationFunctions.hashMessage(innerAnswer);
-            String innerEncryptedHash = AuthenticationFunctions.encryptMessage(innerHash, dnsPrivateKey);
-
-            Message innerMessage = new Message();
-            innerMessage.putValue("Answer", innerAnswer);
-            innerMessage.putValue("Hash", innerEncryptedHash);
-
-            byte[] innerMessageByte = CommunicationFunctions.messageToByteArray(innerMessage);
-            byte[] innerMessageByteBase64 = Base64.getEncoder().encode(innerMessageByte);
-            String innerMessageString = new String(innerMessageByteBase64);
-
-            String outerHash = AuthenticationFunctions.hashMessage(innerMessageString);
-            String outerEncryptedHash = AuthenticationFunctions.encryptMessage(outerHash, userPrivateKey);
-
-            Message outerMessage = new Message();
-            outerMessage.putValue("Answer", innerMessageString);
-            outerMessage.putValue("Hash", outerEncryptedHash);
-            outerMessage.putValue("Certificate", userCertificate);
-            outerMessage.putValue("Time", time);
+            SignedEnvelope signedAnswer = SignedAnswerCache.getEnvelope(answer,
+                    CredentialStore.pseudonymLocation(ownCertificateLocation, number),
+                    CredentialStore.pseudonymLocation(ownPrivateKeyLocation, number), dnsPrivateKeylocation);
 
-            byte[] outerMessageByte = CommunicationFunctions.messageToByteArray(outerMessage);
+            byte[] outerMessageByte = session != null
+                    ? signedAnswer.seal(session, time).encode()
+                    : signedAnswer.forPeer(inetAddress, time).encode();
             InetAddress address = InetAddress.getByName(inetAddress);
-            DatagramPacket answerPacket = new DatagramPacket(outerMessageByte, outerMessageByte.length, address,
-                    unicastPort);
             DatagramSocket clientSocket = new DatagramSocket();
-            clientSocket.send(answerPacket);
+            CommunicationFunctions.sendFragmented(clientSocket, outerMessageByte, address, unicastPort);
             //System.out.println("answer sent");
             clientSocket.close();
         } catch (Exception e) {
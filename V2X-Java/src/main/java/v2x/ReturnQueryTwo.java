@@ -1,9 +1,10 @@
 package v2x;
 
-import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
 import java.security.PrivateKey;
+import java.util.Base64;
 
 public class ReturnQueryTwo extends Thread {
     private String inetAddress;
@@ -26,21 +27,20 @@ public class ReturnQueryTwo extends Thread {
     @Override
     public void run() {
         try {
-            String userCertificate = AuthenticationFunctions.getCertificate(ownCertificateLocation);
-            PrivateKey userPrivateKey = AuthenticationFunctions.getPrivateKey(ownPrivateKeyLocation);
+            String userCertificate = CredentialStore.getCertificate(ownCertificateLocation);
+            PrivateKey userPrivateKey = CredentialStore.getPrivateKey(ownPrivateKeyLocation);
             String message = answer;
-            String hash = AuthenticationFunctions.hashMessage(message);
-            String authentication = AuthenticationFunctions.encryptMessage(hash, userPrivateKey);
+            byte[] messageBytes = message.getBytes(StandardCharsets.UTF_8);
+            byte[] signature = AuthenticationFunctions.sign(messageBytes, 0, messageBytes.length, userPrivateKey);
             InetAddress address = InetAddress.getByName(inetAddress);
             DatagramSocket clientSocket = new DatagramSocket();
             Message answer = new Message();
             answer.putValue("Answer", message);
-            answer.putValue("Certificate", userCertificate);
-            answer.putValue("Hash", authentication);
+            CertificateCache.attach(answer, userCertificate, inetAddress);
+            answer.putValue("Hash", Base64.getEncoder().encodeToString(signature));
             answer.putValue("Time", time);
             byte[] data = CommunicationFunctions.messageToByteArray(answer);
-            DatagramPacket answerPacket = new DatagramPacket(data, data.length, address, unicastPort);
-            clientSocket.send(answerPacket);
+            CommunicationFunctions.sendFragmented(clientSocket, data, address, unicastPort);
             //System.out.println("answer sent");
             clientSocket.close();
         } catch (Exception e) {
@@ -0,0 +1,670 @@
+package v2x;
+
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.Multiset;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the SHA-256 digests of the certificates in a CRL in a hash set, so looking up a certificate does not read the
+ * CRL file and does not depend on how many certificates are revoked. The CRL is read on the first lookup; when it
+ * changes on disk only the lines appended since are read, unless it got shorter or the end of what was read changed,
+ * e.g. when it was emptied. Certificates added with {@link AuthenticationFunctions#addToCRL(String, String)} are added
+ * to the set right away and skipped when they are read back from the CRL, and lines {@link CRLWriter} has not written
+ * yet are added when the CRL is read.
+ * <p>
+ * A change of the CRL is noticed through {@link CredentialStore#getVersion(String)}, and also by comparing the size
+ * and modification time of the CRL with the ones it had when it was read, at most every {@link #CHECK_INTERVAL} ms, as
+ * the watcher of the store may notice a change late or not at all. Code that rewrites a CRL calls
+ * {@link #changed(String)}, so the next lookup reads it again right away.
+ * <p>
+ * A bloom filter of the revoked certificates sits in front of the digests. Almost every certificate that is looked up
+ * is not revoked, and for those the filter answers without computing the digest or searching the digests. The filter
+ * is sized for twice the CRL when it is read and is built again once more certificates were added than it was sized
+ * for.
+ * <p>
+ * With <code>-Dv2x.mappedCRL=true</code> the digests are kept off the heap in a {@link MappedCRL} next to the CRL,
+ * e.g. <code>CRL-A.crl.digests</code>, and the mapped CRL is what is looked up. How much of the CRL it holds and its
+ * linkage seeds are kept in <code>CRL-A.crl.digests.read</code>, so a node that starts only reads the lines appended
+ * since; the mapped CRL is only made from the whole CRL when it has none of it yet or the CRL got shorter or was
+ * rewritten, and then the CRL is read in chunks and its digests are sorted on disk with {@link MappedCRL.Runs}. In
+ * both modes the CRL is read a chunk at a time, so it never has to fit on the heap. In this mode the bloom filter is
+ * the one of the mapped CRL, which holds the digests, so a certificate is hashed and the filter answers without reading
+ * the mapped file.
+ * <p>
+ * A line of the CRL that starts with {@link #LINKAGE_PREFIX} holds the linkage seed of a vehicle instead of a
+ * certificate and revokes every pseudonym of the vehicle. Only the authority knows the seeds and adds these lines
+ * (see {@link PseudonymAuthority#revokeLinked(String)}). The linkage values of its pseudonyms are derived when the CRL
+ * is read and kept in a hash set, so one line per vehicle is enough. The linkage value of a certificate is only
+ * looked up once a seed is on the CRL, and is remembered for the last {@link CertificateCache#CACHE_SIZE}
+ * certificates, so a lookup does not parse or look up the certificate in the {@link CertificateCache} again.
+ */
+public class RevocationIndex {
+    static final boolean MAPPED_MODE = Boolean.getBoolean("v2x.mappedCRL");
+    static final double FALSE_POSITIVE_RATE = 0.01;
+    static final int MIN_FILTER_SIZE = 1024;
+    static final String LINKAGE_PREFIX = "linkage-seed ";
+    static final int CHECKED_END = 64;
+    static final int CHUNK_SIZE = 1 << 16;
+    static final int CHECK_INTERVAL = Integer.getInteger("v2x.crlCheckInterval", 100);
+
+    private static final Map<String, Index> indexes = new ConcurrentHashMap<>();
+    private static final Map<String, MappedCRL> mappedCRLs = new ConcurrentHashMap<>();
+    // the linkage values of certificates that were looked up, "" for a certificate without one
+    private static final Map<String, String> certificateLinkageValues = new ConcurrentHashMap<>();
+
+    private static class Index {
+        // with a mapped CRL only the digests of lines added on this node that were not read back from the CRL yet
+        private final Set<ByteBuffer> digests;
+        private final MappedCRL mapped;
+        private final BloomFilter<CharSequence> filter;
+        private final int filterSize;
+        private final Set<String> linkageValues = ConcurrentHashMap.newKeySet();
+        private final Set<String> seeds = ConcurrentHashMap.newKeySet();
+        // lines added on this node that have not been read back from the CRL yet
+        private final Multiset<String> unread = HashMultiset.create();
+        private volatile long version;
+        // set once the CRL changed on disk, until it is read again
+        private volatile boolean changed;
+        private volatile long checked;
+        private long read;
+        private byte[] end;
+        private long fileSize;
+        private FileTime modified;
+        private int filterEntries;
+
+        Index(Set<ByteBuffer> digests, MappedCRL mapped, long version, List<String> revoked, List<String> seeds) {
+            this.digests = digests;
+            this.mapped = mapped;
+            this.version = version;
+            for (String seed : seeds) {
+                this.seeds.add(seed);
+                addLinkageValues(seed);
+            }
+            filterSize = Math.max(MIN_FILTER_SIZE, 2 * revoked.size());
+            // a mapped CRL has a filter of its digests instead
+            filter = mapped != null ? null : BloomFilter.create(Funnels.stringFunnel(StandardCharsets.UTF_8),
+                    filterSize, FALSE_POSITIVE_RATE);
+            if (filter != null) {
+                for (String certificate : revoked) {
+                    filter.put(certificate);
+                }
+            }
+            filterEntries = revoked.size();
+        }
+
+        boolean contains(String certificate) {
+            return (filter == null || filter.mightContain(certificate)) && containsDigest(digest(certificate))
+                    || isLinked(certificate);
+        }
+
+        boolean isLinked(String certificate) {
+            if (linkageValues.isEmpty()) {
+                return false;
+            }
+            String linkageValue = linkageValue(certificate);
+            return linkageValue != null && linkageValues.contains(linkageValue);
+        }
+
+        boolean containsDigest(ByteBuffer digest) {
+            return digests.contains(digest) || mapped != null && mapped.contains(digest.array());
+        }
+
+        /**
+         * Adds a line added on this node.
+         *
+         * @return <code>true</code> if the filter is full and the index has to be read again
+         */
+        boolean add(String certificate) {
+            unread.add(certificate);
+            return put(certificate);
+        }
+
+        private boolean put(String certificate) {
+            if (certificate.startsWith(LINKAGE_PREFIX)) {
+                addLinkageValues(certificate.substring(LINKAGE_PREFIX.length()));
+                return false;
+            }
+            digests.add(digest(certificate));
+            if (filter == null) {
+                return false;
+            }
+            filter.put(certificate);
+            return ++filterEntries > filterSize;
+        }
+
+        /**
+         * Adds a line read from the CRL. A mapped CRL only gets lines once they are in the CRL, so it never holds a
+         * line the CRL has lost.
+         *
+         * @return <code>true</code> if the filter is full and the index has to be read again
+         */
+        boolean read(String line) throws IOException {
+            boolean own = unread.remove(line);
+            if (line.startsWith(LINKAGE_PREFIX)) {
+                String seed = line.substring(LINKAGE_PREFIX.length());
+                if (seeds.add(seed) && !own) {
+                    addLinkageValues(seed);
+                }
+                return false;
+            }
+            if (mapped != null) {
+                ByteBuffer digest = digest(line);
+                mapped.add(digest.array());
+                if (own) {
+                    digests.remove(digest);
+                }
+                return false;
+            }
+            return !own && put(line);
+        }
+
+        void addLinkageValues(String seed) {
+            for (int number = 0; number < PseudonymAuthority.CERTIFICATE_AMOUNT; number++) {
+                linkageValues.add(PseudonymAuthority.linkageValue(seed, number));
+            }
+        }
+
+        long size() {
+            return digests.size() + (mapped == null ? 0 : mapped.size()) + seeds.size();
+        }
+
+        boolean isCurrent(long version, String crlLocation) throws IOException {
+            if (this.version != version || changed) {
+                return false;
+            }
+            long now = System.currentTimeMillis();
+            if (now - checked < CHECK_INTERVAL) {
+                return true;
+            }
+            checked = now;
+            BasicFileAttributes attributes = Files.readAttributes(Paths.get(crlLocation), BasicFileAttributes.class);
+            changed = attributes.size() != fileSize || !attributes.lastModifiedTime().equals(modified);
+            return !changed;
+        }
+
+        /**
+         * Keeps the size and modification time the CRL had before it was read, so a change made while it was read is
+         * noticed by the next lookup.
+         */
+        void seen(BasicFileAttributes attributes) {
+            fileSize = attributes.size();
+            modified = attributes.lastModifiedTime();
+            checked = System.currentTimeMillis();
+            changed = false;
+        }
+    }
+
+    /**
+     * Checks if a certificate is in a CRL.
+     *
+     * @param certificate a base64 string representation of the certificate
+     * @param crlLocation a string of the location of the CRL
+     * @return <code>true</code> if the certificate is revoked
+     * <code>false</code> if it is not
+     * @throws IOException if the CRL cannot be read
+     */
+    public static boolean isRevoked(String certificate, String crlLocation) throws IOException {
+        return current(crlLocation).contains(certificate);
+    }
+
+    /**
+     * Adds a line to the index of a CRL that was already read and queues it on {@link CRLWriter}. Both happen while
+     * no CRL is read, so a line that is not in the index when a CRL is read is still queued.
+     *
+     * @param certificate a base64 string representation of the certificate, or a linkage seed after
+     *                    {@link #LINKAGE_PREFIX}
+     * @param crlLocation a string of the location of the CRL
+     */
+    static synchronized void add(String certificate, String crlLocation) {
+        Index index = indexes.get(crlLocation);
+        if (index != null && index.add(certificate)) {
+            indexes.remove(crlLocation, index);
+        }
+        CRLWriter.append(crlLocation, certificate);
+    }
+
+    /**
+     * Tells the index of a CRL that the CRL was changed other than through {@link CRLWriter}, e.g. emptied, so the
+     * next lookup reads it again.
+     *
+     * @param crlLocation a string of the location of the CRL
+     */
+    public static synchronized void changed(String crlLocation) {
+        Index index = indexes.get(crlLocation);
+        if (index != null) {
+            index.changed = true;
+        }
+    }
+
+    /**
+     * Gives how many certificates are in the index of a CRL.
+     *
+     * @param crlLocation a string of the location of the CRL
+     * @return <code>long</code> the number of revoked certificates
+     * @throws IOException if the CRL cannot be read
+     */
+    public static long size(String crlLocation) throws IOException {
+        return current(crlLocation).size();
+    }
+
+    private static Index current(String crlLocation) throws IOException {
+        long version = CredentialStore.getVersion(crlLocation);
+        Index index = indexes.get(crlLocation);
+        if (index == null || !index.isCurrent(version, crlLocation)) {
+            index = load(crlLocation, version);
+        }
+        return index;
+    }
+
+    private static synchronized Index load(String crlLocation, long version) throws IOException {
+        Index index = indexes.get(crlLocation);
+        if (index != null && index.version == version && !index.changed) {
+            return index;
+        }
+        if (index == null && MAPPED_MODE) {
+            index = openMapped(crlLocation, version);
+        }
+        BasicFileAttributes attributes = Files.readAttributes(Paths.get(crlLocation), BasicFileAttributes.class);
+        if (index != null && readTail(index, crlLocation)) {
+            index.version = version;
+            index.seen(attributes);
+            if (index.mapped != null) {
+                saveMapped(index, crlLocation);
+            }
+            indexes.put(crlLocation, index);
+            return index;
+        }
+        List<String> seeds = new ArrayList<>();
+        // queued lines are taken before the file is read, so a line written in between is in one of them
+        List<String> unwritten = CRLWriter.getUnwritten(crlLocation);
+        long read;
+        try (FileChannel channel = FileChannel.open(Paths.get(crlLocation), StandardOpenOption.READ)) {
+            if (MAPPED_MODE) {
+                // the digests are sorted on disk, so the CRL is never on the heap
+                MappedCRL mapped = mappedCRL(crlLocation);
+                try (MappedCRL.Runs runs = new MappedCRL.Runs(crlLocation + ".digests")) {
+                    read = readLines(channel, 0, line -> {
+                        if (line.startsWith(LINKAGE_PREFIX)) {
+                            seeds.add(line.substring(LINKAGE_PREFIX.length()));
+                        } else {
+                            runs.add(digest(line).array());
+                        }
+                        return true;
+                    });
+                    mapped.replace(runs);
+                }
+                index = new Index(ConcurrentHashMap.newKeySet(), mapped, version, Collections.emptyList(), seeds);
+            } else {
+                List<String> revoked = new ArrayList<>();
+                read = readLines(channel, 0, line -> {
+                    if (line.startsWith(LINKAGE_PREFIX)) {
+                        seeds.add(line.substring(LINKAGE_PREFIX.length()));
+                    } else {
+                        revoked.add(line);
+                    }
+                    return true;
+                });
+                Set<ByteBuffer> digests = ConcurrentHashMap.newKeySet();
+                for (String certificate : revoked) {
+                    digests.add(digest(certificate));
+                }
+                index = new Index(digests, null, version, revoked, seeds);
+            }
+            index.end = read(channel, Math.max(0, read - CHECKED_END), (int) Math.min(CHECKED_END, read));
+        }
+        for (String line : unwritten) {
+            index.add(line);
+        }
+        index.read = read;
+        index.seen(attributes);
+        if (MAPPED_MODE) {
+            saveMapped(index, crlLocation);
+        }
+        indexes.put(crlLocation, index);
+        return index;
+    }
+
+    private static MappedCRL mappedCRL(String crlLocation) throws IOException {
+        MappedCRL mapped = mappedCRLs.get(crlLocation);
+        if (mapped == null) {
+            mapped = MappedCRL.open(crlLocation + ".digests");
+            mappedCRLs.put(crlLocation, mapped);
+        }
+        return mapped;
+    }
+
+    /**
+     * Opens the index of a CRL from its mapped CRL and the state saved with it, without reading the CRL. If there is
+     * no saved state the index has read nothing of the CRL yet.
+     */
+    private static Index openMapped(String crlLocation, long version) throws IOException {
+        Path state = Paths.get(crlLocation + ".digests.read");
+        Properties read = new Properties();
+        if (Files.exists(Paths.get(crlLocation + ".digests")) && Files.exists(state)) {
+            try (InputStream in = Files.newInputStream(state)) {
+                read.load(in);
+            }
+        }
+        List<String> seeds = new ArrayList<>();
+        for (String seed : read.getProperty("seeds", "").split(",")) {
+            if (!seed.isEmpty()) {
+                seeds.add(seed);
+            }
+        }
+        Index index = new Index(ConcurrentHashMap.newKeySet(), mappedCRL(crlLocation), version,
+                Collections.emptyList(), seeds);
+        try {
+            index.read = Long.parseLong(read.getProperty("read", "0"));
+            index.end = Base64.getDecoder().decode(read.getProperty("end", ""));
+        } catch (IllegalArgumentException e) {
+            index.read = 0;
+            index.end = new byte[0];
+        }
+        for (String line : CRLWriter.getUnwritten(crlLocation)) {
+            index.add(line);
+        }
+        return index;
+    }
+
+    /**
+     * Saves how much of the CRL the mapped CRL holds and the linkage seeds of the CRL. The mapped CRL holds the lines
+     * up to there once this is saved, so if a node stops before it is saved the lines are only added again.
+     */
+    private static void saveMapped(Index index, String crlLocation) throws IOException {
+        Properties state = new Properties();
+        state.setProperty("read", String.valueOf(index.read));
+        state.setProperty("end", Base64.getEncoder().encodeToString(index.end));
+        state.setProperty("seeds", String.join(",", index.seeds));
+        Path location = Paths.get(crlLocation + ".digests.read");
+        Path next = location.resolveSibling(location.getFileName() + ".next");
+        try (OutputStream out = Files.newOutputStream(next)) {
+            state.store(out, null);
+        }
+        Files.move(next, location, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Adds the lines appended to a CRL since it was read into an index. Lines that were added on this node are only
+     * taken off the unread lines, or moved to the mapped CRL.
+     *
+     * @return <code>true</code> if the index is up to date
+     * <code>false</code> if the CRL has to be read again, because it was not only appended to or the filter is full
+     */
+    private static boolean readTail(Index index, String crlLocation) throws IOException {
+        Multiset<String> queued = HashMultiset.create(CRLWriter.getUnwritten(crlLocation));
+        try (FileChannel channel = FileChannel.open(Paths.get(crlLocation), StandardOpenOption.READ)) {
+            if (channel.size() < index.read || !Arrays.equals(index.end,
+                    read(channel, index.read - index.end.length, index.end.length))) {
+                return false;
+            }
+            long read = readLines(channel, index.read, line -> !index.read(line));
+            if (read < 0) {
+                return false;
+            }
+            // a line added on this node that was written but is not in the end of the CRL was lost, e.g. when the
+            // CRL was emptied after it was written
+            for (Multiset.Entry<String> line : index.unread.entrySet()) {
+                if (queued.count(line.getElement()) < line.getCount()) {
+                    return false;
+                }
+            }
+            index.end = read(channel, Math.max(0, read - CHECKED_END), (int) Math.min(CHECKED_END, read));
+            index.read = read;
+        }
+        return true;
+    }
+
+    private static byte[] read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                break;
+            }
+        }
+        return buffer.array();
+    }
+
+    private interface LineReader {
+        /**
+         * @return <code>true</code> to read the next line
+         * <code>false</code> to stop
+         */
+        boolean read(String line) throws IOException;
+    }
+
+    /**
+     * Reads the lines of a CRL from a position on, a chunk of {@link #CHUNK_SIZE} bytes at a time, so the CRL does not
+     * have to fit on the heap. A line that is still being written is left for the next time.
+     *
+     * @return <code>long</code> the position after the last whole line
+     * <code>-1</code> if the reader stopped
+     */
+    private static long readLines(FileChannel channel, long position, LineReader reader) throws IOException {
+        long size = channel.size();
+        ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE);
+        byte[] line = new byte[1024];
+        int lineLength = 0;
+        long end = position;
+        while (position < size) {
+            chunk.clear();
+            chunk.limit((int) Math.min(CHUNK_SIZE, size - position));
+            int length = channel.read(chunk, position);
+            if (length <= 0) {
+                break;
+            }
+            byte[] bytes = chunk.array();
+            for (int i = 0; i < length; i++) {
+                if (bytes[i] != '\n') {
+                    if (lineLength == line.length) {
+                        line = Arrays.copyOf(line, 2 * line.length);
+                    }
+                    line[lineLength++] = bytes[i];
+                    continue;
+                }
+                int textLength = lineLength > 0 && line[lineLength - 1] == '\r' ? lineLength - 1 : lineLength;
+                if (textLength > 0 && !reader.read(new String(line, 0, textLength, StandardCharsets.UTF_8))) {
+                    return -1;
+                }
+                lineLength = 0;
+                end = position + i + 1;
+            }
+            position += length;
+        }
+        return end;
+    }
+
+    private static String linkageValue(String certificate) {
+        String linkageValue = certificateLinkageValues.get(certificate);
+        if (linkageValue == null) {
+            try {
+                linkageValue = CertificateCache.resolve(certificate, null).getLinkageValue();
+            } catch (CertificateException | IllegalArgumentException e) {
+                linkageValue = null;
+            }
+            if (certificateLinkageValues.size() >= CertificateCache.CACHE_SIZE) {
+                certificateLinkageValues.clear();
+            }
+            certificateLinkageValues.put(certificate, linkageValue == null ? "" : linkageValue);
+        }
+        return linkageValue == null || linkageValue.isEmpty() ? null : linkageValue;
+    }
+
+    private static ByteBuffer digest(String certificate) {
+        try {
+            MessageDigest messageDigest = AuthenticationFunctions.DIGESTS.acquire("SHA-256");
+            byte[] hash = messageDigest.digest(certificate.getBytes(StandardCharsets.UTF_8));
+            AuthenticationFunctions.DIGESTS.release("SHA-256", messageDigest);
+            return ByteBuffer.wrap(hash);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Revokes certificates, changes the CRL on disk and compares a lookup in the index with reading the CRL for
+     * growing numbers of revoked certificates.
+     */
+    public static void main(String[] args) {
+        try {
+            String crlLocation = Paths.get(System.getProperty("java.io.tmpdir"), "v2x-revocation-index.crl")
+                    .toString();
+            new PrintWriter(crlLocation).close();
+            String certificate = AuthenticationFunctions.getCertificate(Querier.OWN_CERTIFICATE_LOCATION);
+            String other = AuthenticationFunctions.getCertificate(Querier.DNS_CERTIFICATE_LOCATION);
+
+            System.out.println("Expected: " + false + " Actual: " + isRevoked(certificate, crlLocation));
+            AuthenticationFunctions.addToCRL(certificate, crlLocation);
+            System.out.println("Expected: " + true + " Actual: " + isRevoked(certificate, crlLocation));
+            System.out.println("Expected: " + false + " Actual: " + isRevoked(other, crlLocation));
+
+            // the line written for this node and a line appended by another node only read the end of the CRL
+            // a change is noticed by the next lookup after CHECK_INTERVAL, without waiting for the watcher
+            Index index = current(crlLocation);
+            CRLWriter.flush(CRLWriter.FLUSH_TIMEOUT);
+            Thread.sleep(CHECK_INTERVAL);
+            System.out.println("Expected: " + 1 + " Actual: " + size(crlLocation));
+            Files.write(Paths.get(crlLocation), (other + "\n").getBytes(), StandardOpenOption.APPEND);
+            Thread.sleep(CHECK_INTERVAL);
+            System.out.println("Expected: " + true + " Actual: " + isRevoked(other, crlLocation));
+            System.out.println("Expected: " + true + " Actual: " + (current(crlLocation) == index));
+
+            new PrintWriter(crlLocation).close();
+            Thread.sleep(CHECK_INTERVAL);
+            System.out.println("Expected: " + false + " Actual: " + isRevoked(certificate, crlLocation));
+
+            // and right away when the code that changed the CRL says so
+            AuthenticationFunctions.addToCRL(certificate, crlLocation);
+            CRLWriter.flush(CRLWriter.FLUSH_TIMEOUT);
+            isRevoked(certificate, crlLocation);
+            new PrintWriter(crlLocation).close();
+            changed(crlLocation);
+            System.out.println("Expected: " + false + " Actual: " + isRevoked(certificate, crlLocation));
+
+            int iterations = 10000;
+            int fileIterations = 100;
+            for (int revoked : new int[]{10, 100, 1000}) {
+                try (PrintWriter writer = new PrintWriter(crlLocation)) {
+                    for (int i = 0; i < revoked; i++) {
+                        writer.println(certificate + i);
+                    }
+                }
+                Thread.sleep(CHECK_INTERVAL);
+                System.out.println("Expected: " + revoked + " Actual: " + size(crlLocation));
+                long indexTime = 0;
+                long digestTime = 0;
+                long fileTime = 0;
+                for (int round = 0; round < 3; round++) {
+                    long start = System.nanoTime();
+                    for (int i = 0; i < iterations; i++) {
+                        isRevoked(other, crlLocation);
+                    }
+                    indexTime = System.nanoTime() - start;
+                    start = System.nanoTime();
+                    for (int i = 0; i < iterations; i++) {
+                        current(crlLocation).containsDigest(digest(other));
+                    }
+                    digestTime = System.nanoTime() - start;
+                    start = System.nanoTime();
+                    for (int i = 0; i < fileIterations; i++) {
+                        AuthenticationFunctions.getCertificateRevocationList(crlLocation).contains(other);
+                    }
+                    fileTime = System.nanoTime() - start;
+                }
+                System.out.println(revoked + " revoked, index: " + indexTime / iterations
+                        + " ns, without the filter: " + digestTime / iterations + " ns, file: "
+                        + fileTime / fileIterations + " ns");
+            }
+
+            new PrintWriter(crlLocation).close();
+            changed(crlLocation);
+            System.out.println("Expected: " + 0 + " Actual: " + size(crlLocation));
+            // as addToCRL does, which only takes certificates
+            for (int i = 0; i <= MIN_FILTER_SIZE; i++) {
+                add(certificate + "-" + i, crlLocation);
+            }
+            int revoked = 0;
+            int falsePositives = 0;
+            for (int i = 0; i <= MIN_FILTER_SIZE; i++) {
+                if (isRevoked(certificate + "-" + i, crlLocation)) {
+                    revoked++;
+                }
+                if (isRevoked(other + "-" + i, crlLocation)) {
+                    falsePositives++;
+                }
+            }
+            System.out.println("Expected: " + (MIN_FILTER_SIZE + 1) + " Actual: " + revoked);
+            System.out.println("Expected: " + 0 + " Actual: " + falsePositives);
+
+            String seed = PseudonymAuthority.newLinkageSeed();
+            add(LINKAGE_PREFIX + seed, crlLocation);
+            Set<String> linkageValues = current(crlLocation).linkageValues;
+            System.out.println("Expected: " + true + " Actual: "
+                    + (linkageValues.contains(PseudonymAuthority.linkageValue(seed, 0)) && linkageValues.contains(
+                    PseudonymAuthority.linkageValue(seed, PseudonymAuthority.CERTIFICATE_AMOUNT - 1))));
+            System.out.println("Expected: " + false + " Actual: "
+                    + linkageValues.contains(PseudonymAuthority.linkageValue(PseudonymAuthority.newLinkageSeed(), 0)));
+            String linkageValue = PseudonymAuthority.linkageValue(seed, 7);
+            System.out.println("Expected: " + linkageValue + " Actual: "
+                    + PseudonymAuthority.getLinkageValue("CN=test,PSEUDONYM=" + linkageValue + ",C=SE"));
+
+            if (MAPPED_MODE) {
+                // as a node that starts again: the mapped CRL and its saved state, and only the end of the CRL
+                CRLWriter.flush(CRLWriter.FLUSH_TIMEOUT);
+                long revokedSize = size(crlLocation);
+                indexes.remove(crlLocation);
+                System.out.println("Expected: " + revokedSize + " Actual: " + size(crlLocation));
+                System.out.println("Expected: " + Files.size(Paths.get(crlLocation)) + " Actual: "
+                        + current(crlLocation).read);
+
+                // a CRL that is read again as a whole is sorted in runs on disk
+                int lines = 1000000;
+                try (PrintWriter writer = new PrintWriter(crlLocation)) {
+                    for (int i = 0; i < lines; i++) {
+                        writer.println("certificate-" + i);
+                    }
+                }
+                changed(crlLocation);
+                long start = System.nanoTime();
+                System.out.println("Expected: " + lines + " Actual: " + size(crlLocation));
+                System.out.println(lines + " revoked, " + Files.size(Paths.get(crlLocation)) / (1024 * 1024)
+                        + " MB CRL read in " + (System.nanoTime() - start) / 1000000 + " ms, "
+                        + (lines + MappedCRL.RUN_ENTRIES - 1) / MappedCRL.RUN_ENTRIES + " runs");
+                System.out.println("Expected: " + true + " Actual: " + (isRevoked("certificate-" + (lines - 1), crlLocation)
+                        && !isRevoked("certificate-" + lines, crlLocation)));
+                new PrintWriter(crlLocation).close();
+                changed(crlLocation);
+                System.out.println("Expected: " + 0 + " Actual: " + size(crlLocation));
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
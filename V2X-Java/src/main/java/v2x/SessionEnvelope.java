@@ -0,0 +1,199 @@
+package v2x;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+
+/**
+ * An answer authenticated with the HMAC-SHA256 key of a session instead of a signature, see {@link SessionKeys}. It
+ * carries the same inner message as a {@link SignedEnvelope}; the MAC covers the payload and the time of the query,
+ * so an answer cannot be replayed to a later query.
+ *
+ * <pre>
+ * header: 'V' 'X' | version (1) | type 5 (1) | body length (4)
+ * field:  field id (1) | value length (2) | value
+ * </pre>
+ */
+public class SessionEnvelope {
+    static final byte TYPE_SESSION = 5;
+    static final int SESSION_ID_FIELD = 1;
+    static final int PAYLOAD_FIELD = 2;
+    static final int TIME_FIELD = 3;
+    static final int MAC_FIELD = 4;
+
+    private final byte[] buffer;
+    private final int payloadOffset;
+    private final int payloadLength;
+    private final byte[] mac;
+    private final int macOffset;
+    private final int macLength;
+    private final String sessionId;
+    private final String time;
+
+    private SessionEnvelope(byte[] buffer, int payloadOffset, int payloadLength, byte[] mac, int macOffset,
+                            int macLength, String sessionId, String time) {
+        this.buffer = buffer;
+        this.payloadOffset = payloadOffset;
+        this.payloadLength = payloadLength;
+        this.mac = mac;
+        this.macOffset = macOffset;
+        this.macLength = macLength;
+        this.sessionId = sessionId;
+        this.time = time;
+    }
+
+    /**
+     * Authenticates a payload with the key of a session. The payload is shared, not copied.
+     *
+     * @param session       the session with the querier
+     * @param payload       a byte array holding the encoded inner message
+     * @param payloadOffset where the inner message starts
+     * @param payloadLength how long the inner message is
+     * @param time          the time the query was sent
+     * @return <code>SessionEnvelope</code> the envelope to send
+     * @throws GeneralSecurityException if the MAC cannot be calculated
+     */
+    static SessionEnvelope seal(SessionKeys.Session session, byte[] payload, int payloadOffset, int payloadLength,
+                                String time) throws GeneralSecurityException {
+        byte[] mac = session.mac(SessionKeys.ANSWER_LABEL, payload, payloadOffset, payloadLength, time);
+        return new SessionEnvelope(payload, payloadOffset, payloadLength, mac, 0, mac.length, session.getId(), time);
+    }
+
+    /**
+     * Checks if received bytes hold a session envelope rather than a {@link SignedEnvelope}.
+     *
+     * @param buffer the received bytes
+     * @param offset where the datagram starts in the buffer
+     * @param length how many bytes were received
+     * @return <code>true</code> if the bytes are a session envelope
+     * <code>false</code> if they are something else
+     */
+    public static boolean isSessionEnvelope(byte[] buffer, int offset, int length) {
+        return MessageCodec.isType(buffer, offset, length, TYPE_SESSION);
+    }
+
+    /**
+     * Turns the envelope into bytes for sending through the network.
+     *
+     * @return <code>byte[]</code> the encoded envelope
+     * @throws IOException if a field is too long for the format
+     */
+    public byte[] encode() throws IOException {
+        byte[] sessionIdBytes = sessionId.getBytes(StandardCharsets.US_ASCII);
+        byte[] timeBytes = time.getBytes(StandardCharsets.US_ASCII);
+        int bodyLength = 12 + sessionIdBytes.length + payloadLength + timeBytes.length + macLength;
+        ByteBuffer byteBuffer = ByteBuffer.allocate(MessageCodec.HEADER_LENGTH + bodyLength);
+        MessageCodec.writeHeader(byteBuffer, TYPE_SESSION, bodyLength);
+        writeField(byteBuffer, SESSION_ID_FIELD, sessionIdBytes, 0, sessionIdBytes.length);
+        writeField(byteBuffer, PAYLOAD_FIELD, buffer, payloadOffset, payloadLength);
+        writeField(byteBuffer, TIME_FIELD, timeBytes, 0, timeBytes.length);
+        writeField(byteBuffer, MAC_FIELD, mac, macOffset, macLength);
+        return byteBuffer.array();
+    }
+
+    private static void writeField(ByteBuffer byteBuffer, int fieldId, byte[] value, int offset, int length)
+            throws IOException {
+        if (length > MessageCodec.MAX_FIELD_LENGTH) {
+            throw new IOException("Field " + fieldId + " is too long: " + length);
+        }
+        byteBuffer.put((byte) fieldId);
+        byteBuffer.putShort((short) length);
+        byteBuffer.put(value, offset, length);
+    }
+
+    /**
+     * Reads an envelope from received bytes. The payload is not copied and stays in the given buffer.
+     *
+     * @param buffer the received bytes
+     * @param offset where the datagram starts in the buffer
+     * @param length how many bytes were received
+     * @return <code>SessionEnvelope</code> the envelope
+     * @throws IOException if the bytes are not a valid envelope
+     */
+    public static SessionEnvelope decode(byte[] buffer, int offset, int length) throws IOException {
+        ByteBuffer byteBuffer = MessageCodec.readHeader(buffer, offset, length, TYPE_SESSION);
+        int payloadOffset = -1;
+        int payloadLength = 0;
+        int macOffset = -1;
+        int macLength = 0;
+        String sessionId = null;
+        String time = null;
+        try {
+            while (byteBuffer.hasRemaining()) {
+                int fieldId = byteBuffer.get() & 0xFF;
+                int valueLength = byteBuffer.getShort() & 0xFFFF;
+                int valueOffset = byteBuffer.position();
+                if (valueLength > byteBuffer.remaining()) {
+                    throw new IOException("Truncated field");
+                }
+                switch (fieldId) {
+                    case SESSION_ID_FIELD:
+                        sessionId = new String(buffer, valueOffset, valueLength, StandardCharsets.US_ASCII);
+                        break;
+                    case PAYLOAD_FIELD:
+                        payloadOffset = valueOffset;
+                        payloadLength = valueLength;
+                        break;
+                    case TIME_FIELD:
+                        time = new String(buffer, valueOffset, valueLength, StandardCharsets.US_ASCII);
+                        break;
+                    case MAC_FIELD:
+                        macOffset = valueOffset;
+                        macLength = valueLength;
+                        break;
+                    default:
+                        throw new IOException("Unknown field id: " + fieldId);
+                }
+                byteBuffer.position(valueOffset + valueLength);
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated envelope");
+        }
+        if (payloadOffset < 0 || macOffset < 0 || sessionId == null || time == null) {
+            throw new IOException("Incomplete envelope");
+        }
+        return new SessionEnvelope(buffer, payloadOffset, payloadLength, buffer, macOffset, macLength, sessionId,
+                time);
+    }
+
+    /**
+     * Checks the MAC over the payload and the time.
+     *
+     * @param session the session the envelope refers to, or <code>null</code> if it is unknown
+     * @return <code>true</code> if the envelope is authenticated
+     * <code>false</code> if the envelope is not authenticated
+     * @throws GeneralSecurityException if the MAC cannot be calculated
+     */
+    public boolean authenticate(SessionKeys.Session session) throws GeneralSecurityException {
+        if (session == null || !session.getId().equals(sessionId)) {
+            return false;
+        }
+        byte[] expected = session.mac(SessionKeys.ANSWER_LABEL, buffer, payloadOffset, payloadLength, time);
+        byte[] received = new byte[macLength];
+        System.arraycopy(mac, macOffset, received, 0, macLength);
+        return MessageDigest.isEqual(expected, received);
+    }
+
+    /**
+     * Points a view at the payload without copying or decoding it.
+     *
+     * @param view the view to point at the inner message
+     * @return <code>MessageView</code> the view
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    public MessageView openPayload(MessageView view) throws IOException, ClassNotFoundException {
+        return view.wrap(buffer, payloadOffset, payloadLength);
+    }
+
+    public String getSessionId() {
+        return sessionId;
+    }
+
+    public String getTime() {
+        return time;
+    }
+}
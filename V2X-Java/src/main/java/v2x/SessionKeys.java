@@ -0,0 +1,429 @@
+package v2x;
+
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the HMAC-SHA256 session keys that let a responder answer with a MAC instead of a signature once the querier
+ * and the pseudonym of the responder have authenticated each other.
+ *
+ * With <code>-Dv2x.session=true</code> both sides make an ephemeral ECDH P-256 key per pseudonym. The querier puts its
+ * key into every query as <code>SessionKey</code>, signed by its pseudonym as <code>SessionKeyHash</code>. A responder
+ * puts its key into the inner message of its signed answer, so it is covered by the pseudonym signature. Once the
+ * querier has authenticated such an answer it derives the session key and lists the session in the
+ * <code>Sessions</code> field of its next queries; a responder that finds its own session there answers with a
+ * {@link SessionEnvelope}. The key is bound to both pseudonyms, so a session ends when the responder changes
+ * pseudonym and the querier falls back to the signed answer that starts the next one.
+ */
+public class SessionKeys {
+    static final boolean SESSION_MODE = Boolean.getBoolean("v2x.session");
+    static final int CACHE_SIZE = 256;
+    static final int MAX_ADVERTISED_SESSIONS = 8;
+    static final int SESSION_ID_LENGTH = 9;
+    static final String MAC_ALGORITHM = "HmacSHA256";
+    static final String KEY_AGREEMENT_ALGORITHM = "ECDH";
+    static final byte QUERY_LABEL = 'Q';
+    static final byte ANSWER_LABEL = 'A';
+    private static final byte[] DERIVATION_LABEL = "v2x-session".getBytes(StandardCharsets.US_ASCII);
+
+    private static final Map<String, OwnKey> ownKeys = lruMap(CACHE_SIZE);
+    private static final Map<String, Session> sessions = lruMap(CACHE_SIZE);
+    private static final Map<String, Session> acceptedSessions = lruMap(CACHE_SIZE);
+
+    private static <V> Map<String, V> lruMap(int size) {
+        return new LinkedHashMap<String, V>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+                return size() > size;
+            }
+        };
+    }
+
+    private static class OwnKey {
+        private final KeyPair keyPair;
+        private final String publicKey;
+        private final String id;
+        private String signature;
+
+        OwnKey(KeyPair keyPair) {
+            this.keyPair = keyPair;
+            this.publicKey = Base64.getEncoder().encodeToString(keyPair.getPublic().getEncoded());
+            this.id = sessionId(publicKey);
+        }
+    }
+
+    /**
+     * A session key shared with the pseudonym of a peer.
+     */
+    public static class Session {
+        private final String id;
+        private final SecretKeySpec key;
+        private final String certificate;
+
+        Session(String id, byte[] key, String certificate) {
+            this.id = id;
+            this.key = new SecretKeySpec(key, MAC_ALGORITHM);
+            this.certificate = certificate;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        /**
+         * Gives the certificate of the pseudonym of the peer, which the session was authenticated with.
+         *
+         * @return <code>String</code> a base64 string representation of the certificate
+         */
+        public String getCertificate() {
+            return certificate;
+        }
+
+        /**
+         * Calculates the MAC of a query or an answer. The length of the payload is part of the input, so the payload
+         * and the time cannot be shifted into each other.
+         *
+         * @param label   {@link #QUERY_LABEL} or {@link #ANSWER_LABEL}, so a MAC of one cannot pass as the other
+         * @param payload a byte array holding the payload
+         * @param offset  where the payload starts
+         * @param length  how long the payload is
+         * @param time    the time the query was sent
+         * @return <code>byte[]</code> the MAC
+         * @throws GeneralSecurityException
+         */
+        public byte[] mac(byte label, byte[] payload, int offset, int length, String time)
+                throws GeneralSecurityException {
+            Mac mac = AuthenticationFunctions.MACS.acquire(MAC_ALGORITHM);
+            mac.init(key);
+            mac.update(label);
+            mac.update((byte) (length >>> 8));
+            mac.update((byte) length);
+            mac.update(payload, offset, length);
+            mac.update(time.getBytes(StandardCharsets.US_ASCII));
+            byte[] result = mac.doFinal();
+            AuthenticationFunctions.MACS.release(MAC_ALGORITHM, mac);
+            return result;
+        }
+    }
+
+    private static synchronized OwnKey ownKey(String certificate) throws GeneralSecurityException {
+        OwnKey ownKey = ownKeys.get(certificate);
+        if (ownKey == null) {
+            ownKey = new OwnKey(SignatureScheme.ECDSA.generateKeyPair());
+            ownKeys.put(certificate, ownKey);
+        }
+        return ownKey;
+    }
+
+    private static String sessionId(String publicKey) {
+        try {
+            byte[] encoded = Base64.getDecoder().decode(publicKey);
+            byte[] hash = AuthenticationFunctions.hash(encoded, 0, encoded.length);
+            return Base64.getEncoder().encodeToString(Arrays.copyOf(hash, SESSION_ID_LENGTH));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Gives the session public key of an own pseudonym, which a responder puts into its signed answers.
+     *
+     * @param certificate a base64 string representation of the certificate of the pseudonym
+     * @return <code>String</code> the base64 X.509 encoding of the public key
+     * @throws GeneralSecurityException if no key can be made
+     */
+    public static String getPublicKey(String certificate) throws GeneralSecurityException {
+        return ownKey(certificate).publicKey;
+    }
+
+    /**
+     * Puts the signed session key of the querier into a query, together with the sessions it holds and for each of
+     * them a MAC over the query and its time. Call this once the query and its time are set.
+     *
+     * @param query       the query to be sent
+     * @param certificate a base64 string representation of the own certificate
+     * @param privateKey  the own private key
+     * @throws GeneralSecurityException if the session key cannot be made or signed
+     */
+    public static void attach(Message query, String certificate, PrivateKey privateKey)
+            throws GeneralSecurityException {
+        if (!SESSION_MODE) {
+            return;
+        }
+        OwnKey ownKey = ownKey(certificate);
+        synchronized (ownKey) {
+            if (ownKey.signature == null) {
+                ownKey.signature = AuthenticationFunctions.signMessage(ownKey.publicKey, privateKey);
+            }
+        }
+        query.putValue("SessionKey", ownKey.publicKey);
+        query.putValue("SessionKeyHash", ownKey.signature);
+        List<Session> held;
+        synchronized (SessionKeys.class) {
+            held = new ArrayList<>(sessions.values());
+        }
+        if (held.isEmpty()) {
+            return;
+        }
+        byte[] request = query.getValue("Query").getBytes(StandardCharsets.UTF_8);
+        String time = query.getValue("Time");
+        StringBuilder advertised = new StringBuilder();
+        for (Session session : held.subList(Math.max(0, held.size() - MAX_ADVERTISED_SESSIONS), held.size())) {
+            if (advertised.length() > 0) {
+                advertised.append(',');
+            }
+            advertised.append(session.id).append(':').append(Base64.getEncoder().encodeToString(
+                    session.mac(QUERY_LABEL, request, 0, request.length, time)));
+        }
+        query.putValue("Sessions", advertised.toString());
+    }
+
+    /**
+     * Derives the session with a responder from its authenticated answer, unless it is already known. Only call this
+     * once the signature of the responder and its certificate have been checked.
+     *
+     * @param answer          the inner message of the answer
+     * @param peerCertificate the certificate the answer was signed with
+     * @param ownCertificate  a base64 string representation of the own certificate
+     * @throws GeneralSecurityException if the session key cannot be derived
+     */
+    public static void establish(MessageView answer, String peerCertificate, String ownCertificate)
+            throws GeneralSecurityException {
+        if (!SESSION_MODE) {
+            return;
+        }
+        String peerKey = answer.getValue("SessionKey");
+        if (peerKey == null) {
+            return;
+        }
+        String id = sessionId(peerKey);
+        synchronized (SessionKeys.class) {
+            if (sessions.containsKey(id)) {
+                return;
+            }
+        }
+        OwnKey ownKey = ownKey(ownCertificate);
+        byte[] key = derive(ownKey.keyPair.getPrivate(), peerKey, ownKey.publicKey, peerKey,
+                CertificateCache.digest(ownCertificate), CertificateCache.digest(peerCertificate));
+        synchronized (SessionKeys.class) {
+            sessions.put(id, new Session(id, key, peerCertificate));
+        }
+    }
+
+    /**
+     * Finds a session the querier holds.
+     *
+     * @param id the id of the session, as sent in a {@link SessionEnvelope}
+     * @return <code>Session</code> the session, or <code>null</code> if it is unknown
+     */
+    public static synchronized Session getSession(String id) {
+        return sessions.get(id);
+    }
+
+    /**
+     * Finds the session a querier holds with the current pseudonym of the responder and checks the MAC of the query
+     * with it. A session that was set up before needs no signature at all, so call this first without a sender. If
+     * it gives <code>null</code>, authenticate the query by its signature and call it again with the sender, which
+     * sets up the session after checking the signature over the session key of the querier.
+     *
+     * @param query          the received query
+     * @param sender         the certificate of the authenticated querier, or <code>null</code>
+     * @param ownCertificate a base64 string representation of the certificate of the current pseudonym
+     * @return <code>Session</code> the session to answer with, or <code>null</code> if a signed answer is needed
+     * @throws GeneralSecurityException if the session key cannot be derived
+     * @throws IOException
+     */
+    public static Session accept(MessageView query, CertificateCache.CachedCertificate sender, String ownCertificate)
+            throws GeneralSecurityException, IOException {
+        if (!SESSION_MODE) {
+            return null;
+        }
+        String peerKey = query.getValue("SessionKey");
+        String advertised = query.getValue("Sessions");
+        String time = query.getValue("Time");
+        byte[] request = query.getBytes("Query");
+        if (peerKey == null || advertised == null || time == null || request == null) {
+            return null;
+        }
+        OwnKey ownKey = ownKey(ownCertificate);
+        byte[] queryMac = null;
+        for (String entry : advertised.split(",")) {
+            int separator = entry.indexOf(':');
+            if (separator > 0 && entry.regionMatches(0, ownKey.id, 0, separator)
+                    && separator == ownKey.id.length()) {
+                queryMac = AuthenticationFunctions.decodeSignature(entry.substring(separator + 1));
+            }
+        }
+        if (queryMac == null) {
+            return null;
+        }
+        String cacheKey = peerKey + '\n' + ownKey.id;
+        Session session;
+        synchronized (SessionKeys.class) {
+            session = acceptedSessions.get(cacheKey);
+        }
+        if (session == null) {
+            if (sender == null) {
+                return null;
+            }
+            String signature = query.getValue("SessionKeyHash");
+            if (signature == null
+                    || !AuthenticationFunctions.verifyMessage(peerKey, signature, sender.getPublicKey())) {
+                return null;
+            }
+            byte[] key = derive(ownKey.keyPair.getPrivate(), peerKey, peerKey, ownKey.publicKey, sender.getDigest(),
+                    CertificateCache.digest(ownCertificate));
+            session = new Session(ownKey.id, key, sender.getCertificate());
+        }
+        if (!MessageDigest.isEqual(queryMac, session.mac(QUERY_LABEL, request, 0, request.length, time))) {
+            return null;
+        }
+        synchronized (SessionKeys.class) {
+            acceptedSessions.put(cacheKey, session);
+        }
+        return session;
+    }
+
+    /**
+     * Derives a session key as HMAC-SHA256 over both session keys and both certificate digests, keyed with the ECDH
+     * secret. The querier comes first in both pairs.
+     */
+    private static byte[] derive(PrivateKey ownPrivateKey, String peerKey, String querierKey, String responderKey,
+                                 String querierDigest, String responderDigest) throws GeneralSecurityException {
+        KeyFactory keyFactory = AuthenticationFunctions.KEY_FACTORIES.acquire("EC");
+        PublicKey peerPublicKey = keyFactory.generatePublic(new X509EncodedKeySpec(
+                Base64.getDecoder().decode(peerKey)));
+        AuthenticationFunctions.KEY_FACTORIES.release("EC", keyFactory);
+
+        KeyAgreement keyAgreement = AuthenticationFunctions.KEY_AGREEMENTS.acquire(KEY_AGREEMENT_ALGORITHM);
+        keyAgreement.init(ownPrivateKey);
+        keyAgreement.doPhase(peerPublicKey, true);
+        byte[] secret = keyAgreement.generateSecret();
+        AuthenticationFunctions.KEY_AGREEMENTS.release(KEY_AGREEMENT_ALGORITHM, keyAgreement);
+
+        Mac mac = AuthenticationFunctions.MACS.acquire(MAC_ALGORITHM);
+        mac.init(new SecretKeySpec(secret, MAC_ALGORITHM));
+        mac.update(DERIVATION_LABEL);
+        for (String value : new String[]{querierKey, responderKey, querierDigest, responderDigest}) {
+            mac.update((byte) 0);
+            mac.update(value.getBytes(StandardCharsets.US_ASCII));
+        }
+        byte[] key = mac.doFinal();
+        AuthenticationFunctions.MACS.release(MAC_ALGORITHM, mac);
+        return key;
+    }
+
+    private static byte[] query(String certificate, PrivateKey privateKey, String time)
+            throws GeneralSecurityException, IOException {
+        Message query = new Message();
+        query.putValue("Query", "Query");
+        query.putValue("Certificate", certificate);
+        query.putValue("Hash", AuthenticationFunctions.signMessage("Query", privateKey));
+        query.putValue("Time", time);
+        attach(query, certificate, privateKey);
+        return MessageCodec.encode(query);
+    }
+
+    /**
+     * Runs a querier and a responder through the start of a session and compares checking signed queries and answers
+     * with checking them by MAC.
+     */
+    public static void main(String[] args) {
+        try {
+            if (!SESSION_MODE) {
+                System.out.println("run with -Dv2x.session=true");
+                return;
+            }
+            String querierCertificate = CredentialStore.getCertificate(Querier.OWN_CERTIFICATE_LOCATION);
+            PrivateKey querierPrivateKey = CredentialStore.getPrivateKey(Querier.OWN_PRIVATE_KEY_LOCATION);
+            String responderCertificate = CredentialStore.getCertificate(NonCompromised.OWN_CERTIFICATE_LOCATION);
+            String answer = DNSBloomFilterFunctions.getFixedAAAA();
+            SignedEnvelope template = SignedAnswerCache.getEnvelope(answer, NonCompromised.OWN_CERTIFICATE_LOCATION,
+                    NonCompromised.OWN_PRIVATE_KEY_LOCATION, NonCompromised.DNS_PRIVATE_KEY);
+
+            CertificateCache.CachedCertificate sender = CertificateCache.resolve(querierCertificate, null);
+            byte[] encodedQuery = query(querierCertificate, querierPrivateKey, "1");
+            MessageView queryView = new MessageView().wrap(encodedQuery, 0, encodedQuery.length);
+            System.out.println("Expected: " + null + " Actual: " + accept(queryView, sender, responderCertificate));
+
+            byte[] signed = template.forPeer("127.0.0.1", "1").encode();
+            SignedEnvelope signedAnswer = SignedEnvelope.decode(signed, 0, signed.length);
+            System.out.println("Expected: " + true + " Actual: "
+                    + signedAnswer.authenticate(Querier.CA_CERTIFICATE_LOCATION));
+            establish(signedAnswer.openPayload(new MessageView()), signedAnswer.getCertificate(), querierCertificate);
+
+            encodedQuery = query(querierCertificate, querierPrivateKey, "2");
+            queryView.wrap(encodedQuery, 0, encodedQuery.length);
+            System.out.println("Expected: " + null + " Actual: " + accept(queryView, null, responderCertificate));
+            Session session = accept(queryView, sender, responderCertificate);
+            System.out.println("Expected: " + true + " Actual: " + (session != null));
+            System.out.println("Expected: " + true + " Actual: "
+                    + (session == accept(queryView, null, responderCertificate)));
+
+            byte[] sealed = template.seal(session, "2").encode();
+            SessionEnvelope macAnswer = SessionEnvelope.decode(sealed, 0, sealed.length);
+            System.out.println("Expected: " + true + " Actual: "
+                    + macAnswer.authenticate(getSession(macAnswer.getSessionId())));
+            System.out.println("Expected: " + answer + " Actual: "
+                    + macAnswer.openPayload(new MessageView()).getValue("Answer"));
+            byte[] tampered = sealed.clone();
+            tampered[tampered.length - 1] ^= 1;
+            System.out.println("Expected: " + false + " Actual: " + SessionEnvelope.decode(tampered, 0,
+                    tampered.length).authenticate(getSession(macAnswer.getSessionId())));
+            System.out.println("answer size signed: " + signed.length + " bytes, with a MAC: " + sealed.length
+                    + " bytes");
+
+            byte[] request = queryView.getBytes("Query");
+            byte[] signature = queryView.getBase64Value("Hash");
+            int iterations = 2000;
+            for (int round = 0; round < 2; round++) {
+                long start = System.nanoTime();
+                for (int i = 0; i < iterations; i++) {
+                    AuthenticationFunctions.authenticateMessage(request, 0, request.length, signature, 0,
+                            signature.length, sender, Querier.CA_CERTIFICATE_LOCATION);
+                }
+                long signedQueryTime = System.nanoTime() - start;
+                start = System.nanoTime();
+                for (int i = 0; i < iterations; i++) {
+                    accept(queryView, null, responderCertificate);
+                }
+                long macQueryTime = System.nanoTime() - start;
+                start = System.nanoTime();
+                for (int i = 0; i < iterations; i++) {
+                    SignedEnvelope.decode(signed, 0, signed.length).authenticate(Querier.CA_CERTIFICATE_LOCATION);
+                }
+                long signedAnswerTime = System.nanoTime() - start;
+                start = System.nanoTime();
+                for (int i = 0; i < iterations; i++) {
+                    SessionEnvelope.decode(sealed, 0, sealed.length)
+                            .authenticate(getSession(macAnswer.getSessionId()));
+                }
+                long macAnswerTime = System.nanoTime() - start;
+                if (round == 1) {
+                    System.out.println("check query signed: " + signedQueryTime / iterations / 1000
+                            + " us, with a MAC: " + macQueryTime / iterations / 1000 + " us");
+                    System.out.println("check answer signed: " + signedAnswerTime / iterations / 1000
+                            + " us, with a MAC: " + macAnswerTime / iterations / 1000 + " us");
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,331 @@
+package v2x;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.security.spec.AlgorithmParameterSpec;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.RSAKeyGenParameterSpec;
+import java.util.Base64;
+
+/**
+ * A way of signing messages. The scheme that is used for a signature follows from the algorithm of the key, so a
+ * deployment switches schemes by issuing pseudonyms with other keys, see {@link PseudonymAuthority}.
+ *
+ * <ul>
+ * <li><code>rsa</code>: the raw SHA-256 digest encrypted with the RSA private key</li>
+ * <li><code>ecdsa</code>: SHA256withECDSA on P-256</li>
+ * <li><code>ed25519</code>: Ed25519, which needs Java 15 or later at runtime</li>
+ * </ul>
+ */
+public abstract class SignatureScheme {
+    static final String SIGNATURE_PROPERTY = "v2x.signature";
+
+    public static final SignatureScheme RSA = new RsaScheme();
+    public static final SignatureScheme ECDSA = new JcaScheme("ecdsa", "EC", "SHA256withECDSA",
+            new ECGenParameterSpec("secp256r1"),
+            new String[]{"openssl", "genpkey", "-algorithm", "EC", "-pkeyopt", "ec_paramgen_curve:P-256"});
+    public static final SignatureScheme ED25519 = new JcaScheme("ed25519", "Ed25519", "Ed25519", null,
+            new String[]{"openssl", "genpkey", "-algorithm", "ed25519"});
+
+    private static volatile SignatureScheme selected = forName(System.getProperty(SIGNATURE_PROPERTY, "rsa"));
+
+    /**
+     * Gives the name the scheme is selected by.
+     *
+     * @return <code>String</code> the name of the scheme
+     */
+    public abstract String getName();
+
+    /**
+     * Gives the algorithm of the keys of the scheme, as used by <code>KeyFactory</code>.
+     *
+     * @return <code>String</code> the key algorithm
+     */
+    public abstract String getKeyAlgorithm();
+
+    /**
+     * Signs part of a byte array.
+     *
+     * @param message    a byte array holding the bytes to be signed
+     * @param offset     where the bytes start
+     * @param length     how many bytes to sign
+     * @param privateKey the private key to sign with
+     * @return <code>byte[]</code> the signature
+     * @throws GeneralSecurityException
+     */
+    public abstract byte[] sign(byte[] message, int offset, int length, PrivateKey privateKey)
+            throws GeneralSecurityException;
+
+    /**
+     * Checks a signature over part of a byte array.
+     *
+     * @param message         a byte array holding the bytes that were signed
+     * @param offset          where the bytes start
+     * @param length          how many bytes were signed
+     * @param signature       a byte array holding the signature
+     * @param signatureOffset where the signature starts
+     * @param signatureLength how long the signature is
+     * @param publicKey       the public key of the signer
+     * @return <code>true</code> if the signature is valid
+     * <code>false</code> if it is not
+     * @throws GeneralSecurityException if the key cannot be used
+     */
+    public abstract boolean verify(byte[] message, int offset, int length, byte[] signature, int signatureOffset,
+                                   int signatureLength, PublicKey publicKey) throws GeneralSecurityException;
+
+    /**
+     * Generates a key pair for the scheme.
+     *
+     * @return <code>KeyPair</code> a new key pair
+     * @throws GeneralSecurityException
+     */
+    public abstract KeyPair generateKeyPair() throws GeneralSecurityException;
+
+    /**
+     * Gives the openssl command that writes a new PEM private key of the scheme.
+     *
+     * @param keyFile the file to write the key to
+     * @return <code>String[]</code> the command and its arguments
+     */
+    public abstract String[] keyGenerationCommand(String keyFile);
+
+    /**
+     * Finds a scheme by its name.
+     *
+     * @param name either <code>rsa</code>, <code>ecdsa</code> or <code>ed25519</code>
+     * @return <code>SignatureScheme</code> the scheme
+     */
+    public static SignatureScheme forName(String name) {
+        switch (name.toLowerCase()) {
+            case "rsa":
+                return RSA;
+            case "ecdsa":
+                return ECDSA;
+            case "ed25519":
+                return ED25519;
+            default:
+                throw new IllegalArgumentException("Unknown signature scheme: " + name);
+        }
+    }
+
+    /**
+     * Finds the scheme that belongs to a key.
+     *
+     * @param key a public or private key
+     * @return <code>SignatureScheme</code> the scheme of the key
+     */
+    public static SignatureScheme forKey(Key key) {
+        switch (key.getAlgorithm()) {
+            case "RSA":
+                return RSA;
+            case "EC":
+                return ECDSA;
+            case "Ed25519":
+            case "EdDSA":
+                return ED25519;
+            default:
+                throw new IllegalArgumentException("Unsupported key algorithm: " + key.getAlgorithm());
+        }
+    }
+
+    /**
+     * Gives the scheme new keys are made for, chosen with <code>-Dv2x.signature</code>.
+     *
+     * @return <code>SignatureScheme</code> the selected scheme
+     */
+    public static SignatureScheme getSelected() {
+        return selected;
+    }
+
+    /**
+     * Selects the scheme new keys are made for.
+     *
+     * @param scheme the scheme
+     */
+    public static void setSelected(SignatureScheme scheme) {
+        selected = scheme;
+    }
+
+    private static class RsaScheme extends SignatureScheme {
+        private static final String TRANSFORMATION = "RSA/ECB/PKCS1Padding";
+
+        @Override
+        public String getName() {
+            return "rsa";
+        }
+
+        @Override
+        public String getKeyAlgorithm() {
+            return "RSA";
+        }
+
+        @Override
+        public byte[] sign(byte[] message, int offset, int length, PrivateKey privateKey)
+                throws GeneralSecurityException {
+            Cipher cipher = AuthenticationFunctions.CIPHERS.acquire(TRANSFORMATION);
+            cipher.init(Cipher.ENCRYPT_MODE, privateKey);
+            byte[] signature = cipher.doFinal(AuthenticationFunctions.hash(message, offset, length));
+            AuthenticationFunctions.CIPHERS.release(TRANSFORMATION, cipher);
+            return signature;
+        }
+
+        @Override
+        public boolean verify(byte[] message, int offset, int length, byte[] signature, int signatureOffset,
+                              int signatureLength, PublicKey publicKey) throws GeneralSecurityException {
+            Cipher cipher = AuthenticationFunctions.CIPHERS.acquire(TRANSFORMATION);
+            cipher.init(Cipher.DECRYPT_MODE, publicKey);
+            boolean valid;
+            try {
+                valid = MessageDigest.isEqual(AuthenticationFunctions.hash(message, offset, length),
+                        cipher.doFinal(signature, signatureOffset, signatureLength));
+            } catch (BadPaddingException | IllegalBlockSizeException e) {
+                valid = false;
+            }
+            AuthenticationFunctions.CIPHERS.release(TRANSFORMATION, cipher);
+            return valid;
+        }
+
+        @Override
+        public KeyPair generateKeyPair() throws GeneralSecurityException {
+            KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("RSA");
+            keyPairGenerator.initialize(new RSAKeyGenParameterSpec(2048, RSAKeyGenParameterSpec.F4));
+            return keyPairGenerator.generateKeyPair();
+        }
+
+        @Override
+        public String[] keyGenerationCommand(String keyFile) {
+            return new String[]{"openssl", "genrsa", "-out", keyFile, "2048"};
+        }
+    }
+
+    private static class JcaScheme extends SignatureScheme {
+        private final String name;
+        private final String keyAlgorithm;
+        private final String signatureAlgorithm;
+        private final AlgorithmParameterSpec keyParameters;
+        private final String[] keyGenerationCommand;
+
+        JcaScheme(String name, String keyAlgorithm, String signatureAlgorithm, AlgorithmParameterSpec keyParameters,
+                  String[] keyGenerationCommand) {
+            this.name = name;
+            this.keyAlgorithm = keyAlgorithm;
+            this.signatureAlgorithm = signatureAlgorithm;
+            this.keyParameters = keyParameters;
+            this.keyGenerationCommand = keyGenerationCommand;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public String getKeyAlgorithm() {
+            return keyAlgorithm;
+        }
+
+        @Override
+        public byte[] sign(byte[] message, int offset, int length, PrivateKey privateKey)
+                throws GeneralSecurityException {
+            Signature signature = AuthenticationFunctions.SIGNATURES.acquire(signatureAlgorithm);
+            signature.initSign(privateKey);
+            signature.update(message, offset, length);
+            byte[] signatureBytes = signature.sign();
+            AuthenticationFunctions.SIGNATURES.release(signatureAlgorithm, signature);
+            return signatureBytes;
+        }
+
+        @Override
+        public boolean verify(byte[] message, int offset, int length, byte[] signatureBytes, int signatureOffset,
+                              int signatureLength, PublicKey publicKey) throws GeneralSecurityException {
+            Signature signature = AuthenticationFunctions.SIGNATURES.acquire(signatureAlgorithm);
+            signature.initVerify(publicKey);
+            signature.update(message, offset, length);
+            boolean valid;
+            try {
+                valid = signature.verify(signatureBytes, signatureOffset, signatureLength);
+            } catch (SignatureException e) {
+                valid = false;
+            }
+            AuthenticationFunctions.SIGNATURES.release(signatureAlgorithm, signature);
+            return valid;
+        }
+
+        @Override
+        public KeyPair generateKeyPair() throws GeneralSecurityException {
+            KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance(keyAlgorithm);
+            if (keyParameters != null) {
+                keyPairGenerator.initialize(keyParameters);
+            }
+            return keyPairGenerator.generateKeyPair();
+        }
+
+        @Override
+        public String[] keyGenerationCommand(String keyFile) {
+            String[] command = new String[keyGenerationCommand.length + 2];
+            System.arraycopy(keyGenerationCommand, 0, command, 0, keyGenerationCommand.length);
+            command[command.length - 2] = "-out";
+            command[command.length - 1] = keyFile;
+            return command;
+        }
+    }
+
+    /**
+     * Signs and verifies an answer with every scheme and compares the latency and the size of the signatures.
+     */
+    public static void main(String[] args) {
+        byte[] message = "artoria.saber.fgo=2001:0db8:85a3:0000:0000:8a2e:0370:7334".getBytes(StandardCharsets.UTF_8);
+        int iterations = 500;
+        for (SignatureScheme scheme : new SignatureScheme[]{RSA, ECDSA, ED25519}) {
+            try {
+                KeyPair keyPair = scheme.generateKeyPair();
+                byte[] signature = scheme.sign(message, 0, message.length, keyPair.getPrivate());
+                System.out.println("Expected: " + true + " Actual: "
+                        + scheme.verify(message, 0, message.length, signature, 0, signature.length,
+                        keyPair.getPublic()));
+                System.out.println("Expected: " + scheme + " Actual: " + forKey(keyPair.getPublic()));
+                byte[] tampered = message.clone();
+                tampered[0] ^= 1;
+                System.out.println("Expected: " + false + " Actual: "
+                        + scheme.verify(tampered, 0, tampered.length, signature, 0, signature.length,
+                        keyPair.getPublic()));
+
+                for (int i = 0; i < iterations; i++) {
+                    byte[] warmup = scheme.sign(message, 0, message.length, keyPair.getPrivate());
+                    scheme.verify(message, 0, message.length, warmup, 0, warmup.length, keyPair.getPublic());
+                }
+                long start = System.nanoTime();
+                for (int i = 0; i < iterations; i++) {
+                    signature = scheme.sign(message, 0, message.length, keyPair.getPrivate());
+                }
+                long signTime = System.nanoTime() - start;
+                start = System.nanoTime();
+                for (int i = 0; i < iterations; i++) {
+                    scheme.verify(message, 0, message.length, signature, 0, signature.length, keyPair.getPublic());
+                }
+                long verifyTime = System.nanoTime() - start;
+                System.out.println(scheme + " sign: " + signTime / iterations / 1000 + " us, verify: "
+                        + verifyTime / iterations / 1000 + " us, signature: " + signature.length + " bytes, "
+                        + Base64.getEncoder().encodeToString(signature).length() + " in base64");
+            } catch (GeneralSecurityException e) {
+                System.out.println(scheme + " is not available: " + e);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getName();
+    }
+}
@@ -0,0 +1,158 @@
+package v2x;
+
+import java.nio.charset.StandardCharsets;
+import java.security.PrivateKey;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Keeps the signed envelopes of the answers a responder sends, keyed by the answer and the pseudonym it is signed
+ * with. Only the time and the choice between certificate and digest differ between two queries, and neither is
+ * signed, so an answer is signed by the DNS key and the pseudonym key only once per pseudonym. A new pseudonym, or a
+ * key that was reloaded from disk, gives a new envelope. In session mode the inner message also carries the session
+ * key of the pseudonym, see {@link SessionKeys}.
+ */
+public class SignedAnswerCache {
+    static final int CACHE_SIZE = 16;
+
+    private static final Map<String, CachedEnvelope> envelopes =
+            new LinkedHashMap<String, CachedEnvelope>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, CachedEnvelope> eldest) {
+                    return size() > CACHE_SIZE;
+                }
+            };
+    private static long hits = 0;
+    private static long misses = 0;
+
+    private static class CachedEnvelope {
+        private final SignedEnvelope envelope;
+        private final String certificate;
+        private final PrivateKey privateKey;
+        private final PrivateKey dnsPrivateKey;
+        private final String sessionKey;
+
+        CachedEnvelope(SignedEnvelope envelope, String certificate, PrivateKey privateKey,
+                       PrivateKey dnsPrivateKey, String sessionKey) {
+            this.envelope = envelope;
+            this.certificate = certificate;
+            this.privateKey = privateKey;
+            this.dnsPrivateKey = dnsPrivateKey;
+            this.sessionKey = sessionKey;
+        }
+    }
+
+    /**
+     * Gives the signed envelope of an answer: the answer signed by the DNS key, wrapped in an inner message and
+     * signed by the pseudonym. Use {@link SignedEnvelope#forPeer(String, String)} to send it.
+     *
+     * @param answer                the DNS answer
+     * @param certificateLocation   the location of the certificate of the pseudonym
+     * @param privateKeyLocation    the location of the private key of the pseudonym
+     * @param dnsPrivateKeyLocation the location of the private key of the DNS server
+     * @return <code>SignedEnvelope</code> the signed envelope without a time
+     * @throws Exception if the credentials cannot be loaded or the answer cannot be signed
+     */
+    public static SignedEnvelope getEnvelope(String answer, String certificateLocation, String privateKeyLocation,
+                                             String dnsPrivateKeyLocation) throws Exception {
+        String certificate = CredentialStore.getCertificate(certificateLocation);
+        PrivateKey privateKey = CredentialStore.getPrivateKey(privateKeyLocation);
+        PrivateKey dnsPrivateKey = CredentialStore.getPrivateKey(dnsPrivateKeyLocation);
+        String sessionKey = SessionKeys.SESSION_MODE ? SessionKeys.getPublicKey(certificate) : null;
+        String key = answer + '\n' + certificateLocation;
+        synchronized (SignedAnswerCache.class) {
+            CachedEnvelope cached = envelopes.get(key);
+            if (cached != null && cached.certificate.equals(certificate) && cached.privateKey == privateKey
+                    && cached.dnsPrivateKey == dnsPrivateKey && Objects.equals(cached.sessionKey, sessionKey)) {
+                hits++;
+                return cached.envelope;
+            }
+            misses++;
+        }
+
+        byte[] answerBytes = answer.getBytes(StandardCharsets.UTF_8);
+        byte[] innerSignature = AuthenticationFunctions.sign(answerBytes, 0, answerBytes.length, dnsPrivateKey);
+        Message innerMessage = new Message();
+        innerMessage.putValue("Answer", answer);
+        innerMessage.putValue("Hash", Base64.getEncoder().encodeToString(innerSignature));
+        if (sessionKey != null) {
+            innerMessage.putValue("SessionKey", sessionKey);
+        }
+        byte[] innerMessageByte = CommunicationFunctions.messageToByteArray(innerMessage);
+        SignedEnvelope envelope = SignedEnvelope.sign(innerMessageByte, privateKey, certificate);
+        synchronized (SignedAnswerCache.class) {
+            envelopes.put(key, new CachedEnvelope(envelope, certificate, privateKey, dnsPrivateKey, sessionKey));
+        }
+        return envelope;
+    }
+
+    /**
+     * Gives how often a signed envelope was found in the cache.
+     *
+     * @return <code>long</code> the number of hits
+     */
+    public static synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Gives how often an answer had to be signed.
+     *
+     * @return <code>long</code> the number of misses
+     */
+    public static synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Builds the answer of a responder repeatedly and compares signing every answer with using the cache.
+     */
+    public static void main(String[] args) {
+        try {
+            String answer = DNSBloomFilterFunctions.getFixedAAAA();
+            String certificateLocation = NonCompromised.OWN_CERTIFICATE_LOCATION;
+            String privateKeyLocation = NonCompromised.OWN_PRIVATE_KEY_LOCATION;
+            String dnsPrivateKeyLocation = NonCompromised.DNS_PRIVATE_KEY;
+            SignedEnvelope envelope = getEnvelope(answer, certificateLocation, privateKeyLocation,
+                    dnsPrivateKeyLocation);
+            System.out.println("Expected: " + true + " Actual: " + (envelope == getEnvelope(answer,
+                    certificateLocation, privateKeyLocation, dnsPrivateKeyLocation)));
+            System.out.println("Expected: " + 1 + " Actual: " + getMisses());
+            byte[] encoded = envelope.forPeer("127.0.0.1", "1").encode();
+            SignedEnvelope received = SignedEnvelope.decode(encoded, 0, encoded.length);
+            System.out.println("Expected: " + true + " Actual: "
+                    + received.authenticate(NonCompromised.CA_CERTIFICATE_LOCATION));
+            System.out.println("Expected: " + answer + " Actual: " + received.openPayload().getValue("Answer"));
+
+            int iterations = 200;
+            PrivateKey privateKey = CredentialStore.getPrivateKey(privateKeyLocation);
+            PrivateKey dnsPrivateKey = CredentialStore.getPrivateKey(dnsPrivateKeyLocation);
+            String certificate = CredentialStore.getCertificate(certificateLocation);
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                byte[] answerBytes = answer.getBytes(StandardCharsets.UTF_8);
+                byte[] innerSignature = AuthenticationFunctions.sign(answerBytes, 0, answerBytes.length,
+                        dnsPrivateKey);
+                Message innerMessage = new Message();
+                innerMessage.putValue("Answer", answer);
+                innerMessage.putValue("Hash", Base64.getEncoder().encodeToString(innerSignature));
+                byte[] innerMessageByte = CommunicationFunctions.messageToByteArray(innerMessage);
+                SignedEnvelope.sign(innerMessageByte, privateKey, certificate, "127.0.0.1",
+                        String.valueOf(i)).encode();
+            }
+            long signedTime = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                getEnvelope(answer, certificateLocation, privateKeyLocation, dnsPrivateKeyLocation)
+                        .forPeer("127.0.0.1", String.valueOf(i)).encode();
+            }
+            long cachedTime = System.nanoTime() - start;
+            System.out.println("answer signed every time: " + signedTime / iterations / 1000 + " us, from cache: "
+                    + cachedTime / iterations / 1000 + " us");
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
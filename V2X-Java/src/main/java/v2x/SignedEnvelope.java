@@ -0,0 +1,294 @@
+package v2x;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.util.Arrays;
+
+/**
+ * A signed answer that carries an encoded inner message as raw bytes. The signature is made over the payload bytes
+ * and sent as raw bytes as well, so neither is Base64 encoded nor serialized a second time by the outer layer.
+ *
+ * <pre>
+ * header: 'V' 'X' | version (1) | type 2 (1) | body length (4)
+ * field:  field id (1) | value length (2) | value
+ * </pre>
+ *
+ * The certificate of the signer is either sent in full or, once the receiver has seen it, only by its digest. See
+ * {@link CertificateCache}.
+ */
+public class SignedEnvelope {
+    static final byte TYPE_ENVELOPE = 2;
+    static final int PAYLOAD_FIELD = 1;
+    static final int SIGNATURE_FIELD = 2;
+    static final int CERTIFICATE_FIELD = 3;
+    static final int TIME_FIELD = 4;
+    static final int CERTIFICATE_DIGEST_FIELD = 5;
+
+    private final byte[] buffer;
+    private final int payloadOffset;
+    private final int payloadLength;
+    private final byte[] signature;
+    private final int signatureOffset;
+    private final int signatureLength;
+    private final String certificate;
+    private final String certificateDigest;
+    private final String time;
+    private CertificateCache.CachedCertificate cachedCertificate;
+
+    private SignedEnvelope(byte[] buffer, int payloadOffset, int payloadLength, byte[] signature,
+                           int signatureOffset, int signatureLength, String certificate, String certificateDigest,
+                           String time) {
+        this.buffer = buffer;
+        this.payloadOffset = payloadOffset;
+        this.payloadLength = payloadLength;
+        this.signature = signature;
+        this.signatureOffset = signatureOffset;
+        this.signatureLength = signatureLength;
+        this.certificate = certificate;
+        this.certificateDigest = certificateDigest;
+        this.time = time;
+    }
+
+    /**
+     * Signs the payload with the private key and wraps it in an envelope.
+     *
+     * @param payload     the encoded inner message
+     * @param privateKey  the private key to sign with
+     * @param certificate the certificate of the signer
+     * @param peer        the address the envelope is sent to
+     * @param time        the time the query was sent
+     * @return <code>SignedEnvelope</code> the signed envelope
+     * @throws Exception if the payload could not be signed
+     */
+    public static SignedEnvelope sign(byte[] payload, PrivateKey privateKey, String certificate, String peer,
+                                      String time) throws Exception {
+        return sign(payload, privateKey, certificate).forPeer(peer, time);
+    }
+
+    /**
+     * Signs the payload with the private key. The envelope is not meant to be sent itself; it is kept and turned into
+     * an envelope for each receiver with {@link #forPeer(String, String)}.
+     *
+     * @param payload     the encoded inner message
+     * @param privateKey  the private key to sign with
+     * @param certificate the certificate of the signer
+     * @return <code>SignedEnvelope</code> the signed envelope without a time
+     * @throws Exception if the payload could not be signed
+     */
+    public static SignedEnvelope sign(byte[] payload, PrivateKey privateKey, String certificate) throws Exception {
+        byte[] signature = AuthenticationFunctions.sign(payload, 0, payload.length, privateKey);
+        return new SignedEnvelope(payload, 0, payload.length, signature, 0, signature.length, certificate, null,
+                null);
+    }
+
+    /**
+     * Gives an envelope with the same payload and signature for a receiver. The payload and signature are shared, not
+     * copied. The certificate is replaced by its digest if the receiver has already been sent it.
+     *
+     * @param peer the address the envelope is sent to
+     * @param time the time the query was sent
+     * @return <code>SignedEnvelope</code> the envelope to send
+     */
+    public SignedEnvelope forPeer(String peer, String time) {
+        if (CertificateCache.shouldSendCertificate(peer, certificate)) {
+            return new SignedEnvelope(buffer, payloadOffset, payloadLength, signature, signatureOffset,
+                    signatureLength, certificate, null, time);
+        }
+        return new SignedEnvelope(buffer, payloadOffset, payloadLength, signature, signatureOffset, signatureLength,
+                null, CertificateCache.digest(certificate), time);
+    }
+
+    /**
+     * Gives an envelope with the same payload for a querier that holds a session with the signer, authenticated with
+     * a MAC instead of the signature. The payload is shared, not copied.
+     *
+     * @param session the session with the querier
+     * @param time    the time the query was sent
+     * @return <code>SessionEnvelope</code> the envelope to send
+     * @throws GeneralSecurityException if the MAC cannot be calculated
+     */
+    public SessionEnvelope seal(SessionKeys.Session session, String time) throws GeneralSecurityException {
+        return SessionEnvelope.seal(session, buffer, payloadOffset, payloadLength, time);
+    }
+
+    /**
+     * Turns the envelope into bytes for sending through the network.
+     *
+     * @return <code>byte[]</code> the encoded envelope
+     * @throws IOException if a field is too long for the format
+     */
+    public byte[] encode() throws IOException {
+        byte[] certificateBytes = certificate != null
+                ? certificate.getBytes(StandardCharsets.US_ASCII)
+                : certificateDigest.getBytes(StandardCharsets.US_ASCII);
+        byte[] timeBytes = time == null ? null : time.getBytes(StandardCharsets.US_ASCII);
+        int bodyLength = 9 + payloadLength + signatureLength + certificateBytes.length;
+        if (timeBytes != null) {
+            bodyLength += 3 + timeBytes.length;
+        }
+
+        ByteBuffer byteBuffer = ByteBuffer.allocate(MessageCodec.HEADER_LENGTH + bodyLength);
+        MessageCodec.writeHeader(byteBuffer, TYPE_ENVELOPE, bodyLength);
+        writeField(byteBuffer, PAYLOAD_FIELD, buffer, payloadOffset, payloadLength);
+        writeField(byteBuffer, SIGNATURE_FIELD, signature, signatureOffset, signatureLength);
+        writeField(byteBuffer, certificate != null ? CERTIFICATE_FIELD : CERTIFICATE_DIGEST_FIELD,
+                certificateBytes, 0, certificateBytes.length);
+        if (timeBytes != null) {
+            writeField(byteBuffer, TIME_FIELD, timeBytes, 0, timeBytes.length);
+        }
+        return byteBuffer.array();
+    }
+
+    private static void writeField(ByteBuffer byteBuffer, int fieldId, byte[] value, int offset, int length)
+            throws IOException {
+        if (length > MessageCodec.MAX_FIELD_LENGTH) {
+            throw new IOException("Field " + fieldId + " is too long: " + length);
+        }
+        byteBuffer.put((byte) fieldId);
+        byteBuffer.putShort((short) length);
+        byteBuffer.put(value, offset, length);
+    }
+
+    /**
+     * Reads an envelope from received bytes. The payload is not copied and stays in the given buffer.
+     *
+     * @param buffer the received bytes
+     * @param offset where the datagram starts in the buffer
+     * @param length how many bytes were received
+     * @return <code>SignedEnvelope</code> the envelope
+     * @throws IOException if the bytes are not a valid envelope
+     */
+    public static SignedEnvelope decode(byte[] buffer, int offset, int length) throws IOException {
+        ByteBuffer byteBuffer = MessageCodec.readHeader(buffer, offset, length, TYPE_ENVELOPE);
+        int payloadOffset = -1;
+        int payloadLength = 0;
+        int signatureOffset = -1;
+        int signatureLength = 0;
+        String certificate = null;
+        String certificateDigest = null;
+        String time = null;
+        try {
+            while (byteBuffer.hasRemaining()) {
+                int fieldId = byteBuffer.get() & 0xFF;
+                int valueLength = byteBuffer.getShort() & 0xFFFF;
+                int valueOffset = byteBuffer.position();
+                if (valueLength > byteBuffer.remaining()) {
+                    throw new IOException("Truncated field");
+                }
+                switch (fieldId) {
+                    case PAYLOAD_FIELD:
+                        payloadOffset = valueOffset;
+                        payloadLength = valueLength;
+                        break;
+                    case SIGNATURE_FIELD:
+                        signatureOffset = valueOffset;
+                        signatureLength = valueLength;
+                        break;
+                    case CERTIFICATE_FIELD:
+                        certificate = new String(buffer, valueOffset, valueLength, StandardCharsets.US_ASCII);
+                        break;
+                    case CERTIFICATE_DIGEST_FIELD:
+                        certificateDigest = new String(buffer, valueOffset, valueLength, StandardCharsets.US_ASCII);
+                        break;
+                    case TIME_FIELD:
+                        time = new String(buffer, valueOffset, valueLength, StandardCharsets.US_ASCII);
+                        break;
+                    default:
+                        throw new IOException("Unknown field id: " + fieldId);
+                }
+                byteBuffer.position(valueOffset + valueLength);
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated envelope");
+        }
+        if (payloadOffset < 0 || signatureOffset < 0 || (certificate == null && certificateDigest == null)) {
+            throw new IOException("Incomplete envelope");
+        }
+        return new SignedEnvelope(buffer, payloadOffset, payloadLength, buffer, signatureOffset, signatureLength,
+                certificate, certificateDigest, time);
+    }
+
+    /**
+     * Checks the signature over the payload and the certificate of the signer. If the envelope only carries the
+     * digest of an unknown certificate it is not authenticated and the certificate is asked for in the next query.
+     *
+     * @param caLocation the location of the CA certificate
+     * @return <code>true</code> if the envelope is authenticated
+     * <code>false</code> if the envelope is not authenticated
+     * @throws Exception if the signature or certificate could not be checked
+     */
+    public boolean authenticate(String caLocation) throws Exception {
+        CertificateCache.CachedCertificate signer = resolveCertificate();
+        if (signer == null) {
+            CertificateCache.requestCertificate(certificateDigest);
+            return false;
+        }
+        return AuthenticationFunctions.authenticateMessage(buffer, payloadOffset, payloadLength,
+                signature, signatureOffset, signatureLength, signer, caLocation);
+    }
+
+    private CertificateCache.CachedCertificate resolveCertificate() throws Exception {
+        if (cachedCertificate == null) {
+            cachedCertificate = CertificateCache.resolve(certificate, certificateDigest);
+        }
+        return cachedCertificate;
+    }
+
+    /**
+     * Decodes the payload into the inner message.
+     *
+     * @return <code>Message</code> the inner message
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    public Message openPayload() throws IOException, ClassNotFoundException {
+        return CommunicationFunctions.byteArrayToMessage(buffer, payloadOffset, payloadLength);
+    }
+
+    /**
+     * Points a view at the payload without copying or decoding it.
+     *
+     * @param view the view to point at the inner message
+     * @return <code>MessageView</code> the view
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    public MessageView openPayload(MessageView view) throws IOException, ClassNotFoundException {
+        return view.wrap(buffer, payloadOffset, payloadLength);
+    }
+
+    /**
+     * Gives a copy of the raw signature.
+     *
+     * @return <code>byte[]</code> the signature
+     */
+    public byte[] getSignature() {
+        return Arrays.copyOfRange(signature, signatureOffset, signatureOffset + signatureLength);
+    }
+
+    /**
+     * Gives the certificate of the signer, looking it up in the cache if only its digest was sent.
+     *
+     * @return <code>String</code> the certificate, or <code>null</code> if the digest is unknown
+     * @throws Exception if the certificate cannot be parsed
+     */
+    public String getCertificate() throws Exception {
+        if (certificate != null) {
+            return certificate;
+        }
+        CertificateCache.CachedCertificate signer = resolveCertificate();
+        return signer == null ? null : signer.getCertificate();
+    }
+
+    public String getCertificateDigest() {
+        return certificateDigest;
+    }
+
+    public String getTime() {
+        return time;
+    }
+}
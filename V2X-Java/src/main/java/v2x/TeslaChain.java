@@ -0,0 +1,328 @@
+package v2x;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Authenticates the multicast queries of the Querier with a one-way hash chain and delayed key disclosure, as in
+ * TESLA. The chain is made backwards from a random key, <code>K(i) = SHA-256(K(i + 1))</code>, and only its anchor
+ * <code>K(0)</code> is signed. Time is split into intervals; a query sent in interval <code>i</code> carries a MAC
+ * with a key derived from <code>K(i)</code>, and <code>K(i)</code> itself is multicast {@link #DISCLOSURE_DELAY}
+ * intervals later. A responder accepts a query only if it arrives before its key can have been disclosed, keeps it
+ * until the key comes and checks the key against the signed anchor by hashing, see {@link TeslaVerifier}.
+ *
+ * Enabled with <code>-Dv2x.tesla=true</code>. Answers are delayed by up to <code>(delay + 1) * interval</code>.
+ *
+ * <pre>
+ * TeslaAnchor:     start time, interval, delay, length, K(0) in base64, separated by commas
+ * TeslaAnchorHash: signature over the anchor
+ * TeslaMac:        interval:MAC over the query
+ * TeslaKey:        interval:K(interval), the last disclosed key
+ * TeslaChain:      id of the chain, in key disclosures only
+ * </pre>
+ */
+public class TeslaChain {
+    static final boolean TESLA_MODE = Boolean.getBoolean("v2x.tesla");
+    static final int INTERVAL = Integer.getInteger("v2x.tesla.interval", 10);
+    static final int DISCLOSURE_DELAY = Integer.getInteger("v2x.tesla.delay", 5);
+    static final int CHAIN_LENGTH = 1 << 16;
+    static final int CHAIN_ID_LENGTH = 9;
+    static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final byte[] MAC_KEY_LABEL = "v2x-tesla".getBytes(StandardCharsets.US_ASCII);
+
+    private static final ScheduledExecutorService discloser = Executors.newSingleThreadScheduledExecutor(
+            runnable -> {
+                Thread thread = new Thread(runnable, "tesla-discloser");
+                thread.setDaemon(true);
+                return thread;
+            });
+    private static TeslaChain current;
+
+    private final byte[][] keys;
+    private final long startTime;
+    private final String anchor;
+    private final String id;
+    private final String certificate;
+    private final String signature;
+    private int lastScheduled;
+    private volatile int lastDisclosed;
+
+    private TeslaChain(String certificate, PrivateKey privateKey) throws GeneralSecurityException {
+        keys = new byte[CHAIN_LENGTH][];
+        keys[CHAIN_LENGTH - 1] = new byte[32];
+        new SecureRandom().nextBytes(keys[CHAIN_LENGTH - 1]);
+        for (int i = CHAIN_LENGTH - 2; i >= 0; i--) {
+            keys[i] = AuthenticationFunctions.hash(keys[i + 1], 0, keys[i + 1].length);
+        }
+        // the anchor itself is public, so the first query falls into interval 1
+        this.startTime = System.currentTimeMillis() - INTERVAL;
+        this.anchor = startTime + "," + INTERVAL + "," + DISCLOSURE_DELAY + "," + CHAIN_LENGTH + ","
+                + Base64.getEncoder().encodeToString(keys[0]);
+        this.id = chainId(anchor);
+        this.certificate = certificate;
+        this.signature = AuthenticationFunctions.signMessage(anchor, privateKey);
+    }
+
+    /**
+     * Gives the id of a chain, the start of the SHA-256 digest of its anchor.
+     *
+     * @param anchor the anchor of the chain as sent in <code>TeslaAnchor</code>
+     * @return <code>String</code> the id of the chain
+     */
+    static String chainId(String anchor) {
+        try {
+            byte[] bytes = anchor.getBytes(StandardCharsets.US_ASCII);
+            return Base64.getEncoder().encodeToString(Arrays.copyOf(
+                    AuthenticationFunctions.hash(bytes, 0, bytes.length), CHAIN_ID_LENGTH));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Calculates the MAC of a query with the key of an interval. The MAC key is derived from the chain key, so the
+     * disclosed chain key is never used as a MAC key itself.
+     *
+     * @param chainKey the key of the chain for the interval
+     * @param query    the query
+     * @return <code>byte[]</code> the MAC
+     * @throws GeneralSecurityException
+     */
+    static byte[] mac(byte[] chainKey, byte[] query) throws GeneralSecurityException {
+        Mac mac = AuthenticationFunctions.MACS.acquire(MAC_ALGORITHM);
+        mac.init(new SecretKeySpec(chainKey, MAC_ALGORITHM));
+        byte[] macKey = mac.doFinal(MAC_KEY_LABEL);
+        mac.init(new SecretKeySpec(macKey, MAC_ALGORITHM));
+        byte[] result = mac.doFinal(query);
+        AuthenticationFunctions.MACS.release(MAC_ALGORITHM, mac);
+        return result;
+    }
+
+    /**
+     * Gives the bytes of a query that its MAC covers: the query, its time and, if there is one, its test number.
+     *
+     * @param query     the query
+     * @param time      the time the query was sent
+     * @param reference the test number of the query, or <code>null</code>
+     * @return <code>byte[]</code> the bytes to calculate the MAC over
+     */
+    static byte[] macInput(String query, String time, String reference) {
+        String input = query + '\n' + time + '\n' + (reference == null ? "" : reference);
+        return input.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static synchronized TeslaChain current(String certificate, PrivateKey privateKey)
+            throws GeneralSecurityException {
+        if (current == null || !current.certificate.equals(certificate)
+                || current.interval(System.currentTimeMillis()) + DISCLOSURE_DELAY >= CHAIN_LENGTH) {
+            current = new TeslaChain(certificate, privateKey);
+        }
+        return current;
+    }
+
+    private int interval(long time) {
+        return (int) ((time - startTime) / INTERVAL);
+    }
+
+    /**
+     * Makes the chain and signs its anchor before the first query, and runs a query through {@link #attach} and
+     * encoding once, so the first real query is not late. Does nothing unless <code>-Dv2x.tesla=true</code> is set.
+     * If the chain cannot be made here, the first query tries again.
+     *
+     * @param certificate a base64 string representation of the own certificate
+     * @param privateKey  the own private key
+     */
+    public static void prepare(String certificate, PrivateKey privateKey) {
+        if (!TESLA_MODE) {
+            return;
+        }
+        try {
+            Message query = new Message();
+            query.putValue("Query", "Query");
+            query.putValue("Time", String.valueOf(System.currentTimeMillis()));
+            attach(query, certificate, privateKey);
+            CommunicationFunctions.messageToByteArray(query);
+        } catch (GeneralSecurityException | IOException e) {
+            System.out.println("could not prepare the key chain");
+        }
+    }
+
+    /**
+     * Authenticates a query with the key of the current interval instead of a signature and schedules the
+     * disclosure of the key. Does nothing unless <code>-Dv2x.tesla=true</code> is set. Call this once the query, its
+     * time and its test number are set.
+     *
+     * @param query       the query to be sent
+     * @param certificate a base64 string representation of the own certificate
+     * @param privateKey  the own private key, only used to sign a new anchor
+     * @throws GeneralSecurityException if a new chain cannot be made
+     */
+    public static void attach(Message query, String certificate, PrivateKey privateKey)
+            throws GeneralSecurityException {
+        if (!TESLA_MODE) {
+            return;
+        }
+        TeslaChain chain = current(certificate, privateKey);
+        int interval = chain.interval(System.currentTimeMillis());
+        byte[] mac = mac(chain.keys[interval],
+                macInput(query.getValue("Query"), query.getValue("Time"), query.getValue("TestNumber")));
+        query.putValue("TeslaAnchor", chain.anchor);
+        query.putValue("TeslaAnchorHash", chain.signature);
+        query.putValue("TeslaMac", interval + ":" + Base64.getEncoder().encodeToString(mac));
+        int disclosed = chain.lastDisclosed;
+        if (disclosed > 0) {
+            query.putValue("TeslaKey", disclosed + ":" + Base64.getEncoder().encodeToString(chain.keys[disclosed]));
+        }
+        chain.scheduleDisclosure(interval);
+    }
+
+    private synchronized void scheduleDisclosure(int interval) {
+        if (interval <= lastScheduled) {
+            return;
+        }
+        lastScheduled = interval;
+        long delay = startTime + (long) (interval + DISCLOSURE_DELAY) * INTERVAL - System.currentTimeMillis();
+        discloser.schedule(() -> disclose(interval), Math.max(0, delay), TimeUnit.MILLISECONDS);
+    }
+
+    private void disclose(int interval) {
+        Message disclosure = new Message();
+        disclosure.putValue("TeslaChain", id);
+        disclosure.putValue("TeslaKey", interval + ":" + Base64.getEncoder().encodeToString(keys[interval]));
+        try {
+            byte[] data = CommunicationFunctions.messageToByteArray(disclosure);
+            DatagramSocket socket = new DatagramSocket();
+            socket.send(new DatagramPacket(data, data.length, InetAddress.getByName(CertificateCache.MULTICAST_PEER),
+                    Querier.MULTICAST_PORT));
+            socket.close();
+            lastDisclosed = Math.max(lastDisclosed, interval);
+        } catch (IOException e) {
+            System.out.println("could not disclose key " + interval);
+        }
+    }
+
+    /**
+     * Authenticates queries with a chain and checks them the way a responder does, then compares a signature check
+     * with a chain key check and a MAC.
+     */
+    public static void main(String[] args) {
+        try {
+            if (!TESLA_MODE) {
+                System.out.println("run with -Dv2x.tesla=true");
+                return;
+            }
+            String certificate = CredentialStore.getCertificate(Querier.OWN_CERTIFICATE_LOCATION);
+            PrivateKey privateKey = CredentialStore.getPrivateKey(Querier.OWN_PRIVATE_KEY_LOCATION);
+            CertificateCache.CachedCertificate sender = CertificateCache.resolve(certificate, null);
+            TeslaVerifier verifier = new TeslaVerifier(Querier.CA_CERTIFICATE_LOCATION);
+            InetAddress address = InetAddress.getLoopbackAddress();
+
+            // the first chain, encoding and anchor check take longer than the intervals a query may be late
+            for (int round = 0; round < 2; round++) {
+                Message query = new Message();
+                query.putValue("Query", "Query");
+                query.putValue("Time", String.valueOf(System.currentTimeMillis()));
+                query.putValue("TestNumber", "1");
+                attach(query, certificate, privateKey);
+                byte[] encoded = MessageCodec.encode(query);
+                new TeslaVerifier(Querier.CA_CERTIFICATE_LOCATION).accept(
+                        new MessageView().wrap(encoded, 0, encoded.length), sender, address);
+            }
+
+            Message query = new Message();
+            query.putValue("Query", "Query");
+            query.putValue("Time", String.valueOf(System.currentTimeMillis()));
+            query.putValue("TestNumber", "1");
+            attach(query, certificate, privateKey);
+            byte[] encoded = MessageCodec.encode(query);
+            MessageView view = new MessageView().wrap(encoded, 0, encoded.length);
+            System.out.println("Expected: " + TeslaVerifier.PENDING + " Actual: "
+                    + verifier.accept(view, sender, address));
+
+            TeslaChain chain = current;
+            String[] mac = query.getValue("TeslaMac").split(":");
+            int interval = Integer.parseInt(mac[0]);
+            Message forged = new Message();
+            forged.putValue("TeslaChain", chain.id);
+            forged.putValue("TeslaKey", interval + ":" + Base64.getEncoder().encodeToString(new byte[32]));
+            encoded = MessageCodec.encode(forged);
+            System.out.println("Expected: " + 0 + " Actual: "
+                    + verifier.release(view.wrap(encoded, 0, encoded.length)).size());
+
+            Message early = new Message();
+            early.putValue("TeslaChain", chain.id);
+            early.putValue("TeslaKey", (CHAIN_LENGTH - 1) + ":" + Base64.getEncoder().encodeToString(
+                    chain.keys[CHAIN_LENGTH - 1]));
+            encoded = MessageCodec.encode(early);
+            System.out.println("Expected: " + 0 + " Actual: "
+                    + verifier.release(view.wrap(encoded, 0, encoded.length)).size());
+
+            Message future = new Message();
+            future.putValue("Query", "Query");
+            future.putValue("Time", String.valueOf(System.currentTimeMillis()));
+            future.putValue("TestNumber", "1");
+            attach(future, certificate, privateKey);
+            future.putValue("TeslaMac", (CHAIN_LENGTH - 1) + ":" + mac[1]);
+            encoded = MessageCodec.encode(future);
+            System.out.println("Expected: " + TeslaVerifier.REJECTED + " Actual: " + verifier.hold(
+                    view.wrap(encoded, 0, encoded.length), address, System.currentTimeMillis()));
+
+            Thread.sleep((DISCLOSURE_DELAY + 1) * INTERVAL + 20);
+            Message disclosure = new Message();
+            disclosure.putValue("TeslaChain", chain.id);
+            disclosure.putValue("TeslaKey", interval + ":" + Base64.getEncoder().encodeToString(
+                    chain.keys[interval]));
+            encoded = MessageCodec.encode(disclosure);
+            List<TeslaVerifier.PendingQuery> released = verifier.release(
+                    view.wrap(encoded, 0, encoded.length));
+            System.out.println("Expected: " + 1 + " Actual: " + released.size());
+            System.out.println("Expected: " + "1" + " Actual: " + released.get(0).getTestNumber());
+
+            encoded = MessageCodec.encode(query);
+            System.out.println("Expected: " + TeslaVerifier.REJECTED + " Actual: "
+                    + verifier.accept(view.wrap(encoded, 0, encoded.length), sender, address));
+
+            byte[] request = "Query".getBytes(StandardCharsets.UTF_8);
+            byte[] signature = AuthenticationFunctions.sign(request, 0, request.length, privateKey);
+            byte[] input = macInput("Query", "1", "1");
+            int iterations = 2000;
+            long signatureTime = 0;
+            long chainTime = 0;
+            for (int round = 0; round < 2; round++) {
+                long start = System.nanoTime();
+                for (int i = 0; i < iterations; i++) {
+                    AuthenticationFunctions.authenticateMessage(request, 0, request.length, signature, 0,
+                            signature.length, sender, Querier.CA_CERTIFICATE_LOCATION);
+                }
+                signatureTime = System.nanoTime() - start;
+                start = System.nanoTime();
+                for (int i = 0; i < iterations; i++) {
+                    byte[] key = chain.keys[interval + 1 + DISCLOSURE_DELAY];
+                    for (int j = 0; j < DISCLOSURE_DELAY + 1; j++) {
+                        key = AuthenticationFunctions.hash(key, 0, key.length);
+                    }
+                    mac(key, input);
+                }
+                chainTime = System.nanoTime() - start;
+            }
+            System.out.println("check query signed: " + signatureTime / iterations / 1000 + " us, with the chain: "
+                    + chainTime / iterations / 1000 + " us");
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,296 @@
+package v2x;
+
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Checks multicast queries that are authenticated with a {@link TeslaChain}. The anchor of a chain is checked once
+ * against the certificate of the Querier and the CA; after that a query costs a few hashes and a MAC. A query is
+ * only accepted if it arrives before the key of its interval can have been disclosed, and it is held until the key
+ * is disclosed. Used by one responder thread, so it is not thread safe.
+ */
+public class TeslaVerifier {
+    static final int NOT_TESLA = 0;
+    static final int PENDING = 1;
+    static final int REJECTED = 2;
+    static final int CLOCK_OFFSET = Integer.getInteger("v2x.tesla.clockOffset", 2);
+    static final int MAX_CHAINS = 16;
+    static final int MAX_PENDING = 256;
+    static final int PENDING_TIMEOUT = 2000;
+    static final int MAX_CHAIN_LENGTH = 1 << 20;
+
+    private final String caLocation;
+    private final Map<String, Chain> chains = new LinkedHashMap<String, Chain>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Chain> eldest) {
+            return size() > MAX_CHAINS;
+        }
+    };
+    private final List<PendingQuery> pending = new ArrayList<>();
+
+    private static class Chain {
+        private final String certificateDigest;
+        private final long startTime;
+        private final int interval;
+        private final int delay;
+        private final int length;
+        private int knownIndex;
+        private byte[] knownKey;
+
+        Chain(String certificateDigest, long startTime, int interval, int delay, int length, byte[] anchor) {
+            this.certificateDigest = certificateDigest;
+            this.startTime = startTime;
+            this.interval = interval;
+            this.delay = delay;
+            this.length = length;
+            this.knownKey = anchor;
+        }
+
+        long interval(long time) {
+            return Math.floorDiv(time - startTime, interval);
+        }
+    }
+
+    /**
+     * A query that waits for the key of its interval.
+     */
+    public static class PendingQuery {
+        private final Chain chain;
+        private final int interval;
+        private final byte[] mac;
+        private final byte[] input;
+        private final InetAddress address;
+        private final String time;
+        private final String testNumber;
+        private final long received;
+
+        PendingQuery(Chain chain, int interval, byte[] mac, byte[] input, InetAddress address, String time,
+                     String testNumber, long received) {
+            this.chain = chain;
+            this.interval = interval;
+            this.mac = mac;
+            this.input = input;
+            this.address = address;
+            this.time = time;
+            this.testNumber = testNumber;
+            this.received = received;
+        }
+
+        public InetAddress getAddress() {
+            return address;
+        }
+
+        public String getTime() {
+            return time;
+        }
+
+        public String getTestNumber() {
+            return testNumber;
+        }
+    }
+
+    /**
+     * @param caLocation the location of the CA certificate
+     */
+    public TeslaVerifier(String caLocation) {
+        this.caLocation = caLocation;
+    }
+
+    /**
+     * Checks if a query is authenticated with a chain.
+     *
+     * @param query the received query
+     * @return <code>true</code> if the query carries a chain anchor
+     * <code>false</code> if it does not
+     */
+    public static boolean isTesla(MessageView query) {
+        return query.getValue("TeslaAnchor") != null;
+    }
+
+    /**
+     * Checks the anchor of the chain of a query against the certificate of the sender and the CA, once per chain.
+     *
+     * @param query  the received query
+     * @param sender the certificate of the sender, or <code>null</code> if it is not known
+     * @return <code>true</code> if the anchor is signed by the sender and the certificate is signed by the CA
+     * <code>false</code> if it is not
+     * @throws Exception if the signature or certificate could not be checked
+     */
+    public boolean verifyAnchor(MessageView query, CertificateCache.CachedCertificate sender) throws Exception {
+        return sender != null && chain(query, sender) != null;
+    }
+
+    private Chain chain(MessageView query, CertificateCache.CachedCertificate sender) throws Exception {
+        String anchor = query.getValue("TeslaAnchor");
+        if (anchor == null) {
+            return null;
+        }
+        String id = TeslaChain.chainId(anchor);
+        Chain chain = chains.get(id);
+        if (chain != null && chain.certificateDigest.equals(sender.getDigest())) {
+            return chain;
+        }
+        byte[] anchorBytes = anchor.getBytes(StandardCharsets.US_ASCII);
+        byte[] signature = query.getBase64Value("TeslaAnchorHash");
+        if (signature == null || !AuthenticationFunctions.authenticateMessage(anchorBytes, 0, anchorBytes.length,
+                signature, 0, signature.length, sender, caLocation)) {
+            return null;
+        }
+        String[] fields = anchor.split(",");
+        if (fields.length != 5) {
+            return null;
+        }
+        try {
+            long startTime = Long.parseLong(fields[0]);
+            int interval = Integer.parseInt(fields[1]);
+            int delay = Integer.parseInt(fields[2]);
+            int length = Integer.parseInt(fields[3]);
+            byte[] key = Base64.getDecoder().decode(fields[4]);
+            if (interval <= 0 || delay <= 0 || length <= 1 || length > MAX_CHAIN_LENGTH) {
+                return null;
+            }
+            chain = new Chain(sender.getDigest(), startTime, interval, delay, length, key);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        chains.put(id, chain);
+        return chain;
+    }
+
+    /**
+     * Holds a query until the key of its interval is disclosed. The anchor must have been checked with
+     * {@link #verifyAnchor(MessageView, CertificateCache.CachedCertificate)}. A query that arrives when its key may
+     * already be disclosed is rejected, since anybody could have made its MAC by then, and so is a query for an
+     * interval that has not started yet.
+     *
+     * @param query    the received query
+     * @param address  the address of the sender
+     * @param received the time the query was received
+     * @return <code>int</code> {@link #PENDING} or {@link #REJECTED}
+     */
+    public int hold(MessageView query, InetAddress address, long received) {
+        String anchor = query.getValue("TeslaAnchor");
+        String macValue = query.getValue("TeslaMac");
+        Chain chain = anchor == null ? null : chains.get(TeslaChain.chainId(anchor));
+        dropExpired(received);
+        if (chain == null || macValue == null || pending.size() >= MAX_PENDING) {
+            return REJECTED;
+        }
+        int separator = macValue.indexOf(':');
+        int interval;
+        byte[] mac;
+        try {
+            interval = Integer.parseInt(macValue.substring(0, separator));
+            mac = Base64.getDecoder().decode(macValue.substring(separator + 1));
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            return REJECTED;
+        }
+        long disclosureTime = chain.startTime + (long) (interval + chain.delay) * chain.interval;
+        if (interval <= chain.knownIndex || interval >= chain.length
+                || interval > chain.interval(received + CLOCK_OFFSET) || received + CLOCK_OFFSET >= disclosureTime) {
+            return REJECTED;
+        }
+        String time = query.getValue("Time");
+        String testNumber = query.getValue("TestNumber");
+        pending.add(new PendingQuery(chain, interval, mac,
+                TeslaChain.macInput(query.getValue("Query"), time, testNumber), address, time, testNumber, received));
+        return PENDING;
+    }
+
+    /**
+     * Checks a query and holds it until its key is disclosed.
+     *
+     * @param query   the received query
+     * @param sender  the certificate of the sender, or <code>null</code> if it is not known
+     * @param address the address of the sender
+     * @return <code>int</code> {@link #NOT_TESLA}, {@link #PENDING} or {@link #REJECTED}
+     * @throws Exception if the anchor could not be checked
+     */
+    public int accept(MessageView query, CertificateCache.CachedCertificate sender, InetAddress address)
+            throws Exception {
+        if (!isTesla(query)) {
+            return NOT_TESLA;
+        }
+        long received = System.currentTimeMillis();
+        return verifyAnchor(query, sender) ? hold(query, address, received) : REJECTED;
+    }
+
+    /**
+     * Takes a disclosed key from a key disclosure or a query, checks it against the chain and gives the held queries
+     * it authenticates. Held queries whose key did not come in time are dropped.
+     *
+     * @param message the received message
+     * @return <code>List</code> the queries that are now authenticated
+     * @throws GeneralSecurityException if the key could not be checked
+     */
+    public List<PendingQuery> release(MessageView message) throws GeneralSecurityException {
+        String keyValue = message.getValue("TeslaKey");
+        if (keyValue == null) {
+            return Collections.emptyList();
+        }
+        String id = message.getValue("TeslaChain");
+        if (id == null) {
+            String anchor = message.getValue("TeslaAnchor");
+            id = anchor == null ? null : TeslaChain.chainId(anchor);
+        }
+        Chain chain = id == null ? null : chains.get(id);
+        if (chain == null) {
+            return Collections.emptyList();
+        }
+        int separator = keyValue.indexOf(':');
+        int index;
+        byte[] key;
+        try {
+            index = Integer.parseInt(keyValue.substring(0, separator));
+            key = Base64.getDecoder().decode(keyValue.substring(separator + 1));
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            return Collections.emptyList();
+        }
+        long now = System.currentTimeMillis();
+        // a key is disclosed delay intervals after its own, so a later index is forged and not worth hashing
+        if (index <= chain.knownIndex || index >= chain.length
+                || index > chain.interval(now + CLOCK_OFFSET) - chain.delay) {
+            return Collections.emptyList();
+        }
+        byte[] hashed = key;
+        for (int i = index; i > chain.knownIndex; i--) {
+            hashed = AuthenticationFunctions.hash(hashed, 0, hashed.length);
+        }
+        if (!MessageDigest.isEqual(hashed, chain.knownKey)) {
+            return Collections.emptyList();
+        }
+        chain.knownIndex = index;
+        chain.knownKey = key;
+
+        List<PendingQuery> released = new ArrayList<>();
+        dropExpired(now);
+        Iterator<PendingQuery> iterator = pending.iterator();
+        while (iterator.hasNext()) {
+            PendingQuery query = iterator.next();
+            if (query.chain == chain && query.interval <= index) {
+                byte[] intervalKey = key;
+                for (int i = index; i > query.interval; i--) {
+                    intervalKey = AuthenticationFunctions.hash(intervalKey, 0, intervalKey.length);
+                }
+                if (MessageDigest.isEqual(query.mac, TeslaChain.mac(intervalKey, query.input))) {
+                    released.add(query);
+                }
+                iterator.remove();
+            }
+        }
+        return released;
+    }
+
+    private void dropExpired(long now) {
+        pending.removeIf(query -> now - query.received > PENDING_TIMEOUT);
+    }
+}
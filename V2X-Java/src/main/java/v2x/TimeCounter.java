@@ -5,6 +5,8 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 
@@ -12,6 +14,8 @@ public class TimeCounter {
     private long sumTimeToQueryResolve;
     private long sumTimeToSendQuery;
     private long sumTimeToProcessResponse;
+    private long sumAllocationToProcessResponse;
+    private int numAllocationAdded;
     private static final String LOG_FILE_NAME = "v2x-time-log";
     private static final String LOG_FILE_EXTENSION = ".txt";
     private int testNumber;
@@ -55,32 +59,52 @@ public class TimeCounter {
         this.sumTimeToProcessResponse = 0;
     }
 
-    public void addTimeToQueryResolve(long time) {
+    public synchronized void addTimeToQueryResolve(long time) {
         if (num1Added++ == 0) theFirstimeToQueryResolve = time;
         sumTimeToQueryResolve += time;
     }
 
-    public void addTimeToSendQuery(long time) {
+    public synchronized void addTimeToSendQuery(long time) {
         if (num2Added++ == 0) theFirstTimeToSendQuery = time;
         sumTimeToSendQuery += time;
     }
 
-    public void addTimeToProcessResponse(long time) {
+    public synchronized void addTimeToProcessResponse(long time) {
         if (num3Added++ == 0) theFirstTimeToProcessResponse = time;
         sumTimeToProcessResponse += time;
     }
 
-    public void addTimeToRawTQRData(long time) {
+    public synchronized void addAllocationToProcessResponse(long allocatedBytes) {
+        if (allocatedBytes < 0) return;
+        numAllocationAdded++;
+        sumAllocationToProcessResponse += allocatedBytes;
+    }
+
+    /**
+     * Gives the bytes allocated so far by the current thread, or -1 if the JVM does not measure it.
+     *
+     * @return <code>long</code> the allocated bytes of the current thread
+     */
+    public static long getAllocatedBytes() {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threadMXBean)
+                    .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    public synchronized void addTimeToRawTQRData(long time) {
         this.rawTQRDataArray[this.counterRawTQRDataArray] = time;
         this.counterRawTQRDataArray++;
     }
 
-    public void addTimeToRawTSQData(long time) {
+    public synchronized void addTimeToRawTSQData(long time) {
         this.rawTSQDataArray[this.counterRawTSQDataArray] = time;
         this.counterRawTSQDataArray++;
     }
 
-    public void addTimeToRawTPRData(long time) {
+    public synchronized void addTimeToRawTPRData(long time) {
         this.rawTPRDataArray[this.counterRawTPRDataArray] = time;
         this.counterRawTPRDataArray++;
     }
@@ -97,6 +121,10 @@ public class TimeCounter {
         return (double) sumTimeToProcessResponse / (double) testAmount;
     }
 
+    public double getAverageAllocationToProcessResponse() {
+        return numAllocationAdded == 0 ? 0 : (double) sumAllocationToProcessResponse / (double) numAllocationAdded;
+    }
+
     public double getBiasedPercentage1() {
         return (double) (sumTimeToQueryResolve - theFirstimeToQueryResolve) / (double) testAmount;
     }
@@ -131,6 +159,7 @@ public class TimeCounter {
         jo.put("NOT_AVG_TSQ", biasedAverage2);
         jo.put("ALL_AVG_TPR", average3);
         jo.put("NOT_AVG_TPR", biasedAverage3);
+        jo.put("ALL_AVG_TPR_ALLOCATION", getAverageAllocationToProcessResponse());
 
 //        JSONArray jsonArrayRawTQRDataArray = new JSONArray(this.rawTQRDataArray);
 //        JSONArray jsonArrayRawTSQDataArray = new JSONArray(this.rawTSQDataArray);
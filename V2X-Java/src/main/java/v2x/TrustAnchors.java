@@ -0,0 +1,212 @@
+package v2x;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.security.PublicKey;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Pins the certificates of authorities whose signatures are trusted, like the DNS server. A pinned certificate is
+ * loaded, checked against its issuer and checked for revocation once; after that its public key is given from memory
+ * until the certificate or the issuer certificate changes on disk, or the CRL changes. An issuer may be pinned
+ * itself, e.g. an intermediate, and then has to stay valid for the certificates it issued.
+ */
+public class TrustAnchors {
+    private static final Map<String, Anchor> anchors = new ConcurrentHashMap<>();
+    private static long validations = 0;
+
+    private static class Anchor {
+        private final String certificateLocation;
+        private final String issuerLocation;
+        private final String crlLocation;
+        private final String certificate;
+        private final PublicKey publicKey;
+        private final long notAfter;
+        private final long certificateVersion;
+        private final long issuerVersion;
+        private final long crlVersion;
+        private final boolean revoked;
+
+        Anchor(String certificateLocation, String issuerLocation, String crlLocation, String certificate,
+               PublicKey publicKey, long notAfter, long certificateVersion, long issuerVersion, long crlVersion,
+               boolean revoked) {
+            this.certificateLocation = certificateLocation;
+            this.issuerLocation = issuerLocation;
+            this.crlLocation = crlLocation;
+            this.certificate = certificate;
+            this.publicKey = publicKey;
+            this.notAfter = notAfter;
+            this.certificateVersion = certificateVersion;
+            this.issuerVersion = issuerVersion;
+            this.crlVersion = crlVersion;
+            this.revoked = revoked;
+        }
+
+        Anchor withRevocation(long crlVersion, boolean revoked) {
+            return new Anchor(certificateLocation, issuerLocation, crlLocation, certificate, publicKey, notAfter,
+                    certificateVersion, issuerVersion, crlVersion, revoked);
+        }
+    }
+
+    /**
+     * Loads a certificate, checks it against its issuer and the CRL and pins the result.
+     *
+     * @param certificateLocation the location of the certificate
+     * @param issuerLocation      the location of the certificate that signed it, e.g. the CA certificate
+     * @param crlLocation         the location of the CRL
+     * @return <code>true</code> if the certificate is valid and not revoked
+     * <code>false</code> if it is not
+     * @throws IOException
+     * @throws CertificateException
+     */
+    public static boolean pin(String certificateLocation, String issuerLocation, String crlLocation)
+            throws IOException, CertificateException {
+        Anchor anchor = validate(certificateLocation, issuerLocation, crlLocation);
+        anchors.put(certificateLocation, anchor);
+        return anchor.publicKey != null && !anchor.revoked;
+    }
+
+    /**
+     * Gives the public key of a pinned certificate. The certificate is only checked again if a file it depends on
+     * changed since it was pinned.
+     *
+     * @param certificateLocation the location of the certificate
+     * @return <code>PublicKey</code> the public key, or <code>null</code> if the certificate is not pinned, not valid
+     * or revoked
+     * @throws IOException
+     * @throws CertificateException
+     */
+    public static PublicKey getPublicKey(String certificateLocation) throws IOException, CertificateException {
+        Anchor anchor = anchors.get(certificateLocation);
+        if (anchor == null) {
+            return null;
+        }
+        anchor = current(anchor);
+        return anchor.revoked ? null : anchor.publicKey;
+    }
+
+    /**
+     * Gives a pinned certificate.
+     *
+     * @param certificateLocation the location of the certificate
+     * @return <code>String</code> a base64 string representation of the certificate, or <code>null</code> if it is
+     * not pinned
+     * @throws IOException
+     * @throws CertificateException
+     */
+    public static String getCertificate(String certificateLocation) throws IOException, CertificateException {
+        Anchor anchor = anchors.get(certificateLocation);
+        return anchor == null ? null : current(anchor).certificate;
+    }
+
+    /**
+     * Marks pinned certificates as revoked right away, before the change of the CRL is seen on disk.
+     *
+     * @param certificate a base64 string representation of the revoked certificate
+     */
+    static void revoke(String certificate) {
+        anchors.replaceAll((location, anchor) -> anchor.certificate.equals(certificate)
+                ? anchor.withRevocation(anchor.crlVersion, true) : anchor);
+    }
+
+    /**
+     * Gives how often a pinned certificate was checked against its issuer.
+     *
+     * @return <code>long</code> the number of checks
+     */
+    public static synchronized long getValidations() {
+        return validations;
+    }
+
+    private static Anchor current(Anchor anchor) throws IOException, CertificateException {
+        if (CredentialStore.getVersion(anchor.certificateLocation) != anchor.certificateVersion
+                || CredentialStore.getVersion(anchor.issuerLocation) != anchor.issuerVersion
+                || System.currentTimeMillis() >= anchor.notAfter
+                || (anchors.containsKey(anchor.issuerLocation) && getPublicKey(anchor.issuerLocation) == null)) {
+            anchor = validate(anchor.certificateLocation, anchor.issuerLocation, anchor.crlLocation);
+            anchors.put(anchor.certificateLocation, anchor);
+        } else if (CredentialStore.getVersion(anchor.crlLocation) != anchor.crlVersion) {
+            long crlVersion = CredentialStore.getVersion(anchor.crlLocation);
+            anchor = anchor.withRevocation(crlVersion,
+                    AuthenticationFunctions.checkRevocatedCertificate(anchor.certificate, anchor.crlLocation));
+            anchors.put(anchor.certificateLocation, anchor);
+        }
+        return anchor;
+    }
+
+    private static Anchor validate(String certificateLocation, String issuerLocation, String crlLocation)
+            throws IOException, CertificateException {
+        synchronized (TrustAnchors.class) {
+            validations++;
+        }
+        long certificateVersion = CredentialStore.getVersion(certificateLocation);
+        long issuerVersion = CredentialStore.getVersion(issuerLocation);
+        long crlVersion = CredentialStore.getVersion(crlLocation);
+        String certificate = CredentialStore.getCertificate(certificateLocation);
+        X509Certificate x509Certificate = CredentialStore.getX509Certificate(certificateLocation);
+        boolean issuerValid = !anchors.containsKey(issuerLocation) || getPublicKey(issuerLocation) != null;
+        PublicKey publicKey = null;
+        long notAfter = Long.MAX_VALUE;
+        if (issuerValid && AuthenticationFunctions.verifyCertificate(x509Certificate, issuerLocation)) {
+            publicKey = x509Certificate.getPublicKey();
+            notAfter = x509Certificate.getNotAfter().getTime();
+        }
+        boolean revoked = AuthenticationFunctions.checkRevocatedCertificate(certificate, crlLocation);
+        return new Anchor(certificateLocation, issuerLocation, crlLocation, certificate, publicKey, notAfter,
+                certificateVersion, issuerVersion, crlVersion, revoked);
+    }
+
+    /**
+     * Pins the DNS certificate, revokes it and compares getting the pinned key with checking the certificate on
+     * every answer.
+     */
+    public static void main(String[] args) {
+        try {
+            String crlLocation = System.getProperty("java.io.tmpdir") + "/v2x-trust-anchors.crl";
+            new PrintWriter(crlLocation).close();
+            String dnsLocation = Querier.DNS_CERTIFICATE_LOCATION;
+            String caLocation = Querier.CA_CERTIFICATE_LOCATION;
+            System.out.println("Expected: " + true + " Actual: " + pin(dnsLocation, caLocation, crlLocation));
+            PublicKey publicKey = getPublicKey(dnsLocation);
+            System.out.println("Expected: " + true + " Actual: " + (publicKey != null));
+
+            int iterations = 1000;
+            long pinnedTime = 0;
+            long checkedTime = 0;
+            for (int round = 0; round < 2; round++) {
+                long start = System.nanoTime();
+                for (int i = 0; i < iterations; i++) {
+                    getPublicKey(dnsLocation);
+                }
+                pinnedTime = System.nanoTime() - start;
+                start = System.nanoTime();
+                for (int i = 0; i < iterations; i++) {
+                    String certificate = AuthenticationFunctions.getCertificate(dnsLocation);
+                    AuthenticationFunctions.verifyCertificate(certificate, caLocation);
+                    AuthenticationFunctions.getPublicKey(certificate);
+                    AuthenticationFunctions.checkRevocatedCertificate(certificate, crlLocation);
+                }
+                checkedTime = System.nanoTime() - start;
+            }
+            System.out.println("Expected: " + 1 + " Actual: " + getValidations());
+
+            AuthenticationFunctions.addToCRL(CredentialStore.getCertificate(dnsLocation), crlLocation);
+            System.out.println("Expected: " + true + " Actual: " + (getPublicKey(dnsLocation) == null));
+            CRLWriter.flush(CRLWriter.FLUSH_TIMEOUT);
+            new PrintWriter(crlLocation).close();
+            long deadline = System.currentTimeMillis() + 15000;
+            while (getPublicKey(dnsLocation) == null && System.currentTimeMillis() < deadline) {
+                Thread.sleep(100);
+            }
+            System.out.println("Expected: " + true + " Actual: " + (getPublicKey(dnsLocation) != null));
+            System.out.println("Expected: " + 1 + " Actual: " + getValidations());
+            System.out.println("pinned: " + pinnedTime / iterations + " ns, checked on every answer: "
+                    + checkedTime / iterations + " ns");
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
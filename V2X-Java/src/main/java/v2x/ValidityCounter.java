@@ -42,7 +42,7 @@ public class ValidityCounter {
      *
      * @param validity a string of the answer received
      */
-    public void addValidity(String validity) {
+    public synchronized void addValidity(String validity) {
         int answerInt = Integer.parseInt(validity);
 
         switch (answerInt) {
@@ -0,0 +1,127 @@
+package v2x;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Verifies received answers off the receiving thread. A receiving thread only reads datagrams and hands them to a
+ * fixed number of workers through a bounded queue, so an answer that takes long to verify does not hold back the
+ * answers behind it. When the queue is full the receiving thread waits up to {@link #QUEUE_WAIT} ms for space and then
+ * drops the answer; dropped answers are counted by reason.
+ */
+public class VerificationPool {
+    static final int WORKERS = Integer.getInteger("v2x.verifyWorkers",
+            Math.max(2, Runtime.getRuntime().availableProcessors()));
+    static final int QUEUE_SIZE = Integer.getInteger("v2x.verifyQueue", 64);
+    static final int QUEUE_WAIT = 20;
+    static final int REPORT_INTERVAL = 100;
+    static final String QUEUE_FULL = "queue full";
+    static final String ANSWERED = "query already answered";
+
+    private static final DropCounter dropCounter = new DropCounter();
+    private static final AtomicInteger workerNumber = new AtomicInteger();
+    private static final ThreadPoolExecutor workers = new ThreadPoolExecutor(WORKERS, WORKERS, 0,
+            TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(QUEUE_SIZE), runnable -> {
+                Thread thread = new Thread(runnable, "answer-verifier-" + workerNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }, (runnable, executor) -> {
+                try {
+                    if (!executor.getQueue().offer(runnable, QUEUE_WAIT, TimeUnit.MILLISECONDS)) {
+                        throw new RejectedExecutionException(QUEUE_FULL);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RejectedExecutionException(e);
+                }
+            });
+
+    /**
+     * Hands an answer to a worker, waiting for space in the queue if it is full.
+     *
+     * @param task the verification of the answer
+     * @return <code>true</code> if the answer will be verified
+     * <code>false</code> if it was dropped
+     */
+    public static boolean submit(Runnable task) {
+        try {
+            workers.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            drop(QUEUE_FULL);
+            return false;
+        }
+    }
+
+    /**
+     * Counts an answer that was not verified. Every {@link #REPORT_INTERVAL} drops the counts are printed.
+     *
+     * @param reason why the answer was dropped
+     */
+    public static void drop(String reason) {
+        dropCounter.addDrop(reason);
+        if (dropCounter.getTotal() % REPORT_INTERVAL == 0) {
+            System.out.println("answers " + dropCounter);
+        }
+    }
+
+    /**
+     * Gives the counts of answers that were not verified.
+     *
+     * @return <code>DropCounter</code> the counts by reason
+     */
+    public static DropCounter getDropCounter() {
+        return dropCounter;
+    }
+
+    /**
+     * Submits slow and fast tasks and checks that a fast task is not held back by the slow ones, and that tasks are
+     * dropped once the queue stays full.
+     */
+    public static void main(String[] args) {
+        try {
+            long start = System.currentTimeMillis();
+            AtomicInteger done = new AtomicInteger();
+            for (int i = 0; i < WORKERS - 1; i++) {
+                submit(() -> {
+                    try {
+                        Thread.sleep(200);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                });
+            }
+            AtomicLong fastDone = new AtomicLong();
+            submit(() -> fastDone.set(System.currentTimeMillis()));
+            Thread.sleep(50);
+            System.out.println("Expected: " + true + " Actual: "
+                    + (fastDone.get() != 0 && fastDone.get() - start < 200));
+            Thread.sleep(200);
+
+            for (int i = 0; i < WORKERS; i++) {
+                submit(() -> {
+                    try {
+                        Thread.sleep(500);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    done.incrementAndGet();
+                });
+            }
+            int accepted = 0;
+            for (int i = 0; i < QUEUE_SIZE + 10; i++) {
+                if (submit(done::incrementAndGet)) {
+                    accepted++;
+                }
+            }
+            System.out.println("Expected: " + QUEUE_SIZE + " Actual: " + accepted);
+            System.out.println("Expected: " + 10 + " Actual: " + getDropCounter().getDrops(QUEUE_FULL));
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package v2x;
+
+import java.io.IOException;
+import java.security.PublicKey;
+import java.security.cert.CertificateException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the public keys of certificates that were already verified with the CA, keyed by the digest of the
+ * certificate. A key is used until the certificate expires, the CA certificate changes or the certificate is added
+ * to a CRL, so a pseudonym is only checked against the CA the first time it is seen.
+ */
+public class VerifiedKeyCache {
+    static final int CACHE_SIZE = 1024;
+
+    private static final Map<String, VerifiedKey> verifiedKeys =
+            new LinkedHashMap<String, VerifiedKey>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, VerifiedKey> eldest) {
+                    return size() > CACHE_SIZE;
+                }
+            };
+    private static long hits = 0;
+    private static long misses = 0;
+
+    private static class VerifiedKey {
+        private final PublicKey publicKey;
+        private final PublicKey caPublicKey;
+        private final long notAfter;
+
+        VerifiedKey(PublicKey publicKey, PublicKey caPublicKey, long notAfter) {
+            this.publicKey = publicKey;
+            this.caPublicKey = caPublicKey;
+            this.notAfter = notAfter;
+        }
+    }
+
+    /**
+     * Gives the public key of a certificate if the certificate is signed by the CA and valid.
+     *
+     * @param certificate the parsed certificate
+     * @param caLocation  the location of the CA certificate
+     * @return <code>PublicKey</code> the public key, or <code>null</code> if the certificate is not valid
+     * @throws CertificateException
+     * @throws IOException
+     */
+    public static PublicKey getPublicKey(CertificateCache.CachedCertificate certificate, String caLocation)
+            throws CertificateException, IOException {
+        PublicKey caPublicKey = CredentialStore.getPublicKey(caLocation);
+        String digest = certificate.getDigest();
+        synchronized (VerifiedKeyCache.class) {
+            VerifiedKey verifiedKey = verifiedKeys.get(digest);
+            if (verifiedKey != null && verifiedKey.caPublicKey == caPublicKey
+                    && System.currentTimeMillis() < verifiedKey.notAfter) {
+                hits++;
+                return verifiedKey.publicKey;
+            }
+            misses++;
+        }
+        if (!AuthenticationFunctions.verifyCertificate(certificate.getX509Certificate(), caLocation)) {
+            synchronized (VerifiedKeyCache.class) {
+                verifiedKeys.remove(digest);
+            }
+            return null;
+        }
+        PublicKey publicKey = certificate.getPublicKey();
+        long notAfter = certificate.getX509Certificate().getNotAfter().getTime();
+        synchronized (VerifiedKeyCache.class) {
+            verifiedKeys.put(digest, new VerifiedKey(publicKey, caPublicKey, notAfter));
+        }
+        return publicKey;
+    }
+
+    /**
+     * Gives the public key of a certificate if the certificate is signed by the CA and valid.
+     *
+     * @param certificate a base64 string representation of the certificate
+     * @param caLocation  the location of the CA certificate
+     * @return <code>PublicKey</code> the public key, or <code>null</code> if the certificate is not valid
+     * @throws CertificateException
+     * @throws IOException
+     */
+    public static PublicKey getPublicKey(String certificate, String caLocation)
+            throws CertificateException, IOException {
+        return getPublicKey(CertificateCache.resolve(certificate, null), caLocation);
+    }
+
+    /**
+     * Forgets a verified certificate, e.g. because it was revoked.
+     *
+     * @param certificate a base64 string representation of the certificate
+     */
+    public static void invalidate(String certificate) {
+        String digest = CertificateCache.digest(certificate);
+        synchronized (VerifiedKeyCache.class) {
+            verifiedKeys.remove(digest);
+        }
+    }
+
+    /**
+     * Gives how often a verified key was found in the cache.
+     *
+     * @return <code>long</code> the number of hits
+     */
+    public static synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Gives how often a certificate had to be verified with the CA.
+     *
+     * @return <code>long</code> the number of misses
+     */
+    public static synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Verifies the own certificate repeatedly, revokes it and compares the time of a cached and a full verification.
+     */
+    public static void main(String[] args) {
+        try {
+            String certificate = AuthenticationFunctions.getCertificate(Querier.OWN_CERTIFICATE_LOCATION);
+            String caLocation = Querier.CA_CERTIFICATE_LOCATION;
+            PublicKey publicKey = getPublicKey(certificate, caLocation);
+            System.out.println("Expected: " + true + " Actual: " + (publicKey != null));
+            System.out.println("Expected: " + true + " Actual: " + (getPublicKey(certificate, caLocation) == publicKey));
+            System.out.println("Expected: " + 1 + " Actual: " + getMisses());
+            invalidate(certificate);
+            getPublicKey(certificate, caLocation);
+            System.out.println("Expected: " + 2 + " Actual: " + getMisses());
+
+            int iterations = 1000;
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                getPublicKey(certificate, caLocation);
+            }
+            long cachedTime = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                AuthenticationFunctions.verifyCertificate(certificate, caLocation);
+            }
+            long fullTime = System.nanoTime() - start;
+            System.out.println("cached: " + cachedTime / iterations + " ns, verified with CA: "
+                    + fullTime / iterations + " ns");
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
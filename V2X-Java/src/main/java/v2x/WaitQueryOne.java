@@ -17,13 +17,17 @@ public class WaitQueryOne extends Thread{
     @Override
     public void run() {
         byte[] buffer = new byte[256];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        MessageView message = new MessageView();
+        DropCounter dropCounter = new DropCounter();
         while (true) {
             try {
-                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                packet.setLength(buffer.length);
                 serverSocket.receive(packet);
-                Message message = CommunicationFunctions.byteArrayToMessage(buffer);
-                String request = message.getValue("Query");
-                if (request.equals("Query")) {
+                if (!PacketFilter.accept(message, buffer, 0, packet.getLength(), dropCounter)) {
+                    continue;
+                }
+                if (message.valueEquals("Query", "Query")) {
                     //System.out.println("query received");
                     String inetAddress = packet.getAddress().getHostAddress();
                     String time = message.getValue("Time");
@@ -2,7 +2,6 @@ package v2x;
 
 import java.net.DatagramPacket;
 import java.net.MulticastSocket;
-import java.security.PrivateKey;
 
 import static v2x.PseudonymAuthority.CERTIFICATE_AMOUNT;
 
@@ -15,6 +14,8 @@ public class WaitQueryThree extends Thread {
     private String ownPrivateKeyLocation;
     private int rate;
     private String dnsPrivateKeylocation;
+    private PseudonymManager pseudonyms;
+    private int number;
 
     public WaitQueryThree(MulticastSocket serverSocket, int unicastPort, String answer,
                           String caCertificateLocation, String ownCertificateLocation, String ownPrivateKeyLocation,
@@ -31,38 +32,55 @@ public class WaitQueryThree extends Thread {
 
     @Override
     public void run() {
-        int counter = 0;
-        int number = 0;
+        CredentialStore.preload(caCertificateLocation, dnsPrivateKeylocation);
+        pseudonyms = new PseudonymManager(answer, ownCertificateLocation, ownPrivateKeyLocation,
+                dnsPrivateKeylocation, CERTIFICATE_AMOUNT);
+        pseudonyms.start();
         byte[] buffer = new byte[65508];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        MessageView message = new MessageView();
+        DropCounter dropCounter = new DropCounter();
+        TeslaVerifier teslaVerifier = new TeslaVerifier(caCertificateLocation);
         while (true) {
             try {
-                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                packet.setLength(buffer.length);
                 serverSocket.receive(packet);
-                Message message = CommunicationFunctions.byteArrayToMessage(buffer);
-                String request = message.getValue("Query");
-                if (request.equals("Query")) {
+                long received = System.currentTimeMillis();
+                if (!PacketFilter.accept(message, buffer, 0, packet.getLength(), dropCounter)) {
+                    continue;
+                }
+                for (TeslaVerifier.PendingQuery query : teslaVerifier.release(message)) {
+                    answerQuery(query.getAddress().getHostAddress(), query.getTime(), query.getTestNumber(), null);
+                }
+                if (message.valueEquals("Query", "Query")) {
                     //System.out.println("query received");
-                    String certificate = message.getValue("Certificate");
-                    String encryptedHash = message.getValue("Hash");
-                    if (AuthenticationFunctions.authenticateMessage(request, encryptedHash, certificate,
-                            caCertificateLocation)) {
-                        String inetAddress = packet.getAddress().getHostAddress();
-                        String time = message.getValue("Time");
-                        String givenNumber = message.getValue("TestNumber");
-                        counter = Integer.parseInt(givenNumber);
-                        ReturnQueryThree returnQueryThree =
-                                new ReturnQueryThree(inetAddress, time, unicastPort, answer,
-                                        ownCertificateLocation, ownPrivateKeyLocation, number, dnsPrivateKeylocation);
-                        returnQueryThree.start();
-                        if (number > CERTIFICATE_AMOUNT - 2) {
-                            System.out.println("certificate limit reached");
+                    CertificateCache.CachedCertificate certificate =
+                            CertificateCache.resolveSender(message, packet.getAddress(), unicastPort);
+                    String ownCertificate = CredentialStore.getCertificate(
+                            CredentialStore.pseudonymLocation(ownCertificateLocation, number));
+                    SessionKeys.Session session = SessionKeys.accept(message, null, ownCertificate);
+                    boolean authenticated = session != null;
+                    if (!authenticated && TeslaVerifier.isTesla(message)) {
+                        if (teslaVerifier.verifyAnchor(message, certificate)) {
+                            session = SessionKeys.accept(message, certificate, ownCertificate);
+                            authenticated = session != null;
+                            if (!authenticated) {
+                                teslaVerifier.hold(message, packet.getAddress(), received);
+                            }
                         }
-                        else if (counter != 0 && counter % rate == 0) {
-                            System.out.println("changing certificate");
-                            number++;
+                    } else if (!authenticated) {
+                        byte[] request = message.getBytes("Query");
+                        byte[] signature = message.getBase64Value("Hash");
+                        authenticated = certificate != null && signature != null
+                                && AuthenticationFunctions.authenticateMessage(request, 0, request.length, signature,
+                                0, signature.length, certificate, caCertificateLocation);
+                        if (authenticated) {
+                            session = SessionKeys.accept(message, certificate, ownCertificate);
                         }
-//                        System.out.println("received query: " + counter);
-//                        counter++;
+                    }
+                    if (authenticated) {
+                        answerQuery(packet.getAddress().getHostAddress(), message.getValue("Time"),
+                                message.getValue("TestNumber"), session);
                     }
                 }
         } catch (Exception e) {
@@ -70,4 +88,24 @@ public class WaitQueryThree extends Thread {
         }
     }
 }
+
+    /**
+     * Answers an authenticated query with the current pseudonym and changes pseudonym every <code>rate</code>
+     * queries.
+     */
+    private void answerQuery(String inetAddress, String time, String givenNumber, SessionKeys.Session session) {
+        int counter = Integer.parseInt(givenNumber);
+        ReturnQueryThree returnQueryThree =
+                new ReturnQueryThree(inetAddress, time, unicastPort, answer,
+                        ownCertificateLocation, ownPrivateKeyLocation, number, dnsPrivateKeylocation,
+                        session);
+        returnQueryThree.start();
+        if (number > CERTIFICATE_AMOUNT - 2) {
+            System.out.println("certificate limit reached");
+        }
+        else if (counter != 0 && counter % rate == 0) {
+            System.out.println("changing certificate");
+            number = pseudonyms.rotate();
+        }
+    }
 }
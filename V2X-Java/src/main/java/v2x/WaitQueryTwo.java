@@ -23,26 +23,36 @@ public class WaitQueryTwo extends Thread {
 
     @Override
     public void run() {
+        CredentialStore.preload(caCertificateLocation, ownCertificateLocation, ownPrivateKeyLocation);
         byte[] buffer = new byte[65508];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        MessageView message = new MessageView();
+        DropCounter dropCounter = new DropCounter();
+        TeslaVerifier teslaVerifier = new TeslaVerifier(caCertificateLocation);
         while (true) {
             try {
                 while (true) {
-                    DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                    packet.setLength(buffer.length);
                     serverSocket.receive(packet);
-                    Message message = CommunicationFunctions.byteArrayToMessage(buffer);
-                    String request = message.getValue("Query");
-                    if (request.equals("Query")) {
+                    if (!PacketFilter.accept(message, buffer, 0, packet.getLength(), dropCounter)) {
+                        continue;
+                    }
+                    for (TeslaVerifier.PendingQuery query : teslaVerifier.release(message)) {
+                        answerQuery(query.getAddress().getHostAddress(), query.getTime());
+                    }
+                    if (message.valueEquals("Query", "Query")) {
+                        byte[] request = message.getBytes("Query");
                         //System.out.println("query received");
-                        String certificate = message.getValue("Certificate");
-                        String encryptedHash = message.getValue("Hash");
-                        if (AuthenticationFunctions.authenticateMessage(request, encryptedHash,
-                                certificate, caCertificateLocation)) {
-                            String inetAddress = packet.getAddress().getHostAddress();
-                            String time = message.getValue("Time");
-                            ReturnQueryTwo returnQueryTwo =
-                                    new ReturnQueryTwo(inetAddress, time, unicastPort, answer,
-                                            ownCertificateLocation, ownPrivateKeyLocation);
-                            returnQueryTwo.start();
+                        CertificateCache.CachedCertificate certificate =
+                                CertificateCache.resolveSender(message, packet.getAddress(), unicastPort);
+                        if (TeslaVerifier.isTesla(message)) {
+                            teslaVerifier.accept(message, certificate, packet.getAddress());
+                            continue;
+                        }
+                        byte[] signature = message.getBase64Value("Hash");
+                        if (certificate != null && signature != null && AuthenticationFunctions.authenticateMessage(request, 0,
+                                request.length, signature, 0, signature.length, certificate, caCertificateLocation)) {
+                            answerQuery(packet.getAddress().getHostAddress(), message.getValue("Time"));
                         }
                     }
                 }
@@ -51,4 +61,11 @@ public class WaitQueryTwo extends Thread {
             }
         }
     }
+
+    private void answerQuery(String inetAddress, String time) {
+        ReturnQueryTwo returnQueryTwo =
+                new ReturnQueryTwo(inetAddress, time, unicastPort, answer,
+                        ownCertificateLocation, ownPrivateKeyLocation);
+        returnQueryTwo.start();
+    }
 }